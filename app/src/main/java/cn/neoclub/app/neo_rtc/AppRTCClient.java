@@ -47,6 +47,28 @@ public interface AppRTCClient {
    */
   void sendLocalIceCandidateRemovals(final IceCandidate[] candidates);
 
+  /**
+   * Tell the other participant local video is paused or resumed.
+   */
+  void sendVideoPaused(final boolean paused);
+
+  /**
+   * Tell the other participant the size and max fps its video is shown at.
+   */
+  void sendViewSize(final int width, final int height, final int maxFps);
+
+  /**
+   * Ask the answering participant to replace its peer connection for the
+   * TCP transport stage, ahead of the next offer.
+   */
+  void sendTcpTransportRestart();
+
+  /**
+   * Send mid-call messages over |channel| while it is usable, instead of
+   * the signaling server.
+   */
+  void setPeerSignalingChannel(final PeerSignalingChannel channel);
+
   /**
    * Disconnect from room.
    */
@@ -79,6 +101,28 @@ public interface AppRTCClient {
      */
     void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates);
 
+    /**
+     * Callback fired once remote video is paused or resumed.
+     */
+    void onRemoteVideoPaused(final boolean paused);
+
+    /**
+     * Callback fired once remote peer reports the size local video is shown at.
+     */
+    void onRemoteViewSize(final int width, final int height, final int maxFps);
+
+    /**
+     * Callback fired once the offering peer asks for the TCP transport
+     * stage, its new offer follows.
+     */
+    void onRemoteTcpTransportRestart();
+
+    /**
+     * Callback fired once the server requests diagnostics for the next calls.
+     */
+    void onDiagnosticsRequest(final boolean aecDump, final boolean nativeLogs,
+                              final int calls);
+
     /**
      * Callback fired once channel is closed.
      */
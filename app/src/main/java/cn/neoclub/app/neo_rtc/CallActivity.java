@@ -3,9 +3,11 @@ package cn.neoclub.app.neo_rtc;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.FragmentTransaction;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
@@ -14,6 +16,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import org.webrtc.Camera2Enumerator;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
@@ -22,6 +25,9 @@ import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 
+import cn.neoclub.rtc.core.RemoteViewSize;
+
+import java.io.File;
 import java.util.LinkedList;
 
 /**
@@ -45,6 +51,8 @@ public class CallActivity extends Activity
             "org.appspot.apprtc.CMDLINE";
     public static final String EXTRA_RUNTIME =
             "org.appspot.apprtc.RUNTIME";
+    public static final String EXTRA_RECORD_CALL =
+            "org.appspot.apprtc.RECORD_CALL";
     private static final String TAG = "CallRTCClient";
 
     // List of mandatory application permissions.
@@ -66,17 +74,34 @@ public class CallActivity extends Activity
     private static final int LOCAL_Y_CONNECTED = 72;
     private static final int LOCAL_WIDTH_CONNECTED = 25;
     private static final int LOCAL_HEIGHT_CONNECTED = 25;
+    // Local preview fps once it is shrunk to a corner.
+    private static final int LOCAL_PREVIEW_CONNECTED_MAX_FPS = 15;
     // Remote video screen position
     private static final int REMOTE_X = 0;
     private static final int REMOTE_Y = 0;
     private static final int REMOTE_WIDTH = 100;
     private static final int REMOTE_HEIGHT = 100;
+    // Max fps asked from the remote peer for its video, lower when shown
+    // as a thumbnail.
+    private static final int REMOTE_VIEW_MAX_FPS = 30;
+    private static final int REMOTE_THUMBNAIL_MAX_FPS = 15;
+    private static final int REMOTE_THUMBNAIL_MAX_AREA = 320 * 240;
     private PeerConnectionClient peerConnectionClient = null;
     private AppRTCClient appRtcClient;
     private AppRTCAudioManager audioManager = null;
     private EglBase rootEglBase;
     private SurfaceViewRenderer localRender;
     private SurfaceViewRenderer remoteRender;
+    // Renderers handed to the peer connection, they measure what reaches
+    // the views.
+    private InstrumentedVideoRenderer localVideoRenderer;
+    private InstrumentedVideoRenderer remoteVideoRenderer;
+    // Remote view size last reported to the remote peer.
+    private int reportedViewWidth;
+    private int reportedViewHeight;
+    // Size of the remote frames as drawn, after rotation, 0 until known.
+    private int remoteFrameWidth;
+    private int remoteFrameHeight;
     private PercentFrameLayout localRenderLayout;
     private PercentFrameLayout remoteRenderLayout;
     private RendererCommon.ScalingType scalingType;
@@ -88,8 +113,9 @@ public class CallActivity extends Activity
     private boolean iceConnected;
     private boolean isError;
     private boolean callControlFragmentVisible = true;
-    private long callStartedTimeMs = 0;
     private boolean micEnabled = true;
+    private boolean localPreviewVisible = true;
+    private boolean recordCall;
 
     // Controls
     private CallFragment callFragment;
@@ -127,8 +153,6 @@ public class CallActivity extends Activity
         remoteRender = (SurfaceViewRenderer) findViewById(R.id.remote_video_view);
         localRenderLayout = (PercentFrameLayout) findViewById(R.id.local_video_layout);
         remoteRenderLayout = (PercentFrameLayout) findViewById(R.id.remote_video_layout);
-        callFragment = new CallFragment();
-        hudFragment = new HudFragment();
 
         // Show/hide call control fragment on view click.
         View.OnClickListener listener = new View.OnClickListener() {
@@ -140,12 +164,50 @@ public class CallActivity extends Activity
 
         localRender.setOnClickListener(listener);
         remoteRender.setOnClickListener(listener);
+        // Long click hides or shows the local preview.
+        View.OnLongClickListener longClickListener = new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                toggleLocalPreviewVisibility();
+                return true;
+            }
+        };
+        localRender.setOnLongClickListener(longClickListener);
+        remoteRender.setOnLongClickListener(longClickListener);
+        remoteRender.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                reportViewSize();
+            }
+        });
 
         // Create video renderers.
         rootEglBase = EglBase.create();
         localRender.init(rootEglBase.getEglBaseContext(), null);
-        remoteRender.init(rootEglBase.getEglBaseContext(), null);
+        remoteRender.init(rootEglBase.getEglBaseContext(), new RendererCommon.RendererEvents() {
+            @Override
+            public void onFirstFrameRendered() {
+                CallSetupTracer.getInstance().mark(CallSetupTracer.FIRST_REMOTE_FRAME);
+            }
+
+            @Override
+            public void onFrameResolutionChanged(final int videoWidth, final int videoHeight,
+                                                 final int rotation) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean rotated = rotation % 180 != 0;
+                        remoteFrameWidth = rotated ? videoHeight : videoWidth;
+                        remoteFrameHeight = rotated ? videoWidth : videoHeight;
+                        reportViewSize();
+                    }
+                });
+            }
+        });
         localRender.setZOrderMediaOverlay(true);
+        localVideoRenderer = new InstrumentedVideoRenderer("Local", localRender);
+        remoteVideoRenderer = new InstrumentedVideoRenderer("Remote", remoteRender);
         updateVideoView();
 
         // Check for mandatory permissions.
@@ -173,17 +235,19 @@ public class CallActivity extends Activity
         boolean videoCallEnabled = intent.getBooleanExtra(EXTRA_VIDEO_CALL, true);
 
         // Use Camera2 option.
-        boolean useCamera2 = false; //Camera2Enumerator.isSupported()
+        boolean useCamera2 = Camera2Enumerator.isSupported();
 
-        // Get default codecs.
-        String videoCodec = "H264";
-        String audioCodec = "ISAC";
+        // Get default codecs. Video codec is picked by PeerConnectionClient
+        // from the HW codecs probed on this device.
+        String videoCodec = null;
+        String audioCodec = "OPUS";
 
         // Check HW codec flag.
-        boolean hwCodec = false;
+        boolean hwCodec = true;
 
-        // Check Capture to texture.
-        boolean captureToTexture = false;
+        // Check Capture to texture. PeerConnectionClient falls back to byte
+        // buffers if the device can't encode from textures.
+        boolean captureToTexture = true;
 
         // Check Disable Audio Processing flag.
         boolean noAudioProcessing = false;
@@ -210,12 +274,29 @@ public class CallActivity extends Activity
         // Get camera fps from settings.
         int cameraFps = 30;
 
-        // Get video and audio start bitrate.
+        // Get video and audio start bitrate. Audio bitrate is picked by the
+        // Opus profile of the network.
         int videoStartBitrate = 1000;
-        int audioStartBitrate = 32;
+        int audioStartBitrate = 0;
+
+        // Cap video and audio bandwidth on metered networks. Video also gets
+        // a bitrate floor so it doesn't collapse on noisy links.
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        boolean meteredNetwork = connectivityManager != null
+                && connectivityManager.isActiveNetworkMetered();
+        int videoMinBitrate = 150;
+        int videoMaxBitrate = meteredNetwork ? 500 : 0;
+        int audioMaxBitrate = meteredNetwork ? 32 : 0;
 
         boolean tracing = false;
 
+        // Pre-gather ICE candidates while waiting for the remote peer. One
+        // pooled transport is enough with max-bundle. The pool is gathered
+        // again if nobody joins before it expires.
+        int iceCandidatePoolSize = 1;
+        int iceCandidatePoolExpiryMs = 120000;
+
 
         peerConnectionParameters = new PeerConnectionClient.PeerConnectionParameters(
                 videoCallEnabled,
@@ -225,17 +306,25 @@ public class CallActivity extends Activity
                 videoHeight,
                 cameraFps,
                 videoStartBitrate,
+                videoMinBitrate,
+                videoMaxBitrate,
                 videoCodec,
                 hwCodec,
                 captureToTexture,
                 audioStartBitrate,
+                audioMaxBitrate,
                 audioCodec,
                 noAudioProcessing,
                 aecDump,
                 useOpenSLES,
                 disableBuiltInAEC,
                 disableBuiltInAGC,
-                disableBuiltInNS);
+                disableBuiltInNS,
+                iceCandidatePoolSize,
+                iceCandidatePoolExpiryMs);
+
+        // Check call recording flag.
+        recordCall = intent.getBooleanExtra(EXTRA_RECORD_CALL, false);
 
         commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
         runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
@@ -246,16 +335,6 @@ public class CallActivity extends Activity
 
         // Create CPU monitor
         cpuMonitor = new CpuMonitor(this);
-        hudFragment.setCpuMonitor(cpuMonitor);
-
-        // Send intent arguments to fragments.
-        callFragment.setArguments(intent.getExtras());
-        hudFragment.setArguments(intent.getExtras());
-        // Activate call and HUD fragments and start the call.
-        FragmentTransaction ft = getFragmentManager().beginTransaction();
-        ft.add(R.id.call_fragment_container, callFragment);
-        ft.add(R.id.hud_fragment_container, hudFragment);
-        ft.commit();
         startCall();
 
         // For command line execution run connection for <runTimeMs> and exit.
@@ -269,8 +348,38 @@ public class CallActivity extends Activity
         }
 
         peerConnectionClient = PeerConnectionClient.getInstance();
+        // Keep the factory and sources warm so a redial connects faster.
+        peerConnectionClient.setSessionModeEnabled(true);
         peerConnectionClient.createPeerConnectionFactory(
                 CallActivity.this, peerConnectionParameters, CallActivity.this);
+
+        // Call setup is started, add the controls on the next loop pass.
+        new Handler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    addControlFragments();
+                }
+            }
+        });
+    }
+
+    // Adds the call controls, and the HUD only if it is displayed.
+    private void addControlFragments() {
+        Bundle extras = getIntent().getExtras();
+        callFragment = new CallFragment();
+        callFragment.setArguments(extras);
+        FragmentTransaction ft = getFragmentManager().beginTransaction();
+        ft.add(R.id.call_fragment_container, callFragment);
+        if (getIntent().getBooleanExtra(EXTRA_DISPLAY_HUD, false)) {
+            hudFragment = new HudFragment();
+            hudFragment.setCpuMonitor(cpuMonitor);
+            hudFragment.setVideoRenderers(localVideoRenderer, remoteVideoRenderer);
+            hudFragment.setArguments(extras);
+            ft.add(R.id.hud_fragment_container, hudFragment);
+        }
+        ft.commit();
+        CallSetupTracer.getInstance().mark(CallSetupTracer.CONTROLS_CREATED);
     }
 
     // Activity interfaces
@@ -325,6 +434,7 @@ public class CallActivity extends Activity
     public void onVideoScalingSwitch(RendererCommon.ScalingType scalingType) {
         this.scalingType = scalingType;
         updateVideoView();
+        reportViewSize();
     }
 
     @Override
@@ -338,7 +448,7 @@ public class CallActivity extends Activity
 
     // Helper functions.
     private void toggleCallControlFragmentVisibility() {
-        if (!iceConnected || !callFragment.isAdded()) {
+        if (!iceConnected || callFragment == null || !callFragment.isAdded()) {
             return;
         }
         // Show/hide call control fragment
@@ -346,15 +456,28 @@ public class CallActivity extends Activity
         FragmentTransaction ft = getFragmentManager().beginTransaction();
         if (callControlFragmentVisible) {
             ft.show(callFragment);
-            ft.show(hudFragment);
+            if (hudFragment != null) {
+                ft.show(hudFragment);
+            }
         } else {
             ft.hide(callFragment);
-            ft.hide(hudFragment);
+            if (hudFragment != null) {
+                ft.hide(hudFragment);
+            }
         }
         ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
         ft.commit();
     }
 
+    private void toggleLocalPreviewVisibility() {
+        if (!iceConnected || peerConnectionClient == null) {
+            return;
+        }
+        localPreviewVisible = !localPreviewVisible;
+        localRender.setVisibility(localPreviewVisible ? View.VISIBLE : View.INVISIBLE);
+        peerConnectionClient.setLocalPreviewEnabled(localPreviewVisible);
+    }
+
     private void updateVideoView() {
         remoteRenderLayout.setPosition(REMOTE_X, REMOTE_Y, REMOTE_WIDTH, REMOTE_HEIGHT);
         remoteRender.setScalingType(scalingType);
@@ -364,6 +487,9 @@ public class CallActivity extends Activity
             localRenderLayout.setPosition(
                     LOCAL_X_CONNECTED, LOCAL_Y_CONNECTED, LOCAL_WIDTH_CONNECTED, LOCAL_HEIGHT_CONNECTED);
             localRender.setScalingType(RendererCommon.ScalingType.SCALE_ASPECT_FIT);
+            if (peerConnectionClient != null) {
+                peerConnectionClient.setLocalPreviewMaxFps(LOCAL_PREVIEW_CONNECTED_MAX_FPS);
+            }
         } else {
             localRenderLayout.setPosition(
                     LOCAL_X_CONNECTING, LOCAL_Y_CONNECTING, LOCAL_WIDTH_CONNECTING, LOCAL_HEIGHT_CONNECTING);
@@ -380,7 +506,7 @@ public class CallActivity extends Activity
             Log.e(TAG, "AppRTC client is not allocated for a call.");
             return;
         }
-        callStartedTimeMs = System.currentTimeMillis();
+        CallSetupTracer.getInstance().mark(CallSetupTracer.CALL_STARTED);
 
         // Start room connection.
         logAndToast(getString(R.string.connecting_to, ContentManager.WSS_URL));
@@ -405,7 +531,7 @@ public class CallActivity extends Activity
 
     // Should be called from UI thread
     private void callConnected() {
-        final long delta = System.currentTimeMillis() - callStartedTimeMs;
+        final long delta = CallSetupTracer.getInstance().getElapsedMs();
         Log.i(TAG, "Call connected: delay=" + delta + "ms");
         if (peerConnectionClient == null || isError) {
             Log.w(TAG, "Call is connected in closed or error state");
@@ -413,8 +539,41 @@ public class CallActivity extends Activity
         }
         // Update video view.
         updateVideoView();
+        reportViewSize();
         // Enable statistics callback.
         peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+        if (recordCall) {
+            File directory = getExternalFilesDir(null);
+            if (directory == null) {
+                directory = getFilesDir();
+            }
+            peerConnectionClient.startRecording(new File(directory, "recordings"));
+        }
+    }
+
+    // Lets the remote peer scale its video down to the size it is drawn at
+    // here. With aspect fill that is the whole view, usually larger than the
+    // remote capture on a phone, so it matters for aspect fit and small
+    // views.
+    private void reportViewSize() {
+        if (!iceConnected || appRtcClient == null || remoteRender == null) {
+            return;
+        }
+        int[] size = RemoteViewSize.getRenderedSize(remoteRender.getWidth(),
+                remoteRender.getHeight(), remoteFrameWidth, remoteFrameHeight,
+                scalingType == RendererCommon.ScalingType.SCALE_ASPECT_FILL);
+        int width = size[0];
+        int height = size[1];
+        if (width == 0 || height == 0
+                || (width == reportedViewWidth && height == reportedViewHeight)) {
+            return;
+        }
+        reportedViewWidth = width;
+        reportedViewHeight = height;
+        int maxFps = width * height <= REMOTE_THUMBNAIL_MAX_AREA
+                ? REMOTE_THUMBNAIL_MAX_FPS : REMOTE_VIEW_MAX_FPS;
+        Log.d(TAG, "Report remote view size " + width + "x" + height + "@" + maxFps);
+        appRtcClient.sendViewSize(width, height, maxFps);
     }
 
     private void onAudioManagerChangedState() {
@@ -445,6 +604,13 @@ public class CallActivity extends Activity
             audioManager.close();
             audioManager = null;
         }
+        CallSetupTracer.getInstance().finish(getApplicationContext());
+        if (remoteVideoRenderer != null) {
+            Log.d(TAG, "Call render summary. " + localVideoRenderer.getSummary()
+                    + ". " + remoteVideoRenderer.getSummary());
+            localVideoRenderer = null;
+            remoteVideoRenderer = null;
+        }
         if (iceConnected && !isError) {
             setResult(RESULT_OK);
         } else {
@@ -499,12 +665,13 @@ public class CallActivity extends Activity
     // All callbacks are invoked from websocket signaling looper thread and
     // are routed to UI thread.
     private void onConnectedToRoomInternal(boolean isFirstIn, LinkedList<PeerConnection.IceServer> iceServers) {
-        final long delta = System.currentTimeMillis() - callStartedTimeMs;
+        final long delta = CallSetupTracer.getInstance().getElapsedMs();
 
         logAndToast("Creating peer connection, delay=" + delta + "ms");
 
         peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(),
-                localRender, remoteRender, iceServers);
+                localVideoRenderer, remoteVideoRenderer, iceServers);
+        appRtcClient.setPeerSignalingChannel(peerConnectionClient.getSignalingChannel());
 
         if (!isFirstIn) {
             logAndToast("Creating OFFER...");
@@ -524,7 +691,9 @@ public class CallActivity extends Activity
 
     @Override
     public void onRemoteDescription(final SessionDescription sdp) {
-        final long delta = System.currentTimeMillis() - callStartedTimeMs;
+        CallSetupTracer.getInstance().mark(sdp.type == SessionDescription.Type.OFFER
+                ? CallSetupTracer.OFFER_RECEIVED : CallSetupTracer.ANSWER_RECEIVED);
+        final long delta = CallSetupTracer.getInstance().getElapsedMs();
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -569,6 +738,48 @@ public class CallActivity extends Activity
         });
     }
 
+    @Override
+    public void onRemoteVideoPaused(final boolean paused) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                logAndToast(paused ? "Remote video paused, poor network"
+                        : "Remote video resumed");
+            }
+        });
+    }
+
+    @Override
+    public void onRemoteViewSize(final int width, final int height, final int maxFps) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnectionClient != null) {
+                    peerConnectionClient.setRemoteViewSize(width, height, maxFps);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onRemoteTcpTransportRestart() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnectionClient != null) {
+                    peerConnectionClient.restartWithTcpTransport();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDiagnosticsRequest(final boolean aecDump, final boolean nativeLogs,
+                                     final int calls) {
+        // Applies from the next call, this one is already set up.
+        DiagnosticsCaptureManager.setRequest(getApplicationContext(), aecDump, nativeLogs, calls);
+    }
+
     @Override
     public void onChannelClose() {
         runOnUiThread(new Runnable() {
@@ -591,7 +802,7 @@ public class CallActivity extends Activity
     // are routed to UI thread.
     @Override
     public void onLocalDescription(final SessionDescription sdp, final boolean init) {
-        final long delta = System.currentTimeMillis() - callStartedTimeMs;
+        final long delta = CallSetupTracer.getInstance().getElapsedMs();
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -599,8 +810,10 @@ public class CallActivity extends Activity
                     logAndToast("Sending " + sdp.type + ", delay=" + delta + "ms");
                     if (init) {
                         appRtcClient.sendOfferSdp(sdp);
+                        CallSetupTracer.getInstance().mark(CallSetupTracer.OFFER_SENT);
                     } else {
                         appRtcClient.sendAnswerSdp(sdp);
+                        CallSetupTracer.getInstance().mark(CallSetupTracer.ANSWER_SENT);
                     }
                 }
             }
@@ -631,9 +844,22 @@ public class CallActivity extends Activity
         });
     }
 
+    @Override
+    public void onTcpTransportRestart() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (appRtcClient != null) {
+                    logAndToast("Switching to TCP transport");
+                    appRtcClient.sendTcpTransportRestart();
+                }
+            }
+        });
+    }
+
     @Override
     public void onIceConnected() {
-        final long delta = System.currentTimeMillis() - callStartedTimeMs;
+        final long delta = CallSetupTracer.getInstance().getElapsedMs();
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -644,6 +870,26 @@ public class CallActivity extends Activity
         });
     }
 
+    @Override
+    public void onIceReconnecting() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                logAndToast("ICE connection lost, reconnecting...");
+            }
+        });
+    }
+
+    @Override
+    public void onIceReconnected() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                logAndToast("ICE reconnected");
+            }
+        });
+    }
+
     @Override
     public void onIceDisconnected() {
         runOnUiThread(new Runnable() {
@@ -665,15 +911,37 @@ public class CallActivity extends Activity
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if (!isError && iceConnected) {
+                if (!isError && iceConnected && hudFragment != null) {
                     hudFragment.updateEncoderStatistics(reports);
                 }
             }
         });
     }
 
+    @Override
+    public void onVideoPausedForBandwidth(final boolean paused) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                logAndToast(paused ? "Video paused, poor network" : "Video resumed");
+                if (appRtcClient != null) {
+                    appRtcClient.sendVideoPaused(paused);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDataMessage(final String message, final boolean reliable) {
+        // No in-call messaging UI yet, messages are only logged.
+        Log.d(TAG, "Data message, reliable: " + reliable + ": " + message);
+    }
+
     @Override
     public void onPeerConnectionError(final String description) {
+        File dump = FlightRecorder.dump(
+                new File(getFilesDir(), FlightRecorder.DIRECTORY_NAME), description);
+        Log.e(TAG, "Flight recorder dumped to " + dump);
         reportError(description);
     }
 }
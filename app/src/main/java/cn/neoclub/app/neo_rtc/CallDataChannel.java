@@ -0,0 +1,294 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.DataChannel;
+import org.webrtc.PeerConnection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-call message channel over a negotiated WebRTC data channel.
+ * <p/>
+ * <p>Both peers create the channel with the same id, so no in-band open
+ * handshake is needed. Messages sent within BATCH_DELAY_MS are coalesced
+ * into one binary frame of 2 byte length prefixed UTF-8 messages, up to
+ * MAX_FRAME_BYTES. Frames are only sent while the channel's bufferedAmount
+ * is below HIGH_BUFFERED_AMOUNT, sending resumes once it drops below
+ * LOW_BUFFERED_AMOUNT. Meanwhile messages wait in a queue of up to
+ * MAX_PENDING_BYTES: a reliable channel rejects new messages when it is
+ * full, an unreliable channel drops the oldest ones, as only recent state
+ * is worth sending late.
+ * <p>
+ * Not thread safe, call from the peer connection executor. Listener is
+ * called on that executor too.
+ */
+public class CallDataChannel {
+    private static final String TAG = "CallDataChannel";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BATCH_DELAY_MS = 10;
+    private static final int MAX_FRAME_BYTES = 16 * 1024;
+    private static final int MAX_MESSAGE_BYTES = MAX_FRAME_BYTES - 2;
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    private static final long HIGH_BUFFERED_AMOUNT = 256 * 1024;
+    private static final long LOW_BUFFERED_AMOUNT = 64 * 1024;
+
+    /**
+     * Data channel events.
+     */
+    public interface Listener {
+        void onOpen(CallDataChannel channel);
+
+        /**
+         * Called once the channel is closed by the remote peer or the
+         * transport, with the messages which were still queued.
+         */
+        void onClosed(CallDataChannel channel, List<String> unsentMessages);
+
+        void onMessage(CallDataChannel channel, String message);
+    }
+
+    private final String label;
+    private final boolean reliable;
+    private final ScheduledExecutorService executor;
+    private final Listener listener;
+    private final DataChannel dataChannel;
+    private final LinkedList<byte[]> pendingMessages = new LinkedList<>();
+    private int pendingBytes;
+    private boolean congested;
+    private ScheduledFuture<?> batchFlush;
+    private boolean closed;
+
+    // Metrics.
+    private final long startTimeMs;
+    private long messagesSent;
+    private long framesSent;
+    private long bytesSent;
+    private long messagesReceived;
+    private long bytesReceived;
+    private long messagesDropped;
+
+    public CallDataChannel(PeerConnection peerConnection, String label, int id, boolean reliable,
+                           ScheduledExecutorService executor, Listener listener) {
+        this.label = label;
+        this.reliable = reliable;
+        this.executor = executor;
+        this.listener = listener;
+        DataChannel.Init init = new DataChannel.Init();
+        init.negotiated = true;
+        init.id = id;
+        init.ordered = reliable;
+        if (!reliable) {
+            init.maxRetransmits = 0;
+        }
+        dataChannel = peerConnection.createDataChannel(label, init);
+        dataChannel.registerObserver(observer);
+        startTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    /**
+     * Queues |message| for the next batch. Returns false if the message is
+     * too large, the channel is closed, or a reliable channel is congested.
+     */
+    public boolean send(String message) {
+        byte[] bytes = message.getBytes(UTF_8);
+        if (closed || bytes.length > MAX_MESSAGE_BYTES) {
+            messagesDropped++;
+            return false;
+        }
+        if (pendingBytes + bytes.length > MAX_PENDING_BYTES) {
+            if (reliable) {
+                messagesDropped++;
+                return false;
+            }
+            while (!pendingMessages.isEmpty()
+                    && pendingBytes + bytes.length > MAX_PENDING_BYTES) {
+                pendingBytes -= pendingMessages.removeFirst().length;
+                messagesDropped++;
+            }
+        }
+        pendingMessages.add(bytes);
+        pendingBytes += bytes.length;
+        if (pendingBytes + 2 * pendingMessages.size() >= MAX_FRAME_BYTES) {
+            flush();
+        } else if (batchFlush == null) {
+            batchFlush = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    batchFlush = null;
+                    flush();
+                }
+            }, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Closes the channel and releases it, queued messages are discarded.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (batchFlush != null) {
+                batchFlush.cancel(false);
+                batchFlush = null;
+            }
+            Log.d(TAG, "Close. " + getMetrics());
+        }
+        dataChannel.unregisterObserver();
+        dataChannel.close();
+        dataChannel.dispose();
+    }
+
+    /**
+     * Returns message counts and throughput since the channel was created.
+     */
+    public String getMetrics() {
+        long durationMs = Math.max(1, SystemClock.elapsedRealtime() - startTimeMs);
+        return label + ": sent " + messagesSent + " messages in " + framesSent + " frames, "
+                + bytesSent * 8000 / durationMs + " bps, received " + messagesReceived
+                + " messages, " + bytesReceived * 8000 / durationMs + " bps, dropped "
+                + messagesDropped + " messages";
+    }
+
+    private void flush() {
+        if (closed || dataChannel.state() != DataChannel.State.OPEN) {
+            return;
+        }
+        while (!pendingMessages.isEmpty()) {
+            if (dataChannel.bufferedAmount() >= HIGH_BUFFERED_AMOUNT) {
+                if (!congested) {
+                    Log.d(TAG, label + " congested, " + pendingBytes + " bytes pending.");
+                }
+                congested = true;
+                return;
+            }
+            int frameBytes = 0;
+            int frameMessages = 0;
+            for (byte[] message : pendingMessages) {
+                if (frameBytes + 2 + message.length > MAX_FRAME_BYTES) {
+                    break;
+                }
+                frameBytes += 2 + message.length;
+                frameMessages++;
+            }
+            ByteBuffer frame = ByteBuffer.allocateDirect(frameBytes);
+            for (int i = 0; i < frameMessages; i++) {
+                byte[] message = pendingMessages.removeFirst();
+                pendingBytes -= message.length;
+                frame.putShort((short) message.length);
+                frame.put(message);
+            }
+            frame.flip();
+            if (!dataChannel.send(new DataChannel.Buffer(frame, true))) {
+                Log.e(TAG, label + " failed to send frame of " + frameMessages + " messages.");
+                messagesDropped += frameMessages;
+                continue;
+            }
+            messagesSent += frameMessages;
+            framesSent++;
+            bytesSent += frameBytes;
+        }
+    }
+
+    private void onRemoteClose() {
+        closed = true;
+        if (batchFlush != null) {
+            batchFlush.cancel(false);
+            batchFlush = null;
+        }
+        List<String> unsentMessages = new ArrayList<>(pendingMessages.size());
+        for (byte[] message : pendingMessages) {
+            unsentMessages.add(new String(message, UTF_8));
+        }
+        pendingMessages.clear();
+        pendingBytes = 0;
+        Log.d(TAG, "Closed. " + getMetrics());
+        listener.onClosed(this, unsentMessages);
+    }
+
+    private void onMessage(ByteBuffer frame) {
+        while (frame.remaining() >= 2) {
+            int length = frame.getShort() & 0xffff;
+            if (length > frame.remaining()) {
+                Log.e(TAG, label + " got truncated message.");
+                return;
+            }
+            byte[] bytes = new byte[length];
+            frame.get(bytes);
+            messagesReceived++;
+            bytesReceived += 2 + length;
+            listener.onMessage(this, new String(bytes, UTF_8));
+        }
+    }
+
+    // Called on the WebRTC signaling thread.
+    private final DataChannel.Observer observer = new DataChannel.Observer() {
+        @Override
+        public void onBufferedAmountChange(long previousAmount) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed && congested
+                            && dataChannel.bufferedAmount() < LOW_BUFFERED_AMOUNT) {
+                        congested = false;
+                        flush();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStateChange() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        return;
+                    }
+                    DataChannel.State state = dataChannel.state();
+                    Log.d(TAG, label + " state: " + state);
+                    if (state == DataChannel.State.OPEN) {
+                        listener.onOpen(CallDataChannel.this);
+                        flush();
+                    } else if (state == DataChannel.State.CLOSING
+                            || state == DataChannel.State.CLOSED) {
+                        onRemoteClose();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMessage(DataChannel.Buffer buffer) {
+            if (!buffer.binary) {
+                Log.w(TAG, label + " ignores text message.");
+                return;
+            }
+            // Buffer is only valid during the callback.
+            final ByteBuffer frame = ByteBuffer.allocate(buffer.data.remaining());
+            frame.put(buffer.data);
+            frame.flip();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed) {
+                        CallDataChannel.this.onMessage(frame);
+                    }
+                }
+            });
+        }
+    };
+}
@@ -0,0 +1,431 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlUtil;
+import org.webrtc.RendererCommon;
+import org.webrtc.VideoRenderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the frames of one video track to an MP4 file.
+ * <p/>
+ * <p>Attached to a track as a renderer. Frames are handed to a recorder
+ * thread through a fixed pool of SLOT_COUNT preallocated slots, the thread
+ * draws them into a MediaCodec input surface and muxes the H.264 output with
+ * MediaMuxer. I420 frames are copied into the slot and released at once.
+ * Texture frames can't be copied without GL, so they are held until drawn;
+ * at most one at a time, holding more would stall the capturer or decoder.
+ * <p>
+ * Drop policy: when no slot is free, or a texture frame is already held,
+ * the new frame is dropped, so the render thread never waits on the
+ * recorder. Dropped frames are counted and logged when recording stops.
+ * The encoder size and orientation are taken from the first frame, later
+ * frames are scaled to it.
+ */
+public class CallRecorder implements VideoRenderer.Callbacks {
+    private static final String TAG = "CallRecorder";
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+    private static final int SLOT_COUNT = 4;
+    private static final int MAX_HELD_TEXTURE_FRAMES = 1;
+    private static final int FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_S = 2;
+    // Bitrate per pixel of the encoder size, 720p gets about 3.7 Mbps.
+    private static final int BITRATE_BPS_PER_PIXEL = 4;
+    private static final int DRAIN_TIMEOUT_US = 10000;
+    private static final int MAX_DRAIN_END_OF_STREAM_TRIES = 100;
+
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_FILLING = 1;
+    private static final int SLOT_QUEUED = 2;
+
+    private static class Slot {
+        int state = SLOT_FREE;
+        int width;
+        int height;
+        int rotation;
+        long timestampNs;
+        final float[] samplingMatrix = new float[16];
+        // Set for texture frames, released once drawn.
+        VideoRenderer.I420Frame textureFrame;
+        int textureId;
+        final int[] strides = new int[3];
+        final ByteBuffer[] planes = new ByteBuffer[3];
+    }
+
+    private final String name;
+    private final File outputFile;
+    private final EglBase.Context sharedContext;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private final Object lock = new Object();
+    private final Slot[] slots = new Slot[SLOT_COUNT];
+    // Queued slot indexes in frame order.
+    private final int[] queue = new int[SLOT_COUNT];
+    private int queueHead;
+    private int queueSize;
+    private int heldTextureFrames;
+    private boolean released;
+    private boolean failed;
+    private long recordedFrames;
+    private long droppedFrames;
+
+    // Recorder thread only.
+    private MediaCodec encoder;
+    private Surface inputSurface;
+    private MediaMuxer muxer;
+    private int muxerTrackIndex = -1;
+    private boolean muxerStarted;
+    private MediaCodec.BufferInfo bufferInfo;
+    private EglBase eglBase;
+    private GlRectDrawer drawer;
+    private RendererCommon.YuvUploader yuvUploader;
+    private int[] yuvTextures;
+    private int encoderWidth;
+    private int encoderHeight;
+
+    public CallRecorder(String name, File outputFile, EglBase.Context sharedContext) {
+        this.name = name;
+        this.outputFile = outputFile;
+        this.sharedContext = sharedContext;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots[i] = new Slot();
+        }
+        thread = new HandlerThread(TAG + "-" + name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        Log.d(TAG, name + " recording to " + outputFile);
+    }
+
+    public long getRecordedFrames() {
+        synchronized (lock) {
+            return recordedFrames;
+        }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    @Override
+    public void renderFrame(VideoRenderer.I420Frame frame) {
+        long timestampNs = System.nanoTime();
+        Slot slot = null;
+        synchronized (lock) {
+            if (!released && !failed
+                    && (frame.yuvFrame || heldTextureFrames < MAX_HELD_TEXTURE_FRAMES)) {
+                for (Slot freeSlot : slots) {
+                    if (freeSlot.state == SLOT_FREE) {
+                        slot = freeSlot;
+                        slot.state = SLOT_FILLING;
+                        break;
+                    }
+                }
+            }
+            if (slot == null) {
+                if (!released && !failed) {
+                    droppedFrames++;
+                }
+            } else if (!frame.yuvFrame) {
+                heldTextureFrames++;
+            }
+        }
+        if (slot == null) {
+            VideoRenderer.renderFrameDone(frame);
+            return;
+        }
+
+        slot.width = frame.width;
+        slot.height = frame.height;
+        slot.rotation = frame.rotationDegree;
+        slot.timestampNs = timestampNs;
+        System.arraycopy(frame.samplingMatrix, 0, slot.samplingMatrix, 0, 16);
+        if (frame.yuvFrame) {
+            for (int i = 0; i < 3; i++) {
+                slot.strides[i] = frame.yuvStrides[i];
+                copyPlane(frame.yuvPlanes[i], slot, i);
+            }
+            VideoRenderer.renderFrameDone(frame);
+        } else {
+            slot.textureFrame = frame;
+            slot.textureId = frame.textureId;
+        }
+
+        boolean queued = false;
+        synchronized (lock) {
+            if (!released) {
+                slot.state = SLOT_QUEUED;
+                queue[(queueHead + queueSize) % SLOT_COUNT] = indexOf(slot);
+                queueSize++;
+                queued = true;
+            } else {
+                freeSlot(slot);
+            }
+        }
+        if (queued) {
+            handler.post(drainRunnable);
+        }
+    }
+
+    /**
+     * Stops recording. Queued frames are still written, then the file is
+     * finished on the recorder thread.
+     */
+    public void release() {
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+                if (encoder != null) {
+                    try {
+                        drainEncoder(true);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, name + " failed to finish recording", e);
+                    }
+                }
+                releaseEncoder();
+                Log.d(TAG, name + " recording done. Recorded frames: " + getRecordedFrames()
+                        + ", dropped frames: " + getDroppedFrames());
+            }
+        });
+        thread.quitSafely();
+    }
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainQueue();
+        }
+    };
+
+    private int indexOf(Slot slot) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (slots[i] == slot) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown slot");
+    }
+
+    // Slot buffers are only reallocated when a plane grows.
+    private static void copyPlane(ByteBuffer src, Slot slot, int plane) {
+        ByteBuffer dst = slot.planes[plane];
+        int position = src.position();
+        if (dst == null || dst.capacity() < src.remaining()) {
+            dst = ByteBuffer.allocateDirect(src.remaining());
+            slot.planes[plane] = dst;
+        }
+        dst.clear();
+        dst.put(src);
+        dst.flip();
+        src.position(position);
+    }
+
+    // Called with |lock| held.
+    private void freeSlot(Slot slot) {
+        if (slot.textureFrame != null) {
+            VideoRenderer.renderFrameDone(slot.textureFrame);
+            slot.textureFrame = null;
+            heldTextureFrames--;
+        }
+        slot.state = SLOT_FREE;
+    }
+
+    private void drainQueue() {
+        while (true) {
+            Slot slot;
+            synchronized (lock) {
+                if (queueSize == 0) {
+                    return;
+                }
+                slot = slots[queue[queueHead]];
+                queueHead = (queueHead + 1) % SLOT_COUNT;
+                queueSize--;
+            }
+            boolean recorded = encodeFrame(slot);
+            synchronized (lock) {
+                if (recorded) {
+                    recordedFrames++;
+                }
+                freeSlot(slot);
+            }
+        }
+    }
+
+    private boolean encodeFrame(Slot slot) {
+        synchronized (lock) {
+            if (failed) {
+                return false;
+            }
+        }
+        try {
+            if (encoder == null) {
+                startEncoder(slot);
+            }
+            GLES20.glClearColor(0, 0, 0, 1);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            if (slot.textureFrame != null) {
+                drawer.drawOes(slot.textureId, slot.samplingMatrix, slot.width, slot.height,
+                        0, 0, encoderWidth, encoderHeight);
+            } else {
+                yuvUploader.uploadYuvData(
+                        yuvTextures, slot.width, slot.height, slot.strides, slot.planes);
+                drawer.drawYuv(yuvTextures, slot.samplingMatrix, slot.width, slot.height,
+                        0, 0, encoderWidth, encoderHeight);
+            }
+            // Frames are stamped with their arrival time, not the time the
+            // recorder got to them.
+            EGLExt.eglPresentationTimeANDROID(EGL14.eglGetCurrentDisplay(),
+                    EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW), slot.timestampNs);
+            eglBase.swapBuffers();
+            drainEncoder(false);
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, name + " recording failed", e);
+            synchronized (lock) {
+                failed = true;
+            }
+            releaseEncoder();
+            return false;
+        }
+    }
+
+    private void startEncoder(Slot slot) {
+        encoderWidth = slot.width & ~1;
+        encoderHeight = slot.height & ~1;
+        Log.d(TAG, name + " start encoder " + encoderWidth + "x" + encoderHeight
+                + ", rotation " + slot.rotation);
+        MediaFormat format = MediaFormat.createVideoFormat(
+                VIDEO_MIME_TYPE, encoderWidth, encoderHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE,
+                encoderWidth * encoderHeight * BITRATE_BPS_PER_PIXEL);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_S);
+        try {
+            encoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = encoder.createInputSurface();
+            encoder.start();
+            muxer = new MediaMuxer(outputFile.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create encoder or muxer", e);
+        }
+        muxer.setOrientationHint(slot.rotation);
+        bufferInfo = new MediaCodec.BufferInfo();
+
+        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
+        eglBase.createSurface(inputSurface);
+        eglBase.makeCurrent();
+        drawer = new GlRectDrawer();
+        yuvUploader = new RendererCommon.YuvUploader();
+        yuvTextures = new int[3];
+        for (int i = 0; i < 3; i++) {
+            yuvTextures[i] = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void drainEncoder(boolean endOfStream) {
+        if (endOfStream) {
+            encoder.signalEndOfInputStream();
+        }
+        ByteBuffer[] outputBuffers = encoder.getOutputBuffers();
+        int tries = 0;
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(bufferInfo, endOfStream ? DRAIN_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream || ++tries >= MAX_DRAIN_END_OF_STREAM_TRIES) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = encoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                muxerTrackIndex = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+                muxerStarted = true;
+            } else if (index >= 0) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Sent to the muxer with the output format.
+                    bufferInfo.size = 0;
+                }
+                if (bufferInfo.size > 0 && muxerStarted) {
+                    ByteBuffer data = outputBuffers[index];
+                    data.position(bufferInfo.offset);
+                    data.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(muxerTrackIndex, data, bufferInfo);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void releaseEncoder() {
+        if (muxer != null) {
+            try {
+                if (muxerStarted) {
+                    muxer.stop();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " failed to stop muxer", e);
+            }
+            muxer.release();
+            muxer = null;
+            muxerStarted = false;
+        }
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " failed to stop encoder", e);
+            }
+            encoder.release();
+            encoder = null;
+        }
+        if (drawer != null) {
+            drawer.release();
+            drawer = null;
+        }
+        if (yuvTextures != null) {
+            GLES20.glDeleteTextures(3, yuvTextures, 0);
+            yuvTextures = null;
+        }
+        if (eglBase != null) {
+            eglBase.release();
+            eglBase = null;
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+    }
+}
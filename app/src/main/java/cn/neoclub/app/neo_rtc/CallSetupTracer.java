@@ -0,0 +1,272 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Records the phases of call setup on a monotonic clock.
+ * <p/>
+ * <p>Each phase is recorded once per call, the first time it is reached, in
+ * ms since the timeline started. Later occurrences, e.g. ICE restart offers,
+ * are ignored. A timeline starts with the login request, or with the call if
+ * the login was skipped. When the call ends the timeline is logged as JSON
+ * and appended to a history file of the last MAX_HISTORY_CALLS calls, which
+ * is aggregated into per phase percentiles. Thread safe.
+ */
+public class CallSetupTracer {
+    private static final String TAG = "CallSetupTracer";
+    private static final String HISTORY_FILE_NAME = "call_setup_history.jsonl";
+    private static final int MAX_HISTORY_CALLS = 100;
+
+    public static final String LOGIN_REQUEST = "login_request";
+    public static final String LOGIN_RESPONSE = "login_response";
+    public static final String CALL_STARTED = "call_started";
+    public static final String ICE_SERVERS_REQUEST = "ice_servers_request";
+    public static final String ICE_SERVERS_RECEIVED = "ice_servers_received";
+    public static final String WEBSOCKET_OPEN = "websocket_open";
+    public static final String REGISTER_SENT = "register_sent";
+    public static final String LOGIN_ACK = "login_ack";
+    public static final String CONTROLS_CREATED = "controls_created";
+    public static final String FACTORY_CREATED = "factory_created";
+    public static final String PEER_CONNECTION_CREATED = "peer_connection_created";
+    public static final String OFFER_CREATED = "offer_created";
+    public static final String OFFER_SET = "offer_set";
+    public static final String OFFER_SENT = "offer_sent";
+    public static final String OFFER_RECEIVED = "offer_received";
+    public static final String ANSWER_CREATED = "answer_created";
+    public static final String ANSWER_SET = "answer_set";
+    public static final String ANSWER_SENT = "answer_sent";
+    public static final String ANSWER_RECEIVED = "answer_received";
+    public static final String FIRST_LOCAL_CANDIDATE = "first_local_candidate";
+    public static final String FIRST_REMOTE_CANDIDATE = "first_remote_candidate";
+    public static final String ICE_CHECKING = "ice_checking";
+    public static final String ICE_CONNECTED = "ice_connected";
+    public static final String DTLS_CONNECTED = "dtls_connected";
+    public static final String FIRST_REMOTE_FRAME = "first_remote_frame";
+
+    private static final CallSetupTracer instance = new CallSetupTracer();
+    // History file is read and written off the calling threads.
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
+
+    // Phase name to ns since |startNs|, in the order phases were reached.
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private long startNs = -1;
+    private long startWallTimeMs;
+
+    public static CallSetupTracer getInstance() {
+        return instance;
+    }
+
+    private CallSetupTracer() {
+    }
+
+    /**
+     * Starts a new timeline, a timeline which was not finished is dropped.
+     */
+    public synchronized void start() {
+        phases.clear();
+        startNs = SystemClock.elapsedRealtimeNanos();
+        startWallTimeMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Records |phase| if it was not reached yet, starts a timeline if none.
+     */
+    public synchronized void mark(String phase) {
+        if (startNs < 0) {
+            start();
+        }
+        if (phases.containsKey(phase)) {
+            return;
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        phases.put(phase, elapsedNs);
+        Log.d(TAG, phase + " at " + toMs(elapsedNs) + " ms");
+    }
+
+    /**
+     * Returns ms since the timeline started, 0 if there is none.
+     */
+    public synchronized long getElapsedMs() {
+        if (startNs < 0) {
+            return 0;
+        }
+        return (SystemClock.elapsedRealtimeNanos() - startNs) / 1000000;
+    }
+
+    /**
+     * Returns the current timeline as JSON, phases in ms.
+     */
+    public synchronized JSONObject getTimeline() {
+        JSONObject timeline = new JSONObject();
+        JSONObject phasesJson = new JSONObject();
+        try {
+            for (Map.Entry<String, Long> entry : phases.entrySet()) {
+                phasesJson.put(entry.getKey(), toMs(entry.getValue()));
+            }
+            timeline.put("startTimeMs", startWallTimeMs);
+            timeline.put("phases", phasesJson);
+        } catch (JSONException e) {
+            Log.e(TAG, "Timeline JSON error: " + e.getMessage());
+        }
+        return timeline;
+    }
+
+    /**
+     * Ends the current timeline, logs it and adds it to the history. Does
+     * nothing if no phase was recorded.
+     */
+    public void finish(Context context) {
+        final File historyFile = getHistoryFile(context);
+        final JSONObject timeline;
+        synchronized (this) {
+            if (phases.isEmpty()) {
+                startNs = -1;
+                return;
+            }
+            timeline = getTimeline();
+            phases.clear();
+            startNs = -1;
+        }
+        Log.d(TAG, "Call setup timeline: " + timeline);
+        historyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> lines = readHistory(historyFile);
+                lines.add(timeline.toString());
+                while (lines.size() > MAX_HISTORY_CALLS) {
+                    lines.remove(0);
+                }
+                writeHistory(historyFile, lines);
+                Log.d(TAG, "Call setup percentiles of " + lines.size() + " calls: "
+                        + getPercentiles(lines));
+            }
+        });
+    }
+
+    /**
+     * Returns p50, p90 and p99 in ms and the number of calls which reached
+     * it for every phase in the history. Reads a file, don't call on the UI
+     * thread.
+     */
+    public static JSONObject getPercentiles(Context context) {
+        return getPercentiles(readHistory(getHistoryFile(context)));
+    }
+
+    private static JSONObject getPercentiles(List<String> lines) {
+        Map<String, List<Double>> phaseTimes = new LinkedHashMap<>();
+        for (String line : lines) {
+            try {
+                JSONObject phasesJson = new JSONObject(line).getJSONObject("phases");
+                Iterator<String> names = phasesJson.keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    if (!phaseTimes.containsKey(name)) {
+                        phaseTimes.put(name, new ArrayList<Double>());
+                    }
+                    phaseTimes.get(name).add(phasesJson.getDouble(name));
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Skip bad history line: " + e.getMessage());
+            }
+        }
+        JSONObject percentiles = new JSONObject();
+        try {
+            for (Map.Entry<String, List<Double>> entry : phaseTimes.entrySet()) {
+                List<Double> times = entry.getValue();
+                Collections.sort(times);
+                JSONObject phase = new JSONObject();
+                phase.put("count", times.size());
+                phase.put("p50", getPercentile(times, 50));
+                phase.put("p90", getPercentile(times, 90));
+                phase.put("p99", getPercentile(times, 99));
+                percentiles.put(entry.getKey(), phase);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Percentiles JSON error: " + e.getMessage());
+        }
+        return percentiles;
+    }
+
+    // Nearest rank percentile of sorted |times|.
+    private static double getPercentile(List<Double> times, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * times.size());
+        return times.get(Math.max(rank, 1) - 1);
+    }
+
+    // Rounds to 0.1 ms.
+    private static double toMs(long ns) {
+        return Math.round(ns / 100000.0) / 10.0;
+    }
+
+    private static File getHistoryFile(Context context) {
+        return new File(context.getFilesDir(), HISTORY_FILE_NAME);
+    }
+
+    private static List<String> readHistory(File file) {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read call setup history", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void writeHistory(File file, List<String> lines) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write call setup history", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+}
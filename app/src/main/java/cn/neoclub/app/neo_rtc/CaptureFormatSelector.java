@@ -0,0 +1,95 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.util.Log;
+
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+import org.webrtc.VideoCapturer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the native camera format closest to the requested capture size and fps.
+ * <p/>
+ * <p>Capturing at a format the camera supports natively avoids a full frame
+ * scale on every frame. Formats are ranked by a cost built from the area
+ * difference, the aspect ratio difference and how far the fps range is from
+ * the requested fps. Results are cached per camera and request because
+ * querying formats may open the camera.
+ */
+public class CaptureFormatSelector {
+    private static final String TAG = "CaptureFormatSelector";
+
+    // Cost weights. Upscaling a smaller format costs more than downscaling,
+    // and a format that can't reach the requested fps costs the most.
+    private static final double AREA_WEIGHT = 1.0;
+    private static final double UPSCALE_WEIGHT = 2.0;
+    private static final double ASPECT_RATIO_WEIGHT = 4.0;
+    private static final double FPS_WEIGHT = 0.5;
+    private static final double LOW_FPS_WEIGHT = 8.0;
+
+    private static final Map<String, CaptureFormat> cache = new HashMap<>();
+
+    private CaptureFormatSelector() {
+    }
+
+    /**
+     * Returns the closest native format of |capturer| for the requested size
+     * and fps, or null if the camera reports no formats. |cameraKey| must
+     * identify the camera and camera API the capturer uses.
+     */
+    public static synchronized CaptureFormat select(String cameraKey, VideoCapturer capturer,
+                                                    int width, int height, int fps) {
+        String key = cameraKey + ":" + width + "x" + height + "@" + fps;
+        if (cache.containsKey(key)) {
+            return cache.get(key);
+        }
+        List<CaptureFormat> formats = null;
+        try {
+            formats = capturer.getSupportedFormats();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to get supported formats for " + cameraKey, e);
+        }
+        CaptureFormat bestFormat = null;
+        if (formats != null) {
+            double bestCost = Double.MAX_VALUE;
+            for (CaptureFormat format : formats) {
+                double cost = getCost(format, width, height, fps);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestFormat = format;
+                }
+            }
+        }
+        Log.d(TAG, "Selected " + bestFormat + " for " + key);
+        cache.put(key, bestFormat);
+        return bestFormat;
+    }
+
+    // Camera framerate ranges are in fps * 1000.
+    private static double getCost(CaptureFormat format, int width, int height, int fps) {
+        double requestedArea = (double) width * height;
+        double area = (double) format.width * format.height;
+        double areaCost = Math.abs(area - requestedArea) / requestedArea;
+        if (area < requestedArea) {
+            areaCost *= UPSCALE_WEIGHT;
+        }
+
+        // Compare aspect ratios independent of orientation.
+        double requestedAspectRatio = (double) Math.max(width, height) / Math.min(width, height);
+        double aspectRatio = (double) Math.max(format.width, format.height)
+                / Math.min(format.width, format.height);
+        double aspectRatioCost = Math.abs(aspectRatio - requestedAspectRatio) / requestedAspectRatio;
+
+        double requestedFps = fps * 1000.0;
+        double fpsCost = 0;
+        if (format.framerate.max < requestedFps) {
+            fpsCost = LOW_FPS_WEIGHT * (requestedFps - format.framerate.max) / requestedFps;
+        } else if (format.framerate.min > requestedFps) {
+            fpsCost = FPS_WEIGHT * (format.framerate.min - requestedFps) / requestedFps;
+        }
+
+        return AREA_WEIGHT * areaCost + ASPECT_RATIO_WEIGHT * aspectRatioCost + fpsCost;
+    }
+}
@@ -1,5 +1,6 @@
 package cn.neoclub.app.neo_rtc;
 
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -27,6 +28,10 @@ public class ConnectActivity extends AppCompatActivity {
     private EditText roomEditText;
 
     private EditText etClient;
+    private boolean resumed;
+    // Set once the fields were filled from the preferences, until then
+    // they would overwrite the saved ids with empty ones.
+    private boolean fieldsLoaded;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -56,15 +61,40 @@ public class ConnectActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         super.onPause();
-        ContentManager.setContentClientid(this, etClient.getText().toString());
-        ContentManager.setContentRoomid(this, roomEditText.getText().toString());
+        resumed = false;
+        if (fieldsLoaded) {
+            ContentManager.setContentClientid(this, etClient.getText().toString());
+            ContentManager.setContentRoomid(this, roomEditText.getText().toString());
+        }
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        roomEditText.setText(ContentManager.getContentRoomid(this));
-        etClient.setText(ContentManager.getContentClientid(this));
+        resumed = true;
+        if (fieldsLoaded) {
+            // The fields hold what onPause() saved.
+            return;
+        }
+        // Don't wait for the disk on a cold start, fill in once loaded.
+        NeoRtcApplication.runWhenPreferencesLoaded(new Runnable() {
+            @Override
+            public void run() {
+                if (resumed && !fieldsLoaded) {
+                    Context context = ConnectActivity.this;
+                    fillIfEmpty(roomEditText, ContentManager.getContentRoomid(context));
+                    fillIfEmpty(etClient, ContentManager.getContentClientid(context));
+                    fieldsLoaded = true;
+                }
+            }
+        });
+    }
+
+    // Keeps what the user typed while the preferences were loading.
+    private static void fillIfEmpty(EditText field, String value) {
+        if (field.getText().length() == 0) {
+            field.setText(value);
+        }
     }
 
     @Override
@@ -124,6 +154,8 @@ public class ConnectActivity extends AppCompatActivity {
 
     private void create() {
         String url = ContentManager.CREATE_URL;
+        CallSetupTracer.getInstance().start();
+        CallSetupTracer.getInstance().mark(CallSetupTracer.LOGIN_REQUEST);
 
         AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
                 "POST", url, getContent(), new AsyncHttpURLConnection.AsyncHttpEvents() {
@@ -134,6 +166,7 @@ public class ConnectActivity extends AppCompatActivity {
 
             @Override
             public void onHttpComplete(String response) {
+                CallSetupTracer.getInstance().mark(CallSetupTracer.LOGIN_RESPONSE);
                 try {
                     Log.e(TAG, response);
                     JSONObject json = new JSONObject(response);
@@ -167,6 +200,8 @@ public class ConnectActivity extends AppCompatActivity {
 
     private void join() {
         String url = ContentManager.JOIN_URL;
+        CallSetupTracer.getInstance().start();
+        CallSetupTracer.getInstance().mark(CallSetupTracer.LOGIN_REQUEST);
 
         AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
                 "POST", url, getContent(), new AsyncHttpURLConnection.AsyncHttpEvents() {
@@ -177,6 +212,7 @@ public class ConnectActivity extends AppCompatActivity {
 
             @Override
             public void onHttpComplete(String response) {
+                CallSetupTracer.getInstance().mark(CallSetupTracer.LOGIN_RESPONSE);
                 try {
                     Log.e(TAG, response);
                     JSONObject json = new JSONObject(response);
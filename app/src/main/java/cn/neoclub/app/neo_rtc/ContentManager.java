@@ -7,6 +7,13 @@ public class ContentManager {
     private static final String PREFERENCES_NAME = ".content";
     private static final String CONTENT_ROOMID = "roomId";
     private static final String CONTENT_CLIENTID = "clientId";
+    private static final String CONTENT_CODEC_FINGERPRINT = "codecFingerprint";
+    private static final String CONTENT_CODEC_CAPABILITIES = "codecCapabilities";
+    private static final String CONTENT_TEXTURE_FAILED_FINGERPRINT = "textureFailedFingerprint";
+    private static final String CONTENT_TCP_TRANSPORT_PREFIX = "tcpTransport/";
+    private static final String CONTENT_DIAGNOSTICS_AEC_DUMP = "diagnosticsAecDump";
+    private static final String CONTENT_DIAGNOSTICS_NATIVE_LOGS = "diagnosticsNativeLogs";
+    private static final String CONTENT_DIAGNOSTICS_CALLS = "diagnosticsCalls";
 
     public static final String WSS_URL = "wss://rtc.neoclub.cn";
     public static final String JOIN_URL = "https://rtc.neoclub.cn" + "/login/join";
@@ -14,7 +21,15 @@ public class ContentManager {
     public static final String XIRSYS_URL = "https://service.xirsys.com/ice?ident=payonxp&secret=e6d7466a-2a01-11e6-84a1-a42b5b4d6e65&domain=rtc.neoclub.cn&application=neoclub&room=neoclub-room&secure=1";
 
 
-    private static SharedPreferences preferences;
+    private static volatile SharedPreferences preferences;
+
+    /**
+     * Reads the preferences into memory, blocking until they are. Called off
+     * the UI thread at startup so later reads don't wait for the disk.
+     */
+    public static void preload(Context context) {
+        getSharedPreferences(context).getAll();
+    }
 
     public static void setContentRoomid(Context context, String roomId) {
         getSharedPreferences(context).edit()
@@ -28,6 +43,42 @@ public class ContentManager {
                 .apply();
     }
 
+    public static void setVideoCodecCapabilities(Context context, String fingerprint,
+                                                 int capabilities) {
+        getSharedPreferences(context).edit()
+                .putString(CONTENT_CODEC_FINGERPRINT, fingerprint)
+                .putInt(CONTENT_CODEC_CAPABILITIES, capabilities)
+                .apply();
+    }
+
+    public static void setTextureCaptureFailed(Context context, String fingerprint) {
+        getSharedPreferences(context).edit()
+                .putString(CONTENT_TEXTURE_FAILED_FINGERPRINT, fingerprint)
+                .apply();
+    }
+
+    public static void setTcpTransportRequired(Context context, String network,
+                                               boolean required) {
+        getSharedPreferences(context).edit()
+                .putBoolean(CONTENT_TCP_TRANSPORT_PREFIX + network, required)
+                .apply();
+    }
+
+    public static void setDiagnosticsRequest(Context context, boolean aecDump,
+                                             boolean nativeLogs, int calls) {
+        getSharedPreferences(context).edit()
+                .putBoolean(CONTENT_DIAGNOSTICS_AEC_DUMP, aecDump)
+                .putBoolean(CONTENT_DIAGNOSTICS_NATIVE_LOGS, nativeLogs)
+                .putInt(CONTENT_DIAGNOSTICS_CALLS, calls)
+                .apply();
+    }
+
+    public static void setDiagnosticsCalls(Context context, int calls) {
+        getSharedPreferences(context).edit()
+                .putInt(CONTENT_DIAGNOSTICS_CALLS, calls)
+                .apply();
+    }
+
     public static void clear(Context context) {
         getSharedPreferences(context)
                 .edit()
@@ -43,11 +94,47 @@ public class ContentManager {
         return getSharedPreferences(context).getString(CONTENT_CLIENTID, "");
     }
 
+    // Returns -1 if capabilities were not probed on this OS build yet.
+    public static int getVideoCodecCapabilities(Context context, String fingerprint) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        if (!fingerprint.equals(preferences.getString(CONTENT_CODEC_FINGERPRINT, ""))) {
+            return -1;
+        }
+        return preferences.getInt(CONTENT_CODEC_CAPABILITIES, -1);
+    }
+
+    public static boolean isTextureCaptureFailed(Context context, String fingerprint) {
+        return fingerprint.equals(getSharedPreferences(context)
+                .getString(CONTENT_TEXTURE_FAILED_FINGERPRINT, ""));
+    }
+
+    // Returns true if only TCP or TLS transports connected on |network| last time.
+    public static boolean isTcpTransportRequired(Context context, String network) {
+        return getSharedPreferences(context)
+                .getBoolean(CONTENT_TCP_TRANSPORT_PREFIX + network, false);
+    }
+
+    public static boolean isDiagnosticsAecDump(Context context) {
+        return getSharedPreferences(context).getBoolean(CONTENT_DIAGNOSTICS_AEC_DUMP, false);
+    }
+
+    public static boolean isDiagnosticsNativeLogs(Context context) {
+        return getSharedPreferences(context).getBoolean(CONTENT_DIAGNOSTICS_NATIVE_LOGS, false);
+    }
+
+    // Returns the number of calls diagnostics are still requested for.
+    public static int getDiagnosticsCalls(Context context) {
+        return getSharedPreferences(context).getInt(CONTENT_DIAGNOSTICS_CALLS, 0);
+    }
 
     private static SharedPreferences getSharedPreferences(Context context) {
-        if (preferences == null) {
-            preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        SharedPreferences current = preferences;
+        if (current == null) {
+            // The context returns the same instance on every thread.
+            current = context.getApplicationContext()
+                    .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            preferences = current;
         }
-        return preferences;
+        return current;
     }
 }
@@ -21,12 +21,17 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import cn.neoclub.rtc.core.CpuUsageCalculator;
+import cn.neoclub.rtc.core.CpuUsageCalculator.ProcStat;
+import cn.neoclub.rtc.core.MovingAverage;
+
+import static cn.neoclub.rtc.core.CpuUsageCalculator.toPercent;
+
 /**
  * Simple CPU monitor.  The caller creates a CpuMonitor object which can then
  * be used via sampleCpuUtilization() to collect the percentual use of the
@@ -77,14 +82,7 @@ class CpuMonitor {
   private static final int CPU_STAT_LOG_PERIOD_MS = 6000;
 
   private final Context appContext;
-  // User CPU usage at current frequency.
-  private final MovingAverage userCpuUsage;
-  // System CPU usage at current frequency.
-  private final MovingAverage systemCpuUsage;
-  // Total CPU usage relative to maximum frequency.
-  private final MovingAverage totalCpuUsage;
-  // CPU frequency in percentage from maximum.
-  private final MovingAverage frequencyScale;
+  private final CpuUsageCalculator cpuUsage;
 
   private ScheduledExecutorService executor;
   private long lastStatLogTimeMs;
@@ -96,68 +94,11 @@ class CpuMonitor {
   private String[] maxPath;
   private String[] curPath;
   private double[] curFreqScales;
-  private ProcStat lastProcStat;
-
-  private static class ProcStat {
-    final long userTime;
-    final long systemTime;
-    final long idleTime;
-
-    ProcStat(long userTime, long systemTime, long idleTime) {
-      this.userTime = userTime;
-      this.systemTime = systemTime;
-      this.idleTime = idleTime;
-    }
-  }
-
-  private static class MovingAverage {
-    private final int size;
-    private double sum;
-    private double currentValue;
-    private double circBuffer[];
-    private int circBufferIndex;
-
-    public MovingAverage(int size) {
-      if (size <= 0) {
-        throw new AssertionError("Size value in MovingAverage ctor should be positive.");
-      }
-      this.size = size;
-      circBuffer = new double[size];
-    }
-
-    public void reset() {
-      Arrays.fill(circBuffer, 0);
-      circBufferIndex = 0;
-      sum = 0;
-      currentValue = 0;
-    }
-
-    public void addValue(double value) {
-      sum -= circBuffer[circBufferIndex];
-      circBuffer[circBufferIndex++] = value;
-      currentValue = value;
-      sum += value;
-      if (circBufferIndex >= size) {
-        circBufferIndex = 0;
-      }
-    }
-
-    public double getCurrent() {
-      return currentValue;
-    }
-
-    public double getAverage() {
-      return sum / (double) size;
-    }
-  }
 
   public CpuMonitor(Context context) {
     Log.d(TAG, "CpuMonitor ctor.");
     appContext = context.getApplicationContext();
-    userCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
-    systemCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
-    totalCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
-    frequencyScale = new MovingAverage(MOVING_AVERAGE_SAMPLES);
+    cpuUsage = new CpuUsageCalculator(MOVING_AVERAGE_SAMPLES);
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
 
     scheduleCpuUtilizationTask();
@@ -186,15 +127,17 @@ class CpuMonitor {
   }
 
   public synchronized int getCpuUsageCurrent() {
-    return doubleToPercent(userCpuUsage.getCurrent() + systemCpuUsage.getCurrent());
+    return toPercent(
+        cpuUsage.getUserCpuUsage().getCurrent() + cpuUsage.getSystemCpuUsage().getCurrent());
   }
 
   public synchronized int getCpuUsageAverage() {
-    return doubleToPercent(userCpuUsage.getAverage() + systemCpuUsage.getAverage());
+    return toPercent(
+        cpuUsage.getUserCpuUsage().getAverage() + cpuUsage.getSystemCpuUsage().getAverage());
   }
 
   public synchronized int getFrequencyScaleAverage() {
-    return doubleToPercent(frequencyScale.getAverage());
+    return toPercent(cpuUsage.getFrequencyScale().getAverage());
   }
 
   private void scheduleCpuUtilizationTask() {
@@ -214,6 +157,10 @@ class CpuMonitor {
 
   private void cpuUtilizationTask() {
     boolean cpuMonitorAvailable = sampleCpuUtilization();
+    if (cpuMonitorAvailable) {
+      FlightRecorder.record(FlightRecorder.CPU, getCpuUsageCurrent(),
+          getFrequencyScaleAverage());
+    }
     if (cpuMonitorAvailable
         && SystemClock.elapsedRealtime() - lastStatLogTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
       lastStatLogTimeMs = SystemClock.elapsedRealtime();
@@ -253,17 +200,13 @@ class CpuMonitor {
       curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
     }
 
-    lastProcStat = new ProcStat(0, 0, 0);
     resetStat();
 
     initialized = true;
   }
 
   private synchronized void resetStat() {
-    userCpuUsage.reset();
-    systemCpuUsage.reset();
-    totalCpuUsage.reset();
-    frequencyScale.reset();
+    cpuUsage.reset();
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
   }
 
@@ -350,74 +293,32 @@ class CpuMonitor {
       return false;
     }
 
-    /*
-     * Since the cycle counts are for the period between the last invocation
-     * and this present one, we average the percentual CPU frequencies between
-     * now and the beginning of the measurement period.  This is significantly
-     * incorrect only if the frequencies have peeked or dropped in between the
-     * invocations.
-     */
-    double currentFrequencyScale = cpuFreqCurSum / (double) cpuFreqMaxSum;
-    if (frequencyScale.getCurrent() > 0) {
-      currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
-    }
-
-    ProcStat procStat = readProcStat();
-    if (procStat == null) {
-      return false;
-    }
-
-    long diffUserTime = procStat.userTime - lastProcStat.userTime;
-    long diffSystemTime = procStat.systemTime - lastProcStat.systemTime;
-    long diffIdleTime = procStat.idleTime - lastProcStat.idleTime;
-    long allTime = diffUserTime + diffSystemTime + diffIdleTime;
-
-    if (currentFrequencyScale == 0 || allTime == 0) {
-      return false;
-    }
-
-    // Update statistics.
-    frequencyScale.addValue(currentFrequencyScale);
-
-    double currentUserCpuUsage = diffUserTime / (double) allTime;
-    userCpuUsage.addValue(currentUserCpuUsage);
-
-    double currentSystemCpuUsage = diffSystemTime / (double) allTime;
-    systemCpuUsage.addValue(currentSystemCpuUsage);
-
-    double currentTotalCpuUsage =
-        (currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale;
-    totalCpuUsage.addValue(currentTotalCpuUsage);
-
-    // Save new measurements for next round's deltas.
-    lastProcStat = procStat;
-
-    return true;
-  }
-
-  private int doubleToPercent(double d) {
-    return (int) (d * 100 + 0.5);
+    return cpuUsage.addSample(cpuFreqCurSum, cpuFreqMaxSum, readProcStat());
   }
 
   private synchronized String getStatString() {
+    MovingAverage userCpuUsage = cpuUsage.getUserCpuUsage();
+    MovingAverage systemCpuUsage = cpuUsage.getSystemCpuUsage();
+    MovingAverage frequencyScale = cpuUsage.getFrequencyScale();
+    MovingAverage totalCpuUsage = cpuUsage.getTotalCpuUsage();
     StringBuilder stat = new StringBuilder();
     stat.append("CPU User: ")
-        .append(doubleToPercent(userCpuUsage.getCurrent())).append("/")
-        .append(doubleToPercent(userCpuUsage.getAverage()))
+        .append(toPercent(userCpuUsage.getCurrent())).append("/")
+        .append(toPercent(userCpuUsage.getAverage()))
         .append(". System: ")
-        .append(doubleToPercent(systemCpuUsage.getCurrent())).append("/")
-        .append(doubleToPercent(systemCpuUsage.getAverage()))
+        .append(toPercent(systemCpuUsage.getCurrent())).append("/")
+        .append(toPercent(systemCpuUsage.getAverage()))
         .append(". Freq: ")
-        .append(doubleToPercent(frequencyScale.getCurrent())).append("/")
-        .append(doubleToPercent(frequencyScale.getAverage()))
+        .append(toPercent(frequencyScale.getCurrent())).append("/")
+        .append(toPercent(frequencyScale.getAverage()))
         .append(". Total usage: ")
-        .append(doubleToPercent(totalCpuUsage.getCurrent())).append("/")
-        .append(doubleToPercent(totalCpuUsage.getAverage()))
+        .append(toPercent(totalCpuUsage.getCurrent())).append("/")
+        .append(toPercent(totalCpuUsage.getAverage()))
         .append(". Cores: ")
         .append(actualCpusPresent);
     stat.append("( ");
     for (int i = 0; i < cpusPresent; i++) {
-      stat.append(doubleToPercent(curFreqScales[i])).append(" ");
+      stat.append(toPercent(curFreqScales[i])).append(" ");
     }
     stat.append("). Battery: ").append(getBatteryLevel());
     if (cpuOveruse) {
@@ -465,42 +366,22 @@ class CpuMonitor {
    * of /proc/stat.
    */
   private ProcStat readProcStat() {
-    long userTime = 0;
-    long systemTime = 0;
-    long idleTime = 0;
     try {
       BufferedReader reader = new BufferedReader(new FileReader("/proc/stat"));
       try {
-        // line should contain something like this:
-        // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-        //       user    nice  system     idle   iowait  irq   softirq
-        String line = reader.readLine();
-        String lines[] = line.split("\\s+");
-        int length = lines.length;
-        if (length >= 5) {
-          userTime = parseLong(lines[1]);  // user
-          userTime += parseLong(lines[2]);  // nice
-          systemTime = parseLong(lines[3]); // system
-          idleTime = parseLong(lines[4]); // idle
+        ProcStat procStat = CpuUsageCalculator.parseProcStatLine(reader.readLine());
+        if (procStat == null) {
+          Log.e(TAG, "Problems parsing /proc/stat");
         }
-        if (length >= 8) {
-          userTime += parseLong(lines[5]);  // iowait
-          systemTime += parseLong(lines[6]); // irq
-          systemTime += parseLong(lines[7]); // softirq
-        }
-      } catch (Exception e) {
-        Log.e(TAG, "Problems parsing /proc/stat", e);
-        return null;
+        return procStat;
       } finally {
         reader.close();
       }
     } catch (FileNotFoundException e) {
       Log.e(TAG, "Cannot open /proc/stat for reading", e);
-      return null;
     } catch (IOException e) {
       Log.e(TAG, "Problems reading /proc/stat", e);
-      return null;
     }
-    return new ProcStat(userTime, systemTime, idleTime);
+    return null;
   }
 }
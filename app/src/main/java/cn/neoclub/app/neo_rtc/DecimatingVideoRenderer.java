@@ -0,0 +1,44 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.os.SystemClock;
+
+import org.webrtc.VideoRenderer;
+
+/**
+ * Video renderer decorator which passes frames on at a reduced rate.
+ * <p/>
+ * <p>Used for the local preview: drawing a small self view at full camera
+ * rate costs GPU time and battery for no visible gain. Frames are dropped
+ * until the next render time, with a quarter interval tolerance so camera
+ * jitter doesn't skip frames that are on time. Dropped frames are released
+ * here. A max fps of 0 passes every frame.
+ */
+public class DecimatingVideoRenderer implements VideoRenderer.Callbacks {
+    private final VideoRenderer.Callbacks target;
+    private volatile int maxFps;
+    // Accessed on the render thread only.
+    private long nextRenderTimeNs;
+
+    public DecimatingVideoRenderer(VideoRenderer.Callbacks target) {
+        this.target = target;
+    }
+
+    public void setMaxFps(int maxFps) {
+        this.maxFps = maxFps;
+    }
+
+    @Override
+    public void renderFrame(VideoRenderer.I420Frame frame) {
+        int fps = maxFps;
+        if (fps > 0) {
+            long nowNs = SystemClock.elapsedRealtimeNanos();
+            long intervalNs = 1000000000L / fps;
+            if (nowNs < nextRenderTimeNs - intervalNs / 4) {
+                VideoRenderer.renderFrameDone(frame);
+                return;
+            }
+            nextRenderTimeNs = Math.max(nextRenderTimeNs, nowNs - intervalNs) + intervalNs;
+        }
+        target.renderFrame(frame);
+    }
+}
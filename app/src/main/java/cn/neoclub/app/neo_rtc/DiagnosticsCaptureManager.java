@@ -0,0 +1,165 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.webrtc.CallSessionFileRotatingLogSink;
+import org.webrtc.Logging;
+import org.webrtc.PeerConnectionFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Captures AEC dumps and native WebRTC logs of a call to app storage.
+ * <p/>
+ * <p>Capture is enabled by the aecDump call parameter, or remotely: the
+ * signaling server can request it for the next few calls of a user, the
+ * request is kept in ContentManager. Every call gets its own directory
+ * under files/diagnostics, only the last MAX_CALLS are kept. The AEC dump
+ * stops growing at AEC_DUMP_MAX_BYTES, native logs rotate within
+ * LOG_MAX_BYTES.
+ */
+public class DiagnosticsCaptureManager {
+    private static final String TAG = "DiagnosticsCapture";
+    private static final String DIRECTORY_NAME = "diagnostics";
+    private static final String AEC_DUMP_FILE_NAME = "audio.aecdump";
+    private static final int MAX_CALLS = 5;
+    private static final int AEC_DUMP_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int LOG_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final File callDirectory;
+    private ParcelFileDescriptor aecDumpFileDescriptor;
+    private CallSessionFileRotatingLogSink logSink;
+
+    private DiagnosticsCaptureManager(File callDirectory) {
+        this.callDirectory = callDirectory;
+    }
+
+    /**
+     * Requests diagnostics for the next |calls| calls, 0 cancels a request.
+     */
+    public static void setRequest(Context context, boolean aecDump, boolean nativeLogs,
+                                  int calls) {
+        Log.d(TAG, "Diagnostics requested for " + calls + " calls. AEC dump: " + aecDump
+                + ", native logs: " + nativeLogs);
+        ContentManager.setDiagnosticsRequest(context, aecDump, nativeLogs, calls);
+    }
+
+    public static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Starts capture for a new call if enabled by |aecDump| or a remote
+     * request. Must be called while |factory| is alive. Returns null if
+     * nothing is captured.
+     */
+    public static DiagnosticsCaptureManager startCall(Context context,
+                                                      PeerConnectionFactory factory,
+                                                      boolean aecDump) {
+        boolean nativeLogs = false;
+        int requestedCalls = ContentManager.getDiagnosticsCalls(context);
+        if (requestedCalls > 0) {
+            aecDump |= ContentManager.isDiagnosticsAecDump(context);
+            nativeLogs = ContentManager.isDiagnosticsNativeLogs(context);
+            ContentManager.setDiagnosticsCalls(context, requestedCalls - 1);
+        }
+        if (!aecDump && !nativeLogs) {
+            return null;
+        }
+
+        File directory = getDirectory(context);
+        deleteOldCalls(directory);
+        File callDirectory = new File(directory,
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+        if (!callDirectory.isDirectory() && !callDirectory.mkdirs()) {
+            Log.e(TAG, "Can not create " + callDirectory);
+            return null;
+        }
+        Log.d(TAG, "Capture diagnostics to " + callDirectory + ". AEC dump: " + aecDump
+                + ", native logs: " + nativeLogs);
+        DiagnosticsCaptureManager capture = new DiagnosticsCaptureManager(callDirectory);
+        if (aecDump) {
+            capture.startAecDump(factory);
+        }
+        if (nativeLogs) {
+            capture.logSink = new CallSessionFileRotatingLogSink(
+                    callDirectory.getAbsolutePath(), LOG_MAX_BYTES, Logging.Severity.LS_INFO);
+        }
+        return capture;
+    }
+
+    /**
+     * Stops capture, must be called before |factory| is disposed.
+     */
+    public void stop(PeerConnectionFactory factory) {
+        if (aecDumpFileDescriptor != null) {
+            factory.stopAecDump();
+            try {
+                aecDumpFileDescriptor.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Can not close AEC dump file", e);
+            }
+            aecDumpFileDescriptor = null;
+        }
+        if (logSink != null) {
+            logSink.dispose();
+            logSink = null;
+        }
+        Log.d(TAG, "Diagnostics captured to " + callDirectory);
+    }
+
+    private void startAecDump(PeerConnectionFactory factory) {
+        try {
+            aecDumpFileDescriptor = ParcelFileDescriptor.open(
+                    new File(callDirectory, AEC_DUMP_FILE_NAME),
+                    ParcelFileDescriptor.MODE_READ_WRITE
+                            | ParcelFileDescriptor.MODE_CREATE
+                            | ParcelFileDescriptor.MODE_TRUNCATE);
+        } catch (IOException e) {
+            Log.e(TAG, "Can not open AEC dump file", e);
+            return;
+        }
+        if (!factory.startAecDump(aecDumpFileDescriptor.getFd(), AEC_DUMP_MAX_BYTES)) {
+            Log.e(TAG, "Can not start AEC dump");
+            try {
+                aecDumpFileDescriptor.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            aecDumpFileDescriptor = null;
+        }
+    }
+
+    // Leaves room for one more call in the ring. Directory names are
+    // timestamps, so name order is call order.
+    private static void deleteOldCalls(File directory) {
+        File[] calls = directory.listFiles();
+        if (calls == null || calls.length < MAX_CALLS) {
+            return;
+        }
+        Arrays.sort(calls);
+        for (int i = 0; i <= calls.length - MAX_CALLS; i++) {
+            Log.d(TAG, "Delete old diagnostics " + calls[i]);
+            deleteRecursively(calls[i]);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            Log.w(TAG, "Can not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package cn.neoclub.app.neo_rtc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process event ring kept during calls and dumped on crashes.
+ * <p/>
+ * <p>Events are a type and two long arguments, written into CAPACITY
+ * preallocated slots: recording takes no lock and allocates nothing, so it
+ * can be called from any thread on hot paths. Each slot carries a stamp,
+ * cleared before and set after the event is written, so dump() skips slots
+ * being overwritten while it reads them. Event fields are atomic array
+ * elements too, written with ordered stores and read with volatile loads,
+ * so they can't move past either stamp and a copied event is never torn.
+ * The newest CAPACITY events are kept.
+ * <p>
+ * dump() writes the ring in the binary format read by FlightRecorderDecoder:
+ * a header of MAGIC, VERSION, wall clock ms and System.nanoTime() at dump
+ * time, the reason and the event count, followed by events of time ns, type
+ * and both arguments, oldest first. Only the last MAX_DUMPS dumps are kept.
+ * This class uses no Android API, so the decoder runs on a desktop JVM.
+ */
+public class FlightRecorder {
+    public static final int MAGIC = 0x4e465231; // "NFR1"
+    public static final int VERSION = 1;
+    public static final String DIRECTORY_NAME = "flight_recorder";
+
+    // Event types and their arguments.
+    // WebSocketChannelClient.WebSocketConnectionState ordinal.
+    public static final int WEBSOCKET_STATE = 1;
+    // Signaling message cmd hash code and length, see signalingCmdHash().
+    public static final int SIGNALING_SENT = 2;
+    public static final int SIGNALING_RECEIVED = 3;
+    public static final int PEER_SIGNALING_SENT = 4;
+    public static final int PEER_SIGNALING_RECEIVED = 5;
+    // PeerConnection state enum ordinals.
+    public static final int ICE_CONNECTION_STATE = 6;
+    public static final int ICE_GATHERING_STATE = 7;
+    public static final int SIGNALING_STATE = 8;
+    // ICE restart count, time since ICE was lost in ms.
+    public static final int ICE_RESTART = 9;
+    // Available send and receive bandwidth in bps, -1 if not reported.
+    public static final int BANDWIDTH = 10;
+    // Audio packets sent and lost, totals of the call.
+    public static final int AUDIO_PACKETS = 11;
+    // Current CPU use and average frequency scale, in percent.
+    public static final int CPU = 12;
+    // Peer connection or signaling error, 1 for the peer connection and 2
+    // for signaling.
+    public static final int ERROR = 13;
+    public static final int ERROR_PEER_CONNECTION = 1;
+    public static final int ERROR_SIGNALING = 2;
+
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_DUMPS = 5;
+    // Time ns, type, arg1 and arg2 of an event.
+    private static final int FIELDS = 4;
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray events = new AtomicLongArray(CAPACITY * FIELDS);
+
+    private FlightRecorder() {
+    }
+
+    public static void record(int type, long arg1, long arg2) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & MASK);
+        int index = slot * FIELDS;
+        stamps.set(slot, 0);
+        // Ordered stores stay after the stamp is cleared and before it is set.
+        events.lazySet(index, System.nanoTime());
+        events.lazySet(index + 1, type);
+        events.lazySet(index + 2, arg1);
+        events.lazySet(index + 3, arg2);
+        stamps.lazySet(slot, seq + 1);
+    }
+
+    public static void record(int type, long arg1) {
+        record(type, arg1, 0);
+    }
+
+    /**
+     * Returns the value recorded for signaling message |cmd|, the decoder
+     * maps it back to known cmd names.
+     */
+    public static int signalingCmdHash(String cmd) {
+        return cmd.hashCode();
+    }
+
+    /**
+     * Writes the ring to a new file in |directory|. Returns the file, null
+     * if it could not be written.
+     */
+    public static File dump(File directory, String reason) {
+        long wallTimeMs = System.currentTimeMillis();
+        long nowNs = System.nanoTime();
+        // Copy first, so the events around the dump are not overwritten
+        // while writing.
+        long end = sequence.get();
+        long start = Math.max(0, end - CAPACITY);
+        int count = 0;
+        long[] copyTimesNs = new long[CAPACITY];
+        int[] copyTypes = new int[CAPACITY];
+        long[] copyArgs1 = new long[CAPACITY];
+        long[] copyArgs2 = new long[CAPACITY];
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & MASK);
+            if (stamps.get(slot) != seq + 1) {
+                continue;
+            }
+            int index = slot * FIELDS;
+            copyTimesNs[count] = events.get(index);
+            copyTypes[count] = (int) events.get(index + 1);
+            copyArgs1[count] = events.get(index + 2);
+            copyArgs2[count] = events.get(index + 3);
+            // Any field from a newer event means the stamp was cleared.
+            if (stamps.get(slot) == seq + 1) {
+                count++;
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return null;
+        }
+        deleteOldDumps(directory);
+        File file = new File(directory, "flight-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(wallTimeMs))
+                + ".bin");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(wallTimeMs);
+            out.writeLong(nowNs);
+            out.writeUTF(reason == null ? "" : reason);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(copyTimesNs[i]);
+                out.writeInt(copyTypes[i]);
+                out.writeLong(copyArgs1[i]);
+                out.writeLong(copyArgs2[i]);
+            }
+            out.close();
+            out = null;
+            return file;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    // Leaves room for one more dump. File names are timestamps, so name
+    // order is dump order.
+    private static void deleteOldDumps(File directory) {
+        File[] dumps = directory.listFiles();
+        if (dumps == null || dumps.length < MAX_DUMPS) {
+            return;
+        }
+        Arrays.sort(dumps);
+        for (int i = 0; i <= dumps.length - MAX_DUMPS; i++) {
+            dumps[i].delete();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cn.neoclub.app.neo_rtc;
+
+import org.webrtc.PeerConnection;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prints FlightRecorder dumps as text, one event per line.
+ * <p/>
+ * <p>Runs on a desktop JVM with the app classes and the WebRTC jar on the
+ * classpath, on dumps pulled from files/flight_recorder:
+ * <pre>
+ * java -cp classes:libjingle_peerconnection_java.jar \
+ *     cn.neoclub.app.neo_rtc.FlightRecorderDecoder flight-*.bin
+ * </pre>
+ */
+public class FlightRecorderDecoder {
+    // Signaling cmds used by the app and the server.
+    private static final String[] SIGNALING_CMDS = {
+            "register", "loginack", "offer", "answer", "ice", "remove-candidates", "video",
+            "view", "diagnostics", "leave", "hangup", "bye", "browser"
+    };
+
+    private final Map<Integer, String> signalingCmds = new HashMap<>();
+
+    public FlightRecorderDecoder() {
+        for (String cmd : SIGNALING_CMDS) {
+            signalingCmds.put(FlightRecorder.signalingCmdHash(cmd), cmd);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: FlightRecorderDecoder <dump file>...");
+            System.exit(2);
+        }
+        FlightRecorderDecoder decoder = new FlightRecorderDecoder();
+        for (String path : args) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(path)));
+            try {
+                decoder.decode(in, System.out);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    public void decode(DataInputStream in, PrintStream out) throws IOException {
+        if (in.readInt() != FlightRecorder.MAGIC) {
+            throw new IOException("Not a flight recorder dump");
+        }
+        int version = in.readInt();
+        if (version != FlightRecorder.VERSION) {
+            throw new IOException("Unsupported dump version " + version);
+        }
+        long wallTimeMs = in.readLong();
+        long dumpTimeNs = in.readLong();
+        String reason = in.readUTF();
+        int count = in.readInt();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        out.println("Dump at " + format.format(new Date(wallTimeMs)) + ", reason: " + reason
+                + ", " + count + " events");
+        try {
+            for (int i = 0; i < count; i++) {
+                long timeNs = in.readLong();
+                int type = in.readInt();
+                long arg1 = in.readLong();
+                long arg2 = in.readLong();
+                long eventWallTimeMs = wallTimeMs - (dumpTimeNs - timeNs) / 1000000;
+                out.println(format.format(new Date(eventWallTimeMs)) + " "
+                        + describe(type, arg1, arg2));
+            }
+        } catch (EOFException e) {
+            out.println("Dump truncated.");
+        }
+    }
+
+    private String describe(int type, long arg1, long arg2) {
+        switch (type) {
+            case FlightRecorder.WEBSOCKET_STATE:
+                return "WebSocket " + name(WebSocketChannelClient.WebSocketConnectionState.values(),
+                        arg1);
+            case FlightRecorder.SIGNALING_SENT:
+                return "Signaling C->WSS " + signalingCmd(arg1) + ", " + arg2 + " bytes";
+            case FlightRecorder.SIGNALING_RECEIVED:
+                return "Signaling WSS->C " + signalingCmd(arg1) + ", " + arg2 + " bytes";
+            case FlightRecorder.PEER_SIGNALING_SENT:
+                return "Signaling C->peer " + signalingCmd(arg1) + ", " + arg2 + " bytes";
+            case FlightRecorder.PEER_SIGNALING_RECEIVED:
+                return "Signaling peer->C " + signalingCmd(arg1) + ", " + arg2 + " bytes";
+            case FlightRecorder.ICE_CONNECTION_STATE:
+                return "IceConnectionState "
+                        + name(PeerConnection.IceConnectionState.values(), arg1);
+            case FlightRecorder.ICE_GATHERING_STATE:
+                return "IceGatheringState "
+                        + name(PeerConnection.IceGatheringState.values(), arg1);
+            case FlightRecorder.SIGNALING_STATE:
+                return "SignalingState " + name(PeerConnection.SignalingState.values(), arg1);
+            case FlightRecorder.ICE_RESTART:
+                return "ICE restart " + arg1 + ", " + arg2 + " ms after ICE was lost";
+            case FlightRecorder.BANDWIDTH:
+                return "Bandwidth send " + arg1 + " bps, receive " + arg2 + " bps";
+            case FlightRecorder.AUDIO_PACKETS:
+                return "Audio packets sent " + arg1 + ", lost " + arg2;
+            case FlightRecorder.CPU:
+                return "CPU " + arg1 + "%, frequency " + arg2 + "%";
+            case FlightRecorder.ERROR:
+                return "Error in " + (arg1 == FlightRecorder.ERROR_PEER_CONNECTION
+                        ? "peer connection" : "signaling");
+            default:
+                return "Unknown event " + type + " " + arg1 + " " + arg2;
+        }
+    }
+
+    private String signalingCmd(long hash) {
+        String cmd = signalingCmds.get((int) hash);
+        return cmd != null ? cmd : "cmd#" + Integer.toHexString((int) hash);
+    }
+
+    private static String name(Enum<?>[] values, long ordinal) {
+        return ordinal >= 0 && ordinal < values.length ? values[(int) ordinal].name()
+                : String.valueOf(ordinal);
+    }
+}
@@ -21,8 +21,11 @@ import android.widget.TextView;
 
 import org.webrtc.StatsReport;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.neoclub.rtc.core.HudStats;
+import cn.neoclub.rtc.core.StatsReportData;
 
 /**
  * Fragment for HUD statistics display.
@@ -39,6 +42,8 @@ public class HudFragment extends Fragment {
   private boolean displayHud;
   private volatile boolean isRunning;
   private CpuMonitor cpuMonitor;
+  private InstrumentedVideoRenderer localRenderer;
+  private InstrumentedVideoRenderer remoteRenderer;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -93,6 +98,12 @@ public class HudFragment extends Fragment {
     this.cpuMonitor = cpuMonitor;
   }
 
+  public void setVideoRenderers(InstrumentedVideoRenderer localRenderer,
+                                InstrumentedVideoRenderer remoteRenderer) {
+    this.localRenderer = localRenderer;
+    this.remoteRenderer = remoteRenderer;
+  }
+
   private void hudViewsSetProperties(int visibility) {
     hudViewBwe.setVisibility(visibility);
     hudViewConnection.setVisibility(visibility);
@@ -104,12 +115,16 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<String, String>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
+  private static List<StatsReportData> toReportData(StatsReport[] reports) {
+    List<StatsReportData> reportData = new ArrayList<>(reports.length);
+    for (StatsReport report : reports) {
+      StatsReportData data = new StatsReportData(report.id, report.type);
+      for (StatsReport.Value value : report.values) {
+        data.values.put(value.name, value.value);
+      }
+      reportData.add(data);
     }
-    return reportMap;
+    return reportData;
   }
 
   public void updateEncoderStatistics(final StatsReport[] reports) {
@@ -117,79 +132,30 @@ public class HudFragment extends Fragment {
       return;
     }
     StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
-    }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
+    HudStats stats = HudStats.parse(toReportData(reports), PeerConnectionClient.VIDEO_TRACK_ID);
+    hudViewBwe.setText(stats.bweStat);
+    hudViewConnection.setText(stats.connectionStat);
+    hudViewVideoSend.setText(stats.videoSendStat);
+    hudViewVideoRecv.setText(stats.videoRecvStat);
 
     if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
+      if (stats.fps != null) {
+        encoderStat.append("Fps:  ").append(stats.fps).append("\n");
+      }
+      if (stats.targetBitrate != null) {
+        encoderStat.append("Target BR: ").append(stats.targetBitrate).append("\n");
       }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+      if (stats.actualBitrate != null) {
+        encoderStat.append("Actual BR: ").append(stats.actualBitrate).append("\n");
       }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+      if (remoteRenderer != null) {
+        encoderStat.append("Render fps: ")
+            .append(Math.round(remoteRenderer.getRenderedFps()));
+        if (localRenderer != null) {
+          encoderStat.append("/").append(Math.round(localRenderer.getRenderedFps()));
+        }
+        encoderStat.append(". Freezes: ").append(remoteRenderer.getFreezeCount())
+            .append(" (").append(remoteRenderer.getFreezeDurationMs()).append(" ms)\n");
       }
     }
 
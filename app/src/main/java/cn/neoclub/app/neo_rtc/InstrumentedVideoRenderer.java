@@ -0,0 +1,166 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.VideoRenderer;
+
+/**
+ * Video renderer decorator which measures the frames reaching a renderer.
+ * <p/>
+ * <p>Records time to first frame, the frame interval distribution, freezes,
+ * rendered fps and resolution changes, then passes every frame on to the
+ * wrapped renderer. A freeze is an interval longer than three times the
+ * average interval and at least FREEZE_MIN_MS longer than it, as in WebRTC
+ * receive stats. Nothing is allocated per frame: intervals are counted in a
+ * fixed histogram. Frames are rendered on a WebRTC thread, stats can be
+ * read from any thread.
+ */
+public class InstrumentedVideoRenderer implements VideoRenderer.Callbacks {
+    private static final String TAG = "InstrumentedRenderer";
+    private static final long FREEZE_MIN_MS = 150;
+    // Upper bounds of the frame interval histogram buckets, the last bucket
+    // takes all longer intervals.
+    private static final long[] INTERVAL_BUCKETS_MS = {20, 40, 70, 100, 200, 500};
+
+    private final String name;
+    private final VideoRenderer.Callbacks target;
+    private final Object statsLock = new Object();
+    private final long startMs;
+    private long firstFrameMs = -1;
+    private long lastFrameMs = -1;
+    private long frameCount;
+    private long intervalSumMs;
+    private long maxIntervalMs;
+    private final long[] intervalHistogram = new long[INTERVAL_BUCKETS_MS.length + 1];
+    private int freezeCount;
+    private long freezeDurationMs;
+    private int width;
+    private int height;
+    private int resolutionChangeCount;
+    // Frames since the last getRenderedFps() call.
+    private long fpsWindowStartMs;
+    private long fpsWindowFrames;
+
+    public InstrumentedVideoRenderer(String name, VideoRenderer.Callbacks target) {
+        this.name = name;
+        this.target = target;
+        startMs = SystemClock.elapsedRealtime();
+        fpsWindowStartMs = startMs;
+    }
+
+    @Override
+    public void renderFrame(VideoRenderer.I420Frame frame) {
+        long nowMs = SystemClock.elapsedRealtime();
+        int frameWidth = frame.rotatedWidth();
+        int frameHeight = frame.rotatedHeight();
+        boolean resolutionChanged = false;
+        synchronized (statsLock) {
+            if (firstFrameMs < 0) {
+                firstFrameMs = nowMs;
+            } else {
+                long intervalMs = nowMs - lastFrameMs;
+                if (frameCount > 1) {
+                    long averageIntervalMs = intervalSumMs / (frameCount - 1);
+                    if (intervalMs > 3 * averageIntervalMs
+                            && intervalMs > averageIntervalMs + FREEZE_MIN_MS) {
+                        freezeCount++;
+                        freezeDurationMs += intervalMs - averageIntervalMs;
+                    }
+                }
+                intervalSumMs += intervalMs;
+                maxIntervalMs = Math.max(maxIntervalMs, intervalMs);
+                int bucket = 0;
+                while (bucket < INTERVAL_BUCKETS_MS.length
+                        && intervalMs > INTERVAL_BUCKETS_MS[bucket]) {
+                    bucket++;
+                }
+                intervalHistogram[bucket]++;
+            }
+            lastFrameMs = nowMs;
+            frameCount++;
+            fpsWindowFrames++;
+            if (frameWidth != width || frameHeight != height) {
+                if (width != 0) {
+                    resolutionChangeCount++;
+                }
+                width = frameWidth;
+                height = frameHeight;
+                resolutionChanged = true;
+            }
+        }
+        if (resolutionChanged) {
+            Log.d(TAG, name + " resolution " + frameWidth + "x" + frameHeight);
+        }
+        target.renderFrame(frame);
+    }
+
+    /**
+     * Returns ms from creation to the first frame, -1 if none was rendered.
+     */
+    public long getTimeToFirstFrameMs() {
+        synchronized (statsLock) {
+            return firstFrameMs < 0 ? -1 : firstFrameMs - startMs;
+        }
+    }
+
+    /**
+     * Returns fps rendered since the previous call, or since creation.
+     */
+    public double getRenderedFps() {
+        long nowMs = SystemClock.elapsedRealtime();
+        synchronized (statsLock) {
+            long windowMs = nowMs - fpsWindowStartMs;
+            double fps = windowMs > 0 ? fpsWindowFrames * 1000.0 / windowMs : 0;
+            fpsWindowStartMs = nowMs;
+            fpsWindowFrames = 0;
+            return fps;
+        }
+    }
+
+    public int getFreezeCount() {
+        synchronized (statsLock) {
+            return freezeCount;
+        }
+    }
+
+    public long getFreezeDurationMs() {
+        synchronized (statsLock) {
+            return freezeDurationMs;
+        }
+    }
+
+    /**
+     * Returns whole call stats as one line for logs and call summaries.
+     */
+    public String getSummary() {
+        synchronized (statsLock) {
+            StringBuilder summary = new StringBuilder(256);
+            summary.append(name).append(": frames=").append(frameCount)
+                    .append(", firstFrameMs=").append(getTimeToFirstFrameMs());
+            if (frameCount > 1) {
+                long durationMs = lastFrameMs - firstFrameMs;
+                summary.append(", avgFps=")
+                        .append(durationMs > 0 ? (frameCount - 1) * 1000 / durationMs : 0)
+                        .append(", maxIntervalMs=").append(maxIntervalMs);
+            }
+            summary.append(", freezes=").append(freezeCount)
+                    .append(", freezeMs=").append(freezeDurationMs)
+                    .append(", resolution=").append(width).append("x").append(height)
+                    .append(", resolutionChanges=").append(resolutionChangeCount)
+                    .append(", intervals=[");
+            for (int i = 0; i < intervalHistogram.length; i++) {
+                if (i > 0) {
+                    summary.append(", ");
+                }
+                if (i < INTERVAL_BUCKETS_MS.length) {
+                    summary.append("<=").append(INTERVAL_BUCKETS_MS[i]);
+                } else {
+                    summary.append(">").append(INTERVAL_BUCKETS_MS[i - 1]);
+                }
+                summary.append(":").append(intervalHistogram[i]);
+            }
+            return summary.append("]").toString();
+        }
+    }
+}
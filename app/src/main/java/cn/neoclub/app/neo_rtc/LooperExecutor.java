@@ -118,6 +118,23 @@ public class LooperExecutor extends Thread implements Executor {
     scheduledPeriodicRunnables.clear();
   }
 
+  public synchronized void postDelayed(final Runnable runnable, final long delayMillis) {
+    if (!running) {
+      Log.w(TAG, "Trying to post delayed task for non running executor");
+      return;
+    }
+    if (!handler.postDelayed(runnable, delayMillis)) {
+      Log.e(TAG, "Failed to post a delayed runnable.");
+    }
+  }
+
+  public synchronized void removeCallbacks(final Runnable runnable) {
+    if (!running) {
+      return;
+    }
+    handler.removeCallbacks(runnable);
+  }
+
   @Override
   public synchronized void execute(final Runnable runnable) {
     if (!running) {
@@ -0,0 +1,140 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.webrtc.PeerConnectionFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the cold start work off the UI thread as soon as the process starts.
+ * <p/>
+ * <p>One background thread, in order: loads the ContentManager preferences,
+ * reads the cached video codec capabilities (probing them on the first run
+ * of an OS build), then loads the native library and initializes the
+ * WebRTC Android globals. By the time the user joins a call the first
+ * peer connection factory only has to be created. Each stage's duration is
+ * logged.
+ * <p>
+ * ConnectActivity fills its fields through runWhenPreferencesLoaded(), and
+ * PeerConnectionClient calls awaitNativeInit() before its own native calls
+ * so the two never initialize concurrently.
+ */
+public class NeoRtcApplication extends Application {
+    private static final String TAG = "NeoRtcApplication";
+
+    private static final CountDownLatch preferencesLoaded = new CountDownLatch(1);
+    private static final CountDownLatch nativeInitialized = new CountDownLatch(1);
+    // Callbacks waiting for the preferences, run on the UI thread.
+    private static final List<Runnable> preferencesCallbacks = new ArrayList<>();
+    private static Handler mainHandler;
+    private static volatile boolean started;
+
+    private final ExecutorService startupExecutor = Executors.newSingleThreadExecutor();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        RtcLog.installCoreLogger();
+        mainHandler = new Handler(Looper.getMainLooper());
+        started = true;
+
+        final Context context = getApplicationContext();
+        final long processStartMs = SystemClock.elapsedRealtime();
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startMs = SystemClock.elapsedRealtime();
+                ContentManager.preload(context);
+                onPreferencesLoaded();
+                startMs = reportStage("preferences", startMs);
+
+                boolean hwAcceleration =
+                        VideoCodecProber.getCapabilities(context).hasAnyHwCodec();
+                startMs = reportStage("codec_capabilities", startMs);
+
+                try {
+                    // First use of PeerConnectionFactory loads the native library.
+                    if (!PeerConnectionFactory.initializeAndroidGlobals(context, true, true,
+                            hwAcceleration)) {
+                        RtcLog.e(TAG, "Failed to initializeAndroidGlobals");
+                    }
+                } catch (UnsatisfiedLinkError e) {
+                    RtcLog.e(TAG, "Failed to load native library", e);
+                } finally {
+                    nativeInitialized.countDown();
+                }
+                reportStage("native_init", startMs);
+                RtcLog.i(TAG, "Startup done in %d ms",
+                        SystemClock.elapsedRealtime() - processStartMs);
+            }
+        });
+        startupExecutor.shutdown();
+    }
+
+    /**
+     * Runs |callback| on the UI thread once the preferences are in memory,
+     * right away if they already are. Must be called on the UI thread.
+     */
+    public static void runWhenPreferencesLoaded(Runnable callback) {
+        synchronized (preferencesCallbacks) {
+            if (started && preferencesLoaded.getCount() > 0) {
+                preferencesCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Blocks until the startup native init is done. Returns at once if it is
+     * done or the application didn't start it. Don't call on the UI thread.
+     */
+    public static void awaitNativeInit() {
+        if (!started || nativeInitialized.getCount() == 0) {
+            return;
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            nativeInitialized.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        RtcLog.d(TAG, "Waited %d ms for native init", SystemClock.elapsedRealtime() - startMs);
+    }
+
+    private static void onPreferencesLoaded() {
+        final List<Runnable> callbacks;
+        synchronized (preferencesCallbacks) {
+            preferencesLoaded.countDown();
+            callbacks = new ArrayList<>(preferencesCallbacks);
+            preferencesCallbacks.clear();
+        }
+        if (callbacks.isEmpty()) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    // Logs the duration of |stage| and returns the time it ended.
+    private static long reportStage(String stage, long startMs) {
+        long endMs = SystemClock.elapsedRealtime();
+        RtcLog.i(TAG, "Startup stage %s took %d ms", stage, endMs - startMs);
+        return endMs;
+    }
+}
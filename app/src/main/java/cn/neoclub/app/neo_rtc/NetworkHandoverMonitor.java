@@ -0,0 +1,140 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Detects changes of the active network interface, e.g. Wi-Fi to LTE.
+ * <p/>
+ * <p>Uses a ConnectivityManager network callback on Lollipop and newer and
+ * the connectivity broadcast before. Both only trigger a check of the active
+ * network, a change is reported when its type or name (SSID, APN) differs
+ * from the last one seen. Losing all networks is not reported, the next
+ * available one is. Listener is called on a system thread.
+ */
+public class NetworkHandoverMonitor {
+    private static final String TAG = "NetworkHandoverMonitor";
+
+    /**
+     * Network change listener.
+     */
+    public interface Listener {
+        void onNetworkChanged(String oldNetwork, String newNetwork);
+    }
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private final Listener listener;
+    private Object networkCallback;
+    private BroadcastReceiver connectivityReceiver;
+    private String activeNetwork;
+
+    public NetworkHandoverMonitor(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public synchronized void start() {
+        if (connectivityManager == null || networkCallback != null
+                || connectivityReceiver != null) {
+            return;
+        }
+        activeNetwork = getActiveNetworkName(connectivityManager);
+        Log.d(TAG, "Start. Active network: " + activeNetwork);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            networkCallback = registerNetworkCallback();
+        } else {
+            connectivityReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    checkActiveNetwork();
+                }
+            };
+            context.registerReceiver(connectivityReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    public synchronized void stop() {
+        if (networkCallback != null) {
+            unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+        if (connectivityReceiver != null) {
+            context.unregisterReceiver(connectivityReceiver);
+            connectivityReceiver = null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private Object registerNetworkCallback() {
+        ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                checkActiveNetwork();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                checkActiveNetwork();
+            }
+        };
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivityManager.registerNetworkCallback(request, callback);
+        return callback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void unregisterNetworkCallback(Object callback) {
+        connectivityManager.unregisterNetworkCallback(
+                (ConnectivityManager.NetworkCallback) callback);
+    }
+
+    private void checkActiveNetwork() {
+        String oldNetwork;
+        String newNetwork = getActiveNetworkName(connectivityManager);
+        synchronized (this) {
+            if (newNetwork == null || newNetwork.equals(activeNetwork)) {
+                return;
+            }
+            oldNetwork = activeNetwork;
+            activeNetwork = newNetwork;
+        }
+        Log.d(TAG, "Network changed from " + oldNetwork + " to " + newNetwork);
+        listener.onNetworkChanged(oldNetwork, newNetwork);
+    }
+
+    /**
+     * Returns type and name of the active connected network, null if none.
+     */
+    public static String getActiveNetworkName(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return null;
+        }
+        return getActiveNetworkName(connectivityManager);
+    }
+
+    private static String getActiveNetworkName(ConnectivityManager connectivityManager) {
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return null;
+        }
+        return networkInfo.getTypeName() + "/" + networkInfo.getExtraInfo();
+    }
+}
@@ -0,0 +1,69 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * Opus fmtp settings for a class of network.
+ * <p/>
+ * <p>All profiles are mono with DTX and in-band FEC on: calls are mostly
+ * one person listening, and DTX drops nearly all upstream packets during
+ * silence. Slower and lossier networks get longer packets (less header
+ * overhead), a lower playback rate and bitrate. LOSSY is picked mid-call
+ * when measured audio loss is high.
+ */
+public class OpusProfile {
+    public static final OpusProfile WIDEBAND = new OpusProfile("wideband", 10, 20, 48000, 32000);
+    public static final OpusProfile MOBILE = new OpusProfile("mobile", 20, 40, 16000, 20000);
+    public static final OpusProfile NARROWBAND = new OpusProfile("narrowband", 20, 60, 8000, 12000);
+    public static final OpusProfile LOSSY = new OpusProfile("lossy", 20, 60, 16000, 24000);
+
+    public final String name;
+    public final int minPtimeMs;
+    public final int ptimeMs;
+    public final int maxPlaybackRate;
+    public final int maxAverageBitrateBps;
+
+    private OpusProfile(String name, int minPtimeMs, int ptimeMs,
+                        int maxPlaybackRate, int maxAverageBitrateBps) {
+        this.name = name;
+        this.minPtimeMs = minPtimeMs;
+        this.ptimeMs = ptimeMs;
+        this.maxPlaybackRate = maxPlaybackRate;
+        this.maxAverageBitrateBps = maxAverageBitrateBps;
+    }
+
+    /**
+     * Returns the profile for the active network: WIDEBAND for unmetered
+     * networks, NARROWBAND for 2G and MOBILE for other cellular networks.
+     */
+    @SuppressWarnings("deprecation")
+    public static OpusProfile forActiveNetwork(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return WIDEBAND;
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return connectivityManager.isActiveNetworkMetered() ? MOBILE : WIDEBAND;
+        }
+        switch (networkInfo.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return NARROWBAND;
+            default:
+                return MOBILE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
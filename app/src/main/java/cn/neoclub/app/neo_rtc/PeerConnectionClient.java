@@ -1,8 +1,11 @@
 package cn.neoclub.app.neo_rtc;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Environment;
-import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.webrtc.AudioSource;
@@ -10,16 +13,22 @@ import org.webrtc.AudioTrack;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerationAndroid;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.CameraVideoCapturer;
 import org.webrtc.DataChannel;
 import org.webrtc.EglBase;
+import org.webrtc.EglBase14;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
+import org.webrtc.MediaCodecVideoDecoder;
+import org.webrtc.MediaCodecVideoEncoder;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.StatsObserver;
@@ -31,16 +40,27 @@ import org.webrtc.VideoTrack;
 import org.webrtc.voiceengine.WebRtcAudioManager;
 import org.webrtc.voiceengine.WebRtcAudioUtils;
 
+import cn.neoclub.rtc.core.CallNegotiator;
+import cn.neoclub.rtc.core.IceCandidateInfo;
+import cn.neoclub.rtc.core.LocalTrackReplacer;
+import cn.neoclub.rtc.core.RemoteViewSize;
+import cn.neoclub.rtc.core.SdpMunger;
+import cn.neoclub.rtc.core.SessionDescriptionInfo;
+import cn.neoclub.rtc.core.SignalingState;
+
 import java.io.File;
-import java.io.IOException;
-import java.util.EnumSet;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Peer connection client implementation.
@@ -58,9 +78,16 @@ public class PeerConnectionClient {
     private static final String VIDEO_CODEC_H264 = "H264";
     private static final String AUDIO_CODEC_OPUS = "opus";
     private static final String AUDIO_CODEC_ISAC = "ISAC";
-    private static final String VIDEO_CODEC_PARAM_START_BITRATE =
-            "x-google-start-bitrate";
-    private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+    private static final String AUDIO_CODEC_PARAM_DTX = "usedtx";
+    private static final String AUDIO_CODEC_PARAM_INBAND_FEC = "useinbandfec";
+    private static final String AUDIO_CODEC_PARAM_MIN_PTIME = "minptime";
+    private static final String AUDIO_CODEC_PARAM_MAX_PLAYBACK_RATE = "maxplaybackrate";
+    private static final String AUDIO_CODEC_PARAM_STEREO = "stereo";
+    // Opus switches to the lossy profile above the high loss and back below
+    // the low one, at most once per interval.
+    private static final double OPUS_LOSSY_HIGH_LOSS = 0.05;
+    private static final double OPUS_LOSSY_LOW_LOSS = 0.02;
+    private static final long OPUS_PROFILE_MIN_INTERVAL_MS = 20000;
     private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
     private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
     private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -71,15 +98,75 @@ public class PeerConnectionClient {
     private static final int MAX_VIDEO_WIDTH = 1280;
     private static final int MAX_VIDEO_HEIGHT = 1280;
     private static final int MAX_VIDEO_FPS = 30;
+    // Texture capture falls back to byte buffers if no frame arrives in time.
+    private static final int TEXTURE_CAPTURE_START_TIMEOUT_MS = 3000;
+    // Warm factory and sources are released after this long without a call.
+    private static final int SESSION_IDLE_TIMEOUT_MS = 60000;
+    // ICE recovery: a lost connection gets a grace period to come back by
+    // itself, then the offering side restarts ICE and retries the restart
+    // until the call is given up after the recovery timeout.
+    private static final int ICE_RESTART_GRACE_MS = 2000;
+    private static final int ICE_RESTART_RETRY_MS = 8000;
+    private static final int ICE_RECOVERY_TIMEOUT_MS = 30000;
+    private static final String ICE_RESTART_CONSTRAINT = "IceRestart";
+    private static final int NETWORK_HANDOVER_SETTLE_MS = 5000;
+    // UDP only ICE gets this long from the start of connectivity checks
+    // before TCP candidates and TCP/TLS TURN relays are added.
+    private static final int TCP_TRANSPORT_ESCALATION_MS = 5000;
+    // Time the TCP stage has to gather a local TCP candidate.
+    private static final int TCP_CANDIDATE_CHECK_MS = 5000;
+    // DTLS state is only exposed through stats, they are polled after ICE
+    // connects to trace when DTLS is done.
+    private static final int DTLS_STATE_POLL_MS = 50;
+    private static final int DTLS_STATE_POLL_ATTEMPTS = 100;
+    // Video bitrate cap for a format scaled down to the remote view, and
+    // its floor so small views still get a usable picture.
+    private static final double REMOTE_VIEW_BITS_PER_PIXEL = 0.1;
+    private static final int REMOTE_VIEW_MIN_BITRATE_BPS = 100000;
+    // Negotiated data channel ids, the same on both peers.
+    private static final int SIGNALING_DATA_CHANNEL_ID = 0;
+    private static final int RELIABLE_DATA_CHANNEL_ID = 1;
+    private static final int UNRELIABLE_DATA_CHANNEL_ID = 2;
 
     private static final PeerConnectionClient instance = new PeerConnectionClient();
     private final PCObserver pcObserver = new PCObserver();
     private final SDPObserver sdpObserver = new SDPObserver();
+    private final NegotiatorPeer negotiatorPeer = new NegotiatorPeer();
     private final ScheduledExecutorService executor;
 
     private Context context;
     private PeerConnectionFactory factory;
+    // Session mode keeps the factory, audio source and a byte buffer video
+    // source with its capturer warm between calls. |factoryKey| holds the
+    // parameters the factory was initialized with.
+    private boolean sessionModeEnabled;
+    private String factoryKey;
+    private ScheduledFuture<?> sessionIdleTimeout;
+    private boolean trimMemoryCallbacksRegistered;
     private PeerConnection peerConnection;
+    private PeerConnection.RTCConfiguration rtcConfig;
+    // Refreshes pre-gathered ICE candidates until a local description uses them.
+    private ScheduledFuture<?> iceCandidatePoolRefresh;
+    private boolean iceConnected;
+    // Start of the current ICE recovery, -1 if ICE is not being recovered.
+    private long iceRecoveryStartMs;
+    private int iceRestartCount;
+    private ScheduledFuture<?> iceRestartTimeout;
+    private ScheduledFuture<?> iceRecoveryTimeout;
+    // Network handover: start of the last interface change, -1 once media
+    // is received again.
+    private NetworkHandoverMonitor networkHandoverMonitor;
+    private long networkHandoverStartMs;
+    private boolean iceReceiving;
+    // Staged transport: calls start with UDP transports only and escalate to
+    // TCP when those don't connect. |transportNetwork| is the network the
+    // stage is remembered for.
+    private String transportNetwork;
+    private boolean tcpTransportEnabled;
+    private ScheduledFuture<?> tcpTransportEscalation;
+    // Local TCP candidates gathered in the TCP stage, checked after escalation.
+    private int localTcpCandidates;
+    private ScheduledFuture<?> tcpCandidateCheck;
     PeerConnectionFactory.Options options = null;
     private AudioSource audioSource;
     private VideoSource videoSource;
@@ -91,24 +178,68 @@ public class PeerConnectionClient {
     private Timer statsTimer;
     private VideoRenderer.Callbacks localRender;
     private VideoRenderer.Callbacks remoteRender;
+    // Local preview renders at a reduced rate, and not at all while detached.
+    private DecimatingVideoRenderer localPreviewRenderer;
+    private VideoRenderer localPreview;
+    private boolean localPreviewEnabled;
+    private int localPreviewMaxFps;
+    // Call recording: one recorder per video track, attached as renderers.
+    private EglBase.Context renderEGLContext;
+    private File recordingDirectory;
+    private String recordingName;
+    private CallRecorder localRecorder;
+    private CallRecorder remoteRecorder;
+    private VideoRenderer localRecorderRenderer;
+    private VideoRenderer remoteRecorderRenderer;
     private MediaConstraints pcConstraints;
     private int videoWidth;
     private int videoHeight;
     private int videoFps;
+    // Native camera format picked for the requested video size and fps.
+    private int captureWidth;
+    private int captureHeight;
+    private int captureFps;
+    // Size and max fps the remote peer shows our video at, 0 if not reported.
+    private int remoteViewWidth;
+    private int remoteViewHeight;
+    private int remoteViewFps;
     private MediaConstraints audioConstraints;
-    private ParcelFileDescriptor aecDumpFileDescriptor;
+    private DiagnosticsCaptureManager diagnosticsCapture;
+    // Ordered, reliable channel for chat and control messages, and an
+    // unordered one without retransmits for frequent state updates.
+    private CallDataChannel reliableDataChannel;
+    private CallDataChannel unreliableDataChannel;
+    // Carries mid-call signaling while ICE is connected, see
+    // PeerSignalingChannel.
+    private CallDataChannel signalingDataChannel;
+    private boolean signalingDataChannelOpen;
+    private volatile boolean signalingChannelUsable;
+    private volatile PeerSignalingChannel.Listener signalingChannelListener;
     private MediaConstraints sdpMediaConstraints;
     private PeerConnectionParameters peerConnectionParameters;
-    // Queued remote ICE candidates are consumed only after both local and
-    // remote descriptions are set. Similarly local ICE candidates are sent to
-    // remote peer after both local and remote description are set.
-    private LinkedList<IceCandidate> queuedRemoteCandidates;
     private PeerConnectionEvents events;
-    private boolean isInitiator;
-    private SessionDescription localSdp; // either offer or answer SDP
+    // Offer/answer state and queued remote candidates of the peer connection.
+    private CallNegotiator negotiator;
     private MediaStream mediaStream;
     private int numberOfCameras;
     private CameraVideoCapturer videoCapturer;
+    private String videoCapturerKey;
+    private VideoCodecProber.Capabilities codecCapabilities;
+    // captureToTexture is set if the texture capture path passed startup checks.
+    private boolean captureToTexture;
+    private boolean firstFrameCaptured;
+    private ScheduledFuture<?> captureStartTimeout;
+    // Keeps the local video track in the stream, or in the video sender
+    // once the capturer was replaced after negotiation started.
+    private LocalTrackReplacer<VideoTrack> videoTrackReplacer;
+    // Local video is paused while the link can't carry it next to audio.
+    private VideoDegradationManager videoDegradationManager;
+    private boolean videoPausedForBandwidth;
+    // Opus profile of the network class, and the one currently negotiated.
+    private OpusProfile networkOpusProfile;
+    private OpusProfile opusProfile;
+    private double smoothedAudioLoss;
+    private long opusProfileChangeTimeMs;
     // enableVideo is set to true if video should be rendered and sent.
     private boolean renderVideo;
     private VideoTrack localVideoTrack;
@@ -129,10 +260,13 @@ public class PeerConnectionClient {
         public final int videoHeight;
         public final int videoFps;
         public final int videoStartBitrate;
+        public final int videoMinBitrate;
+        public final int videoMaxBitrate;
         public final String videoCodec;
         public final boolean videoCodecHwAcceleration;
         public final boolean captureToTexture;
         public final int audioStartBitrate;
+        public final int audioMaxBitrate;
         public final String audioCodec;
         public final boolean noAudioProcessing;
         public final boolean aecDump;
@@ -140,14 +274,19 @@ public class PeerConnectionClient {
         public final boolean disableBuiltInAEC;
         public final boolean disableBuiltInAGC;
         public final boolean disableBuiltInNS;
+        public final int iceCandidatePoolSize;
+        public final int iceCandidatePoolExpiryMs;
 
         public PeerConnectionParameters(
                 boolean videoCallEnabled, boolean tracing, boolean useCamera2,
                 int videoWidth, int videoHeight, int videoFps,
-                int videoStartBitrate, String videoCodec, boolean videoCodecHwAcceleration,
-                boolean captureToTexture, int audioStartBitrate, String audioCodec,
+                int videoStartBitrate, int videoMinBitrate, int videoMaxBitrate,
+                String videoCodec, boolean videoCodecHwAcceleration,
+                boolean captureToTexture, int audioStartBitrate, int audioMaxBitrate,
+                String audioCodec,
                 boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES,
-                boolean disableBuiltInAEC, boolean disableBuiltInAGC, boolean disableBuiltInNS) {
+                boolean disableBuiltInAEC, boolean disableBuiltInAGC, boolean disableBuiltInNS,
+                int iceCandidatePoolSize, int iceCandidatePoolExpiryMs) {
             this.videoCallEnabled = videoCallEnabled;
             this.useCamera2 = useCamera2;
             this.tracing = tracing;
@@ -155,10 +294,13 @@ public class PeerConnectionClient {
             this.videoHeight = videoHeight;
             this.videoFps = videoFps;
             this.videoStartBitrate = videoStartBitrate;
+            this.videoMinBitrate = videoMinBitrate;
+            this.videoMaxBitrate = videoMaxBitrate;
             this.videoCodec = videoCodec;
             this.videoCodecHwAcceleration = videoCodecHwAcceleration;
             this.captureToTexture = captureToTexture;
             this.audioStartBitrate = audioStartBitrate;
+            this.audioMaxBitrate = audioMaxBitrate;
             this.audioCodec = audioCodec;
             this.noAudioProcessing = noAudioProcessing;
             this.aecDump = aecDump;
@@ -166,6 +308,8 @@ public class PeerConnectionClient {
             this.disableBuiltInAEC = disableBuiltInAEC;
             this.disableBuiltInAGC = disableBuiltInAGC;
             this.disableBuiltInNS = disableBuiltInNS;
+            this.iceCandidatePoolSize = iceCandidatePoolSize;
+            this.iceCandidatePoolExpiryMs = iceCandidatePoolExpiryMs;
         }
     }
 
@@ -195,8 +339,28 @@ public class PeerConnectionClient {
         void onIceConnected();
 
         /**
-         * Callback fired once connection is closed (IceConnectionState is
-         * DISCONNECTED).
+         * Callback fired before the peer connection is replaced for the TCP
+         * transport stage, the remote peer has to replace its own before
+         * the next offer arrives.
+         */
+        void onTcpTransportRestart();
+
+        /**
+         * Callback fired once established connection is lost (IceConnectionState
+         * is DISCONNECTED or FAILED) and ICE recovery starts. Media tracks and
+         * renderers are kept.
+         */
+        void onIceReconnecting();
+
+        /**
+         * Callback fired once connection is established again after
+         * onIceReconnecting().
+         */
+        void onIceReconnected();
+
+        /**
+         * Callback fired once connection is closed and could not be
+         * recovered in time.
          */
         void onIceDisconnected();
 
@@ -210,6 +374,17 @@ public class PeerConnectionClient {
          */
         void onPeerConnectionStatsReady(final StatsReport[] reports);
 
+        /**
+         * Callback fired once local video is paused or resumed because of
+         * low bandwidth.
+         */
+        void onVideoPausedForBandwidth(final boolean paused);
+
+        /**
+         * Callback fired once a message is received on a data channel.
+         */
+        void onDataMessage(final String message, final boolean reliable);
+
         /**
          * Callback fired once peer connection error happened.
          */
@@ -238,30 +413,93 @@ public class PeerConnectionClient {
         this.peerConnectionParameters = peerConnectionParameters;
         this.events = events;
         videoCallEnabled = peerConnectionParameters.videoCallEnabled;
-        // Reset variables to initial states.
-        this.context = null;
-        factory = null;
+        statsTimer = new Timer();
+
+        final Context appContext = context.getApplicationContext();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Runs after closeInternal() of a previous call, so warm
+                // resources left by it are seen here.
+                resetCallState();
+                createPeerConnectionFactoryInternal(appContext);
+                if (factory != null) {
+                    CallSetupTracer.getInstance().mark(CallSetupTracer.FACTORY_CREATED);
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps the peer connection factory and media sources alive after a call
+     * ends so the next call skips native init, audio setup and capturer
+     * creation. They are released after SESSION_IDLE_TIMEOUT_MS without a
+     * call, when the system is low on memory or when session mode is off.
+     */
+    public void setSessionModeEnabled(final boolean enabled) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sessionModeEnabled = enabled;
+                if (!enabled && peerConnection == null) {
+                    releaseSessionResources();
+                }
+            }
+        });
+    }
+
+    // Resets variables to initial states. Warm session resources are kept.
+    private void resetCallState() {
+        cancelSessionIdleTimeout();
         peerConnection = null;
         preferIsac = false;
         videoCapturerStopped = false;
         isError = false;
-        queuedRemoteCandidates = null;
-        localSdp = null; // either offer or answer SDP
+        negotiator = null;
         mediaStream = null;
-        videoCapturer = null;
+        codecCapabilities = null;
+        captureToTexture = false;
+        firstFrameCaptured = false;
+        captureStartTimeout = null;
+        videoTrackReplacer = null;
+        videoDegradationManager = new VideoDegradationManager();
+        videoPausedForBandwidth = false;
+        remoteViewWidth = 0;
+        remoteViewHeight = 0;
+        remoteViewFps = 0;
+        networkOpusProfile = null;
+        opusProfile = null;
+        smoothedAudioLoss = 0;
+        opusProfileChangeTimeMs = 0;
         renderVideo = true;
         localVideoTrack = null;
         remoteVideoTrack = null;
+        localPreviewRenderer = null;
+        localPreview = null;
+        localPreviewEnabled = true;
+        localPreviewMaxFps = 0;
+        renderEGLContext = null;
+        recordingDirectory = null;
+        recordingName = null;
+        localRecorder = null;
+        remoteRecorder = null;
+        localRecorderRenderer = null;
+        remoteRecorderRenderer = null;
         enableAudio = true;
         localAudioTrack = null;
-        statsTimer = new Timer();
-
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                createPeerConnectionFactoryInternal(context);
-            }
-        });
+        iceConnected = false;
+        iceRecoveryStartMs = -1;
+        iceRestartCount = 0;
+        iceRestartTimeout = null;
+        iceRecoveryTimeout = null;
+        networkHandoverMonitor = null;
+        networkHandoverStartMs = -1;
+        iceReceiving = false;
+        transportNetwork = null;
+        tcpTransportEnabled = false;
+        tcpTransportEscalation = null;
+        localTcpCandidates = 0;
+        tcpCandidateCheck = null;
     }
 
     public void createPeerConnection(
@@ -304,20 +542,21 @@ public class PeerConnectionClient {
     }
 
     private void createPeerConnectionFactoryInternal(Context context) {
-        PeerConnectionFactory.initializeInternalTracer();
-        if (peerConnectionParameters.tracing) {
-            PeerConnectionFactory.startInternalTracingCapture(
-                    Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-                            + "webrtc-trace.txt");
-        }
         Log.d(TAG, "Create peer connection factory. Use video: " +
                 peerConnectionParameters.videoCallEnabled);
         isError = false;
+        this.context = context;
 
-        // Initialize field trials.
-        PeerConnectionFactory.initializeFieldTrials("");
+        // Probe HW codecs (cached per device and OS build) if HW acceleration
+        // is requested.
+        codecCapabilities = null;
+        if (videoCallEnabled && peerConnectionParameters.videoCodecHwAcceleration) {
+            codecCapabilities = VideoCodecProber.getCapabilities(context);
+            disableFailedHwCodecs(codecCapabilities);
+        }
 
-        // Check preferred video codec.
+        // Check preferred video codec. Without explicit codec pick the best
+        // one with a working HW encoder.
         preferredVideoCodec = VIDEO_CODEC_VP8;
         if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
             if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_VP9)) {
@@ -325,12 +564,42 @@ public class PeerConnectionClient {
             } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_H264)) {
                 preferredVideoCodec = VIDEO_CODEC_H264;
             }
+        } else if (videoCallEnabled && codecCapabilities != null) {
+            preferredVideoCodec = codecCapabilities.getPreferredCodec(VIDEO_CODEC_VP8);
         }
         Log.d(TAG, "Pereferred video codec: " + preferredVideoCodec);
+        boolean videoCodecHwAcceleration = codecCapabilities != null
+                && codecCapabilities.hasAnyHwCodec();
+        Log.d(TAG, "Video codec HW acceleration: " + videoCodecHwAcceleration);
 
         // Check if ISAC is used by default.
         preferIsac = peerConnectionParameters.audioCodec != null
                 && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+        if (!preferIsac) {
+            networkOpusProfile = OpusProfile.forActiveNetwork(context);
+            opusProfile = networkOpusProfile;
+            opusProfileChangeTimeMs = SystemClock.elapsedRealtime();
+            Log.d(TAG, "Opus profile: " + opusProfile);
+        }
+
+        String newFactoryKey = getFactoryKey(videoCodecHwAcceleration);
+        if (factory != null && newFactoryKey.equals(factoryKey)) {
+            Log.d(TAG, "Reuse warm peer connection factory.");
+            return;
+        }
+        releaseSessionResources();
+
+        // The application loads the native library at startup.
+        NeoRtcApplication.awaitNativeInit();
+        PeerConnectionFactory.initializeInternalTracer();
+        if (peerConnectionParameters.tracing) {
+            PeerConnectionFactory.startInternalTracingCapture(
+                    Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+                            + "webrtc-trace.txt");
+        }
+
+        // Initialize field trials.
+        PeerConnectionFactory.initializeFieldTrials("");
 
         // Enable/disable OpenSL ES playback.
         if (!peerConnectionParameters.useOpenSLES) {
@@ -367,17 +636,59 @@ public class PeerConnectionClient {
 
         // Create peer connection factory.
         if (!PeerConnectionFactory.initializeAndroidGlobals(context, true, true,
-                peerConnectionParameters.videoCodecHwAcceleration)) {
+                videoCodecHwAcceleration)) {
             events.onPeerConnectionError("Failed to initializeAndroidGlobals");
         }
         if (options != null) {
             Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
         }
-        this.context = context;
         factory = new PeerConnectionFactory(options);
+        factoryKey = newFactoryKey;
         Log.d(TAG, "Peer connection factory created.");
     }
 
+    // Parameters which are fixed once the factory and audio source are
+    // created. A warm factory is reused only if they didn't change.
+    private String getFactoryKey(boolean videoCodecHwAcceleration) {
+        StringBuilder key = new StringBuilder();
+        key.append(videoCodecHwAcceleration)
+                .append(peerConnectionParameters.tracing)
+                .append(peerConnectionParameters.noAudioProcessing)
+                .append(peerConnectionParameters.useOpenSLES)
+                .append(peerConnectionParameters.disableBuiltInAEC)
+                .append(peerConnectionParameters.disableBuiltInAGC)
+                .append(peerConnectionParameters.disableBuiltInNS);
+        if (options != null) {
+            key.append(options.networkIgnoreMask)
+                    .append(options.disableEncryption)
+                    .append(options.disableNetworkMonitor);
+        }
+        return key.toString();
+    }
+
+    // Keeps WebRTC away from HW codecs which it would otherwise use but which
+    // failed the capability probe on this device.
+    private static void disableFailedHwCodecs(VideoCodecProber.Capabilities codecCapabilities) {
+        if (!codecCapabilities.hasHwEncoder(VIDEO_CODEC_VP8)) {
+            MediaCodecVideoEncoder.disableVp8HwCodec();
+        }
+        if (!codecCapabilities.hasHwEncoder(VIDEO_CODEC_VP9)) {
+            MediaCodecVideoEncoder.disableVp9HwCodec();
+        }
+        if (!codecCapabilities.hasHwEncoder(VIDEO_CODEC_H264)) {
+            MediaCodecVideoEncoder.disableH264HwCodec();
+        }
+        if (!codecCapabilities.hasHwDecoder(VIDEO_CODEC_VP8)) {
+            MediaCodecVideoDecoder.disableVp8HwCodec();
+        }
+        if (!codecCapabilities.hasHwDecoder(VIDEO_CODEC_VP9)) {
+            MediaCodecVideoDecoder.disableVp9HwCodec();
+        }
+        if (!codecCapabilities.hasHwDecoder(VIDEO_CODEC_H264)) {
+            MediaCodecVideoDecoder.disableH264HwCodec();
+        }
+    }
+
     private void createMediaConstraintsInternal() {
         // Create peer connection constraints.
         pcConstraints = new MediaConstraints();
@@ -449,9 +760,10 @@ public class PeerConnectionClient {
         for (String deviceName : deviceNames) {
             if (enumerator.isFrontFacing(deviceName)) {
                 Logging.d(TAG, "Creating front facing camera capturer.");
-                videoCapturer = enumerator.createCapturer(deviceName, null);
+                videoCapturer = enumerator.createCapturer(deviceName, cameraEventsHandler);
 
                 if (videoCapturer != null) {
+                    videoCapturerKey = enumerator.getClass().getSimpleName() + ":" + deviceName;
                     return;
                 }
             }
@@ -462,235 +774,1024 @@ public class PeerConnectionClient {
         for (String deviceName : deviceNames) {
             if (!enumerator.isFrontFacing(deviceName)) {
                 Logging.d(TAG, "Creating other camera capturer.");
-                videoCapturer = enumerator.createCapturer(deviceName, null);
+                videoCapturer = enumerator.createCapturer(deviceName, cameraEventsHandler);
 
                 if (videoCapturer != null) {
+                    videoCapturerKey = enumerator.getClass().getSimpleName() + ":" + deviceName;
                     return;
                 }
             }
         }
     }
 
-    private void createPeerConnectionInternal(EglBase.Context renderEGLContext) {
-        if (factory == null || isError) {
-            Log.e(TAG, "Peerconnection factory is not created");
-            return;
+    // Texture capture feeds camera frames to the HW encoder without YUV copies.
+    // It needs an EGL 1.4 context shared with the encoder, a HW encoder with
+    // surface input for the preferred codec, and must not have failed on this
+    // device and OS build before.
+    private boolean isTextureCaptureSupported(EglBase.Context renderEGLContext) {
+        if (!peerConnectionParameters.captureToTexture) {
+            return false;
         }
-        Log.d(TAG, "Create peer connection.");
-
-        Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
-        queuedRemoteCandidates = new LinkedList<IceCandidate>();
-
-        if (videoCallEnabled) {
-            Log.d(TAG, "EGLContext: " + renderEGLContext);
-            factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
+        if (!(renderEGLContext instanceof EglBase14.Context)) {
+            Log.w(TAG, "Texture capture needs EGL 1.4 context.");
+            return false;
         }
-
-        Log.e("ICESERVER", iceServers.size()+ "");
-
-        PeerConnection.RTCConfiguration rtcConfig =
-                new PeerConnection.RTCConfiguration(iceServers);
-        // TCP candidates are only useful when connecting to a server that supports
-        // ICE-TCP.
-        rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
-        rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-        rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-        rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-        // Use ECDSA encryption.
-        rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
-
-        peerConnection = factory.createPeerConnection(
-                rtcConfig, pcConstraints, pcObserver);
-        isInitiator = false;
-
-        // Set default WebRTC tracing and INFO libjingle logging.
-        // NOTE: this _must_ happen while |factory| is alive!
-        Logging.enableTracing(
-                "logcat:",
-                EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
-        Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
-
-        mediaStream = factory.createLocalMediaStream("ARDAMS");
-        if (videoCallEnabled) {
-            if (peerConnectionParameters.useCamera2) {
-                if (!peerConnectionParameters.captureToTexture) {
-                    reportError(context.getString(R.string.camera2_texture_only_error));
-                    return;
-                }
-
-                Logging.d(TAG, "Creating capturer using camera2 API.");
-                createCapturer(new Camera2Enumerator(context));
-            } else {
-                Logging.d(TAG, "Creating capturer using camera1 API.");
-                createCapturer(new Camera1Enumerator(peerConnectionParameters.captureToTexture));
-            }
-
-            if (videoCapturer == null) {
-                reportError("Failed to open camera");
-                return;
-            }
-            mediaStream.addTrack(createVideoTrack(videoCapturer));
+        if (codecCapabilities == null || !codecCapabilities.hasTextureEncoder(preferredVideoCodec)) {
+            Log.w(TAG, "No HW texture encoder for " + preferredVideoCodec);
+            return false;
         }
+        boolean webRtcTextureEncoder;
+        if (preferredVideoCodec.equals(VIDEO_CODEC_H264)) {
+            webRtcTextureEncoder = MediaCodecVideoEncoder.isH264HwSupportedUsingTextures();
+        } else if (preferredVideoCodec.equals(VIDEO_CODEC_VP9)) {
+            webRtcTextureEncoder = MediaCodecVideoEncoder.isVp9HwSupportedUsingTextures();
+        } else {
+            webRtcTextureEncoder = MediaCodecVideoEncoder.isVp8HwSupportedUsingTextures();
+        }
+        if (!webRtcTextureEncoder) {
+            Log.w(TAG, "WebRTC has no texture encoder for " + preferredVideoCodec);
+            return false;
+        }
+        if (ContentManager.isTextureCaptureFailed(context, Build.FINGERPRINT)) {
+            Log.w(TAG, "Texture capture failed on this device before.");
+            return false;
+        }
+        return true;
+    }
 
-        mediaStream.addTrack(createAudioTrack());
-        peerConnection.addStream(mediaStream);
-
-        if (peerConnectionParameters.aecDump) {
-            try {
-                aecDumpFileDescriptor = ParcelFileDescriptor.open(
-                        new File(Environment.getExternalStorageDirectory().getPath()
-                                + File.separator
-                                + "Download/audio.aecdump"),
-                        ParcelFileDescriptor.MODE_READ_WRITE |
-                                ParcelFileDescriptor.MODE_CREATE |
-                                ParcelFileDescriptor.MODE_TRUNCATE);
-                factory.startAecDump(aecDumpFileDescriptor.getFd(), -1);
-            } catch (IOException e) {
-                Log.e(TAG, "Can not open aecdump file", e);
+    private void createVideoCapturer() {
+        if (peerConnectionParameters.useCamera2 && captureToTexture) {
+            Logging.d(TAG, "Creating capturer using camera2 API.");
+            createCapturer(new Camera2Enumerator(context));
+        } else {
+            if (peerConnectionParameters.useCamera2) {
+                Log.w(TAG, "Camera2 needs texture capture, fall back to camera1 API.");
             }
+            Logging.d(TAG, "Creating capturer using camera1 API. Texture: " + captureToTexture);
+            createCapturer(new Camera1Enumerator(captureToTexture));
         }
-
-        Log.d(TAG, "Peer connection created.");
     }
 
-    private void closeInternal() {
-        if (factory != null && peerConnectionParameters.aecDump) {
-            factory.stopAecDump();
+    // Replaces the texture capturer and local video track with byte buffer
+    // ones. The failure is remembered so next calls use byte buffers directly.
+    // Once negotiation started the video sender switches to the new track,
+    // the caller usually offers before the first frame could arrive.
+    private void fallbackToByteBufferCapture(String reason) {
+        if (!captureToTexture || videoCapturer == null || isError) {
+            return;
         }
-        Log.d(TAG, "Closing peer connection.");
-        statsTimer.cancel();
-        if (peerConnection != null) {
-            peerConnection.dispose();
-            peerConnection = null;
+        Log.w(TAG, "Texture capture failed: " + reason + ". Fall back to byte buffers.");
+        ContentManager.setTextureCaptureFailed(context, Build.FINGERPRINT);
+        captureToTexture = false;
+        cancelCaptureStartTimeout();
+        // Also disposes the renderers, the new track gets its own.
+        if (localPreview != null) {
+            localVideoTrack.removeRenderer(localPreview);
         }
-        Log.d(TAG, "Closing audio source.");
-        if (audioSource != null) {
-            audioSource.dispose();
-            audioSource = null;
+        if (localRecorderRenderer != null) {
+            localVideoTrack.removeRenderer(localRecorderRenderer);
         }
-        Log.d(TAG, "Stopping capture.");
-        if (videoCapturer != null) {
-            try {
-                videoCapturer.stopCapture();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            videoCapturer.dispose();
-            videoCapturer = null;
+        try {
+            videoCapturer.stopCapture();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while stopping texture capturer.");
         }
-        Log.d(TAG, "Closing video source.");
-        if (videoSource != null) {
-            videoSource.dispose();
-            videoSource = null;
+        videoCapturer.dispose();
+        videoCapturer = null;
+        videoSource.dispose();
+        videoSource = null;
+
+        createVideoCapturer();
+        if (videoCapturer == null) {
+            reportError("Failed to open camera");
+            return;
         }
-        Log.d(TAG, "Closing peer connection factory.");
-        if (factory != null) {
-            factory.dispose();
-            factory = null;
+        if (!videoTrackReplacer.replace(createVideoTrack(videoCapturer),
+                negotiator != null && negotiator.isStarted())) {
+            reportError("Failed to capture video: " + reason);
         }
-        options = null;
-        Log.d(TAG, "Closing peer connection done.");
-        events.onPeerConnectionClosed();
-        PeerConnectionFactory.stopInternalTracingCapture();
-        PeerConnectionFactory.shutdownInternalTracer();
     }
 
-    public boolean isHDVideo() {
-        if (!videoCallEnabled) {
-            return false;
+    // Pooled candidates go stale while waiting for the remote peer: NAT
+    // bindings time out and the network may change. Until a local description
+    // takes them, the pool is dropped and gathered again on every expiry.
+    private void scheduleIceCandidatePoolRefresh() {
+        final int expiryMs = peerConnectionParameters.iceCandidatePoolExpiryMs;
+        if (rtcConfig.iceCandidatePoolSize <= 0 || expiryMs <= 0) {
+            return;
         }
+        iceCandidatePoolRefresh = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnection == null || isError
+                        || peerConnection.getLocalDescription() != null) {
+                    cancelIceCandidatePoolRefresh();
+                    return;
+                }
+                Log.d(TAG, "ICE candidate pool expired, gather again.");
+                int poolSize = rtcConfig.iceCandidatePoolSize;
+                rtcConfig.iceCandidatePoolSize = 0;
+                peerConnection.setConfiguration(rtcConfig);
+                rtcConfig.iceCandidatePoolSize = poolSize;
+                if (!peerConnection.setConfiguration(rtcConfig)) {
+                    Log.e(TAG, "Failed to restart ICE candidate pool.");
+                }
+            }
+        }, expiryMs, expiryMs, TimeUnit.MILLISECONDS);
+    }
 
-        return videoWidth * videoHeight >= 1280 * 720;
+    private void cancelIceCandidatePoolRefresh() {
+        if (iceCandidatePoolRefresh != null) {
+            iceCandidatePoolRefresh.cancel(false);
+            iceCandidatePoolRefresh = null;
+        }
     }
 
-    private void getStats() {
-        if (peerConnection == null || isError) {
+    // With continual gathering WebRTC gathers candidates on the new network
+    // and removes the ones of the lost network by itself. Both are trickled
+    // to the peer, here only the time until media flows again is measured.
+    private void onNetworkHandover() {
+        if (peerConnection == null || isError || !iceConnected) {
             return;
         }
-        boolean success = peerConnection.getStats(new StatsObserver() {
-            @Override
-            public void onComplete(final StatsReport[] reports) {
-                events.onPeerConnectionStatsReady(reports);
-            }
-        }, null);
-        if (!success) {
-            Log.e(TAG, "getStats() returns false!");
-        }
+        networkHandoverStartMs = SystemClock.elapsedRealtime();
+        Log.d(TAG, "Network handover started.");
     }
 
-    public void enableStatsEvents(boolean enable, int periodMs) {
-        if (enable) {
-            try {
-                statsTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        executor.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                getStats();
-                            }
-                        });
-                    }
-                }, 0, periodMs);
-            } catch (Exception e) {
-                Log.e(TAG, "Can not schedule statistics timer", e);
-            }
-        } else {
-            statsTimer.cancel();
+    private void onMediaReceiving() {
+        iceReceiving = true;
+        if (networkHandoverStartMs >= 0) {
+            Log.d(TAG, "Network handover done, media received after "
+                    + (SystemClock.elapsedRealtime() - networkHandoverStartMs) + " ms");
+            networkHandoverStartMs = -1;
         }
     }
 
-    public void setAudioEnabled(final boolean enable) {
-        executor.execute(new Runnable() {
+    private void startIceRecovery(boolean failed) {
+        if (iceRecoveryStartMs >= 0) {
+            if (failed && iceRestartCount == 0 && iceRestartTimeout != null) {
+                // No point to wait for failed ICE to come back by itself.
+                iceRestartTimeout.cancel(false);
+                restartIce();
+            }
+            return;
+        }
+        iceRecoveryStartMs = SystemClock.elapsedRealtime();
+        iceRestartCount = 0;
+        updateSignalingChannelUsable();
+        Log.d(TAG, "ICE connection lost, start recovery. Failed: " + failed);
+        events.onIceReconnecting();
+        iceRecoveryTimeout = executor.schedule(new Runnable() {
             @Override
             public void run() {
-                enableAudio = enable;
-                if (localAudioTrack != null) {
-                    localAudioTrack.setEnabled(enableAudio);
-                }
+                logIceRecoveryStep("Not recovered, give up");
+                stopIceRecovery();
+                events.onIceDisconnected();
             }
-        });
-    }
-
-    public void setVideoEnabled(final boolean enable) {
-        executor.execute(new Runnable() {
+        }, ICE_RECOVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        iceRestartTimeout = executor.schedule(new Runnable() {
             @Override
             public void run() {
-                renderVideo = enable;
-                if (localVideoTrack != null) {
-                    localVideoTrack.setEnabled(renderVideo);
-                }
-                if (remoteVideoTrack != null) {
-                    remoteVideoTrack.setEnabled(renderVideo);
-                }
+                restartIce();
             }
-        });
+        }, failed ? 0 : ICE_RESTART_GRACE_MS, TimeUnit.MILLISECONDS);
     }
 
-    public void createOffer() {
-        executor.execute(new Runnable() {
+    // Only the offering side restarts ICE so both peers don't send offers at
+    // once. The other side answers the restart offer as any other offer.
+    private void restartIce() {
+        iceRestartTimeout = null;
+        if (peerConnection == null || isError || iceRecoveryStartMs < 0) {
+            return;
+        }
+        if (!negotiator.isInitiator()) {
+            logIceRecoveryStep("Wait for ICE restart offer");
+            return;
+        }
+        iceRestartCount++;
+        logIceRecoveryStep("Send ICE restart offer #" + iceRestartCount);
+        FlightRecorder.record(FlightRecorder.ICE_RESTART, iceRestartCount,
+                SystemClock.elapsedRealtime() - iceRecoveryStartMs);
+        createIceRestartOffer();
+        iceRestartTimeout = executor.schedule(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection != null && !isError) {
-                    Log.d(TAG, "PC Create OFFER");
-                    isInitiator = true;
-                    peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
-                }
+                restartIce();
             }
-        });
+        }, ICE_RESTART_RETRY_MS, TimeUnit.MILLISECONDS);
     }
 
-    public void createAnswer() {
-        executor.execute(new Runnable() {
+    private void createIceRestartOffer() {
+        negotiator.createIceRestartOffer();
+    }
+
+    // TURN servers reached over TCP or TLS are left out of the UDP stage.
+    private static LinkedList<PeerConnection.IceServer> getUdpIceServers(
+            List<PeerConnection.IceServer> iceServers) {
+        LinkedList<PeerConnection.IceServer> udpIceServers = new LinkedList<>();
+        for (PeerConnection.IceServer iceServer : iceServers) {
+            String uri = iceServer.uri.toLowerCase(Locale.US);
+            if (!uri.startsWith("turns:") && !uri.contains("transport=tcp")) {
+                udpIceServers.add(iceServer);
+            }
+        }
+        return udpIceServers;
+    }
+
+    private void scheduleTcpTransportEscalation() {
+        if (tcpTransportEnabled || tcpTransportEscalation != null) {
+            return;
+        }
+        tcpTransportEscalation = executor.schedule(new Runnable() {
             @Override
             public void run() {
-                if (peerConnection != null && !isError) {
-                    Log.d(TAG, "PC create ANSWER");
-                    isInitiator = false;
-                    peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+                tcpTransportEscalation = null;
+                if (!iceConnected) {
+                    enableTcpTransport("not connected in "
+                            + TCP_TRANSPORT_ESCALATION_MS + " ms");
                 }
             }
-        });
+        }, TCP_TRANSPORT_ESCALATION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTcpTransportEscalation() {
+        if (tcpTransportEscalation != null) {
+            tcpTransportEscalation.cancel(false);
+            tcpTransportEscalation = null;
+        }
+    }
+
+    // The TCP candidate policy is fixed when a peer connection is created,
+    // setConfiguration() doesn't change it. So the TCP stage replaces the
+    // peer connection and negotiates again. As with ICE recovery the
+    // offering side escalates: it asks the other side to replace its peer
+    // connection too, then sends a new offer.
+    private void enableTcpTransport(String reason) {
+        if (peerConnection == null || isError || tcpTransportEnabled) {
+            return;
+        }
+        cancelTcpTransportEscalation();
+        if (!negotiator.isInitiator()) {
+            Log.d(TAG, "Wait for TCP transport stage of the remote peer, " + reason);
+            return;
+        }
+        Log.d(TAG, "Enable TCP transport, " + reason);
+        events.onTcpTransportRestart();
+        recreatePeerConnection();
+        if (peerConnection != null && !isError) {
+            negotiator.createOffer();
+        }
+    }
+
+    /**
+     * Replaces the peer connection with one gathering TCP candidates, as
+     * the remote peer requested before its next offer.
+     */
+    public void restartWithTcpTransport() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnection == null || isError) {
+                    return;
+                }
+                Log.d(TAG, "Enable TCP transport, requested by the remote peer.");
+                cancelTcpTransportEscalation();
+                recreatePeerConnection();
+            }
+        });
+    }
+
+    // Keeps the local media stream, the new peer connection starts with no
+    // descriptions.
+    private void recreatePeerConnection() {
+        cancelIceCandidatePoolRefresh();
+        stopIceRecovery();
+        closeDataChannels();
+        // A removed stream is not disposed with the peer connection.
+        peerConnection.removeStream(mediaStream);
+        if (videoTrackReplacer != null) {
+            videoTrackReplacer.onStreamDetached();
+        }
+        if (remoteVideoTrack != null && remoteRecorderRenderer != null) {
+            // Also disposes the renderer, onAddStream() adds a new one.
+            remoteVideoTrack.removeRenderer(remoteRecorderRenderer);
+        }
+        peerConnection.dispose();
+        peerConnection = null;
+        remoteVideoTrack = null;
+        createPeerConnectionObjects(true);
+        if (peerConnection == null) {
+            reportError("Failed to create TCP transport peer connection.");
+            return;
+        }
+        peerConnection.addStream(mediaStream);
+        scheduleTcpCandidateCheck();
+    }
+
+    private void scheduleTcpCandidateCheck() {
+        cancelTcpCandidateCheck();
+        tcpCandidateCheck = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tcpCandidateCheck = null;
+                if (peerConnection != null && localTcpCandidates == 0) {
+                    Log.e(TAG, "TCP transport stage gathered no TCP candidates in "
+                            + TCP_CANDIDATE_CHECK_MS + " ms.");
+                }
+            }
+        }, TCP_CANDIDATE_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTcpCandidateCheck() {
+        if (tcpCandidateCheck != null) {
+            tcpCandidateCheck.cancel(false);
+            tcpCandidateCheck = null;
+        }
+    }
+
+    // Records the stage of the peer connection which connected, the TCP
+    // stage only counts if it gathered TCP candidates.
+    private void onTransportConnected() {
+        cancelTcpTransportEscalation();
+        cancelTcpCandidateCheck();
+        boolean tcpStage = tcpTransportEnabled && localTcpCandidates > 0;
+        if (tcpTransportEnabled && !tcpStage) {
+            Log.w(TAG, "Connected in TCP transport stage without TCP candidates.");
+        }
+        if (transportNetwork != null) {
+            Log.d(TAG, "Connected on " + transportNetwork + " with "
+                    + (tcpStage ? "TCP" : "UDP") + " transport stage, "
+                    + localTcpCandidates + " local TCP candidates.");
+            ContentManager.setTcpTransportRequired(context, transportNetwork, tcpStage);
+        }
+    }
+
+    private void onIceRecovered() {
+        logIceRecoveryStep("Recovered after " + iceRestartCount + " ICE restarts");
+        stopIceRecovery();
+        events.onIceReconnected();
+    }
+
+    private void stopIceRecovery() {
+        if (iceRestartTimeout != null) {
+            iceRestartTimeout.cancel(false);
+            iceRestartTimeout = null;
+        }
+        if (iceRecoveryTimeout != null) {
+            iceRecoveryTimeout.cancel(false);
+            iceRecoveryTimeout = null;
+        }
+        iceRecoveryStartMs = -1;
+        updateSignalingChannelUsable();
+    }
+
+    private void logIceRecoveryStep(String step) {
+        if (iceRecoveryStartMs >= 0) {
+            Log.d(TAG, "ICE recovery: " + step + " at "
+                    + (SystemClock.elapsedRealtime() - iceRecoveryStartMs) + " ms");
+        }
+    }
+
+    private void cancelCaptureStartTimeout() {
+        if (captureStartTimeout != null) {
+            captureStartTimeout.cancel(false);
+            captureStartTimeout = null;
+        }
+    }
+
+    // Creates the peer connection with its negotiator and data channels,
+    // gathering TCP candidates and using TCP relays if |tcpTransport|.
+    private void createPeerConnectionObjects(boolean tcpTransport) {
+        tcpTransportEnabled = tcpTransport;
+        localTcpCandidates = 0;
+        if (tcpTransport) {
+            rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
+            rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.ENABLED;
+        } else {
+            rtcConfig = new PeerConnection.RTCConfiguration(getUdpIceServers(iceServers));
+            rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+        }
+        rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+        rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+        rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        // Use ECDSA encryption.
+        rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+        // Start gathering host, srflx and relay candidates now, before the
+        // remote peer arrives, instead of when the local description is set.
+        rtcConfig.iceCandidatePoolSize = peerConnectionParameters.iceCandidatePoolSize;
+
+        peerConnection = factory.createPeerConnection(
+                rtcConfig, pcConstraints, pcObserver);
+        negotiator = new CallNegotiator(negotiatorPeer, negotiatorPeer);
+        // Channels are created before the first offer, so it negotiates SCTP.
+        signalingDataChannel = new CallDataChannel(peerConnection, "signaling",
+                SIGNALING_DATA_CHANNEL_ID, true, executor, signalingDataChannelListener);
+        reliableDataChannel = new CallDataChannel(peerConnection, "reliable",
+                RELIABLE_DATA_CHANNEL_ID, true, executor, dataChannelListener);
+        unreliableDataChannel = new CallDataChannel(peerConnection, "unreliable",
+                UNRELIABLE_DATA_CHANNEL_ID, false, executor, dataChannelListener);
+        scheduleIceCandidatePoolRefresh();
+    }
+
+    private void createPeerConnectionInternal(EglBase.Context renderEGLContext) {
+        if (factory == null || isError) {
+            Log.e(TAG, "Peerconnection factory is not created");
+            return;
+        }
+        Log.d(TAG, "Create peer connection.");
+
+        RtcLog.d(TAG, "PCConstraints: %s", pcConstraints);
+        this.renderEGLContext = renderEGLContext;
+        // Started first so native logs cover the whole call.
+        diagnosticsCapture = DiagnosticsCaptureManager.startCall(
+                context, factory, peerConnectionParameters.aecDump);
+
+        if (videoCallEnabled) {
+            Log.d(TAG, "EGLContext: " + renderEGLContext);
+            factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
+        }
+
+        RtcLog.d(TAG, "ICE servers: %s", iceServers.size());
+
+        // TCP candidates and relays connect slower, they are only added if
+        // UDP doesn't connect or didn't connect on this network last time.
+        transportNetwork = NetworkHandoverMonitor.getActiveNetworkName(context);
+        boolean tcpTransport = transportNetwork != null
+                && ContentManager.isTcpTransportRequired(context, transportNetwork);
+        if (tcpTransport) {
+            Log.d(TAG, "Start with TCP transport stage on " + transportNetwork);
+        }
+        createPeerConnectionObjects(tcpTransport);
+        CallSetupTracer.getInstance().mark(CallSetupTracer.PEER_CONNECTION_CREATED);
+        networkHandoverMonitor = new NetworkHandoverMonitor(context,
+                new NetworkHandoverMonitor.Listener() {
+                    @Override
+                    public void onNetworkChanged(String oldNetwork, String newNetwork) {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onNetworkHandover();
+                            }
+                        });
+                    }
+                });
+        networkHandoverMonitor.start();
+
+        // Set WebRTC tracing and libjingle logging from the RtcLog levels.
+        // NOTE: this _must_ happen while |factory| is alive!
+        RtcLog.applyNativeSeverity();
+
+        mediaStream = factory.createLocalMediaStream("ARDAMS");
+        if (videoCallEnabled) {
+            captureToTexture = isTextureCaptureSupported(renderEGLContext);
+            if (videoCapturer != null && captureToTexture) {
+                // Parked capturer uses byte buffers, texture capture needs a
+                // new one bound to this call's EGL context.
+                releaseVideoSource();
+            }
+            if (videoCapturer == null) {
+                createVideoCapturer();
+            } else {
+                Log.d(TAG, "Reuse warm video capturer.");
+            }
+            if (videoCapturer == null) {
+                reportError("Failed to open camera");
+                return;
+            }
+            videoTrackReplacer = new LocalTrackReplacer<>(localVideoMedia);
+            videoTrackReplacer.add(createVideoTrack(videoCapturer));
+            if (captureToTexture) {
+                captureStartTimeout = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        captureStartTimeout = null;
+                        if (!firstFrameCaptured) {
+                            fallbackToByteBufferCapture("no frame in "
+                                    + TEXTURE_CAPTURE_START_TIMEOUT_MS + " ms");
+                        }
+                    }
+                }, TEXTURE_CAPTURE_START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        mediaStream.addTrack(createAudioTrack());
+        peerConnection.addStream(mediaStream);
+
+        Log.d(TAG, "Peer connection created.");
+    }
+
+    private void closeDataChannels() {
+        signalingDataChannelOpen = false;
+        updateSignalingChannelUsable();
+        if (signalingDataChannel != null) {
+            signalingDataChannel.close();
+            signalingDataChannel = null;
+        }
+        if (reliableDataChannel != null) {
+            reliableDataChannel.close();
+            reliableDataChannel = null;
+        }
+        if (unreliableDataChannel != null) {
+            unreliableDataChannel.close();
+            unreliableDataChannel = null;
+        }
+    }
+
+    private void closeInternal() {
+        if (factory != null && diagnosticsCapture != null) {
+            diagnosticsCapture.stop(factory);
+        }
+        diagnosticsCapture = null;
+        Log.d(TAG, "Closing peer connection.");
+        statsTimer.cancel();
+        stopRecordingInternal();
+        cancelCaptureStartTimeout();
+        cancelIceCandidatePoolRefresh();
+        cancelTcpTransportEscalation();
+        cancelTcpCandidateCheck();
+        stopIceRecovery();
+        if (networkHandoverMonitor != null) {
+            networkHandoverMonitor.stop();
+            networkHandoverMonitor = null;
+        }
+        closeDataChannels();
+        if (peerConnection != null) {
+            // Also disposes the local stream and its tracks, but not sources.
+            peerConnection.dispose();
+            peerConnection = null;
+        }
+        if (videoTrackReplacer != null) {
+            videoTrackReplacer.release();
+            videoTrackReplacer = null;
+        }
+        mediaStream = null;
+        localVideoTrack = null;
+        localAudioTrack = null;
+        remoteVideoTrack = null;
+        // Disposed with the local video track.
+        localPreview = null;
+        localPreviewRenderer = null;
+        localRender = null;
+        remoteRender = null;
+        negotiator = null;
+        Log.d(TAG, "Stopping capture.");
+        if (videoCapturer != null && !videoCapturerStopped && !videoPausedForBandwidth) {
+            try {
+                videoCapturer.stopCapture();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        videoCapturerStopped = true;
+        if (sessionModeEnabled && factory != null && !isError) {
+            // Texture capturers are bound to the EGL context of this call.
+            if (captureToTexture) {
+                releaseVideoSource();
+            }
+            Log.d(TAG, "Keep peer connection factory warm.");
+            scheduleSessionIdleTimeout();
+        } else {
+            releaseSessionResources();
+        }
+        options = null;
+        Log.d(TAG, "Closing peer connection done.");
+        events.onPeerConnectionClosed();
+    }
+
+    // Releases the factory and the sources kept across calls.
+    private void releaseSessionResources() {
+        cancelSessionIdleTimeout();
+        Log.d(TAG, "Closing audio source.");
+        if (audioSource != null) {
+            audioSource.dispose();
+            audioSource = null;
+        }
+        releaseVideoSource();
+        if (factory == null) {
+            return;
+        }
+        Log.d(TAG, "Closing peer connection factory.");
+        factory.dispose();
+        factory = null;
+        factoryKey = null;
+        PeerConnectionFactory.stopInternalTracingCapture();
+        PeerConnectionFactory.shutdownInternalTracer();
+    }
+
+    // Capture must be stopped already.
+    private void releaseVideoSource() {
+        if (videoCapturer != null) {
+            Log.d(TAG, "Closing video capturer.");
+            videoCapturer.dispose();
+            videoCapturer = null;
+            videoCapturerKey = null;
+        }
+        Log.d(TAG, "Closing video source.");
+        if (videoSource != null) {
+            videoSource.dispose();
+            videoSource = null;
+        }
+    }
+
+    private void scheduleSessionIdleTimeout() {
+        cancelSessionIdleTimeout();
+        sessionIdleTimeout = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sessionIdleTimeout = null;
+                if (peerConnection == null) {
+                    Log.d(TAG, "Session idle, release warm resources.");
+                    releaseSessionResources();
+                }
+            }
+        }, SESSION_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (!trimMemoryCallbacksRegistered) {
+            context.registerComponentCallbacks(trimMemoryCallbacks);
+            trimMemoryCallbacksRegistered = true;
+        }
+    }
+
+    private void cancelSessionIdleTimeout() {
+        if (sessionIdleTimeout != null) {
+            sessionIdleTimeout.cancel(false);
+            sessionIdleTimeout = null;
+        }
+        if (trimMemoryCallbacksRegistered) {
+            context.unregisterComponentCallbacks(trimMemoryCallbacks);
+            trimMemoryCallbacksRegistered = false;
+        }
+    }
+
+    // Warm resources are dropped between calls when the system asks for memory.
+    private final ComponentCallbacks2 trimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level != TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_RUNNING_CRITICAL
+                    && level < TRIM_MEMORY_BACKGROUND) {
+                return;
+            }
+            Log.d(TAG, "Trim memory level " + level);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (peerConnection == null) {
+                        releaseSessionResources();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    public boolean isHDVideo() {
+        if (!videoCallEnabled) {
+            return false;
+        }
+
+        return videoWidth * videoHeight >= 1280 * 720;
+    }
+
+    private void getStats() {
+        if (peerConnection == null || isError) {
+            return;
+        }
+        boolean success = peerConnection.getStats(new StatsObserver() {
+            @Override
+            public void onComplete(final StatsReport[] reports) {
+                events.onPeerConnectionStatsReady(reports);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateVideoDegradation(reports);
+                    }
+                });
+            }
+        }, null);
+        if (!success) {
+            Log.e(TAG, "getStats() returns false!");
+        }
+    }
+
+    // Polls the transport stats until the DTLS cipher is negotiated.
+    private void checkDtlsConnected(final int attempt) {
+        if (peerConnection == null || isError) {
+            return;
+        }
+        if (attempt >= DTLS_STATE_POLL_ATTEMPTS) {
+            Log.w(TAG, "DTLS not connected after " + attempt + " polls.");
+            return;
+        }
+        peerConnection.getStats(new StatsObserver() {
+            @Override
+            public void onComplete(StatsReport[] reports) {
+                for (StatsReport report : reports) {
+                    if (!report.type.equals("googComponent")) {
+                        continue;
+                    }
+                    for (StatsReport.Value value : report.values) {
+                        if (value.name.equals("dtlsCipher") && value.value.length() > 0) {
+                            CallSetupTracer.getInstance().mark(CallSetupTracer.DTLS_CONNECTED);
+                            return;
+                        }
+                    }
+                }
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkDtlsConnected(attempt + 1);
+                    }
+                }, DTLS_STATE_POLL_MS, TimeUnit.MILLISECONDS);
+            }
+        }, null);
+    }
+
+    private void updateVideoDegradation(StatsReport[] reports) {
+        if (peerConnection == null || isError) {
+            return;
+        }
+        if (videoDegradationManager.onStats(reports, SystemClock.elapsedRealtime())
+                && localVideoTrack != null) {
+            setVideoPausedForBandwidth(videoDegradationManager.isVideoPaused());
+        }
+        updateOpusProfile(videoDegradationManager.getAudioLossFraction());
+        // Old path may keep working through the handover, then receiving
+        // never stops and there is nothing to wait for.
+        if (networkHandoverStartMs >= 0 && iceReceiving
+                && SystemClock.elapsedRealtime() - networkHandoverStartMs
+                > NETWORK_HANDOVER_SETTLE_MS) {
+            Log.d(TAG, "Network handover done without media interruption.");
+            networkHandoverStartMs = -1;
+        }
+    }
+
+    // Moves between the network Opus profile and the lossy one as audio loss
+    // changes. The offering side renegotiates, answers keep its settings.
+    private void updateOpusProfile(double audioLoss) {
+        if (opusProfile == null) {
+            return;
+        }
+        smoothedAudioLoss = 0.9 * smoothedAudioLoss + 0.1 * audioLoss;
+        OpusProfile newProfile = opusProfile;
+        if (opusProfile != OpusProfile.LOSSY && smoothedAudioLoss >= OPUS_LOSSY_HIGH_LOSS) {
+            newProfile = OpusProfile.LOSSY;
+        } else if (opusProfile == OpusProfile.LOSSY && smoothedAudioLoss <= OPUS_LOSSY_LOW_LOSS) {
+            newProfile = networkOpusProfile;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        if (newProfile == opusProfile || !negotiator.isInitiator() || iceRecoveryStartMs >= 0
+                || nowMs - opusProfileChangeTimeMs < OPUS_PROFILE_MIN_INTERVAL_MS
+                || peerConnection.signalingState() != PeerConnection.SignalingState.STABLE) {
+            return;
+        }
+        Log.d(TAG, "Opus profile " + opusProfile + " -> " + newProfile
+                + ", audio loss: " + smoothedAudioLoss);
+        opusProfile = newProfile;
+        opusProfileChangeTimeMs = nowMs;
+        negotiator.createOffer();
+    }
+
+    // Pausing stops the capturer too, so the encoder gets no frames and
+    // the camera and encoder CPU is saved for audio.
+    private void setVideoPausedForBandwidth(boolean paused) {
+        videoPausedForBandwidth = paused;
+        localVideoTrack.setEnabled(renderVideo && !videoPausedForBandwidth);
+        if (videoCapturer != null && !videoCapturerStopped) {
+            if (paused) {
+                try {
+                    videoCapturer.stopCapture();
+                } catch (InterruptedException e) {
+                }
+            } else {
+                videoCapturer.startCapture(captureWidth, captureHeight, captureFps);
+            }
+        }
+        events.onVideoPausedForBandwidth(paused);
+    }
+
+    public void enableStatsEvents(boolean enable, int periodMs) {
+        if (enable) {
+            try {
+                statsTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                getStats();
+                            }
+                        });
+                    }
+                }, 0, periodMs);
+            } catch (Exception e) {
+                Log.e(TAG, "Can not schedule statistics timer", e);
+            }
+        } else {
+            statsTimer.cancel();
+        }
+    }
+
+    public void setAudioEnabled(final boolean enable) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                enableAudio = enable;
+                if (localAudioTrack != null) {
+                    localAudioTrack.setEnabled(enableAudio);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends |message| on the reliable or the unreliable data channel.
+     * Messages are batched, and dropped if the channel is congested: on the
+     * reliable channel the new message, on the unreliable the oldest queued.
+     */
+    public void sendDataMessage(final String message, final boolean reliable) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                CallDataChannel channel = reliable ? reliableDataChannel : unreliableDataChannel;
+                if (channel == null || isError) {
+                    return;
+                }
+                if (!channel.send(message)) {
+                    Log.w(TAG, "Data message dropped, reliable: " + reliable);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the transport for mid-call signaling over the peer connection.
+     */
+    public PeerSignalingChannel getSignalingChannel() {
+        return signalingChannel;
+    }
+
+    // Peer signaling is only used on a working path: while ICE recovers the
+    // data channel stays open but messages would wait for the path it is
+    // looking for.
+    private void updateSignalingChannelUsable() {
+        boolean usable = signalingDataChannelOpen && iceConnected && iceRecoveryStartMs < 0;
+        if (usable != signalingChannelUsable) {
+            Log.d(TAG, "Peer signaling channel usable: " + usable);
+            signalingChannelUsable = usable;
+        }
+    }
+
+    public void setVideoEnabled(final boolean enable) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                renderVideo = enable;
+                if (localVideoTrack != null) {
+                    localVideoTrack.setEnabled(renderVideo && !videoPausedForBandwidth);
+                }
+                if (remoteVideoTrack != null) {
+                    remoteVideoTrack.setEnabled(renderVideo);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records local and remote video to MP4 files in |directory| until
+     * stopRecording() or the end of the call. Audio is not recorded.
+     */
+    public void startRecording(final File directory) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnection == null || isError || recordingDirectory != null) {
+                    return;
+                }
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    Log.e(TAG, "Can not create recording directory " + directory);
+                    return;
+                }
+                recordingDirectory = directory;
+                recordingName = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                        .format(new Date());
+                if (localVideoTrack != null) {
+                    localRecorder = new CallRecorder("Local",
+                            new File(directory, recordingName + "-local.mp4"), renderEGLContext);
+                    localRecorderRenderer = new VideoRenderer(localRecorder);
+                    localVideoTrack.addRenderer(localRecorderRenderer);
+                }
+                if (remoteVideoTrack != null) {
+                    startRemoteRecording();
+                }
+            }
+        });
+    }
+
+    public void stopRecording() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopRecordingInternal();
+            }
+        });
+    }
+
+    private void startRemoteRecording() {
+        remoteRecorder = new CallRecorder("Remote",
+                new File(recordingDirectory, recordingName + "-remote.mp4"), renderEGLContext);
+        remoteRecorderRenderer = new VideoRenderer(remoteRecorder);
+        remoteVideoTrack.addRenderer(remoteRecorderRenderer);
+    }
+
+    // Renderers are removed first so no frame arrives after release().
+    private void stopRecordingInternal() {
+        if (localRecorder != null) {
+            if (localVideoTrack != null) {
+                localVideoTrack.removeRenderer(localRecorderRenderer);
+            }
+            localRecorder.release();
+            localRecorder = null;
+            localRecorderRenderer = null;
+        }
+        if (remoteRecorder != null) {
+            if (remoteVideoTrack != null) {
+                remoteVideoTrack.removeRenderer(remoteRecorderRenderer);
+            }
+            remoteRecorder.release();
+            remoteRecorder = null;
+            remoteRecorderRenderer = null;
+        }
+        recordingDirectory = null;
+    }
+
+    /**
+     * Sets the max fps the local preview is rendered at, 0 for every frame.
+     */
+    public void setLocalPreviewMaxFps(final int maxFps) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                localPreviewMaxFps = maxFps;
+                if (localPreviewRenderer != null) {
+                    localPreviewRenderer.setMaxFps(maxFps);
+                }
+            }
+        });
+    }
+
+    /**
+     * Attaches or detaches the local preview renderer. Detached, captured
+     * frames still go to the encoder but are not drawn.
+     */
+    public void setLocalPreviewEnabled(final boolean enable) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                localPreviewEnabled = enable;
+                if (localVideoTrack == null || localPreviewRenderer == null) {
+                    return;
+                }
+                if (enable && localPreview == null) {
+                    localPreview = new VideoRenderer(localPreviewRenderer);
+                    localVideoTrack.addRenderer(localPreview);
+                } else if (!enable && localPreview != null) {
+                    // Also disposes the renderer.
+                    localVideoTrack.removeRenderer(localPreview);
+                    localPreview = null;
+                }
+            }
+        });
+    }
+
+    public void createOffer() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnection != null && !isError) {
+                    Log.d(TAG, "PC Create OFFER");
+                    negotiator.createOffer();
+                }
+            }
+        });
+    }
+
+    public void createAnswer() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnection != null && !isError) {
+                    Log.d(TAG, "PC create ANSWER");
+                    negotiator.createAnswer();
+                }
+            }
+        });
     }
 
     public void addRemoteIceCandidate(final IceCandidate candidate) {
@@ -698,11 +1799,9 @@ public class PeerConnectionClient {
             @Override
             public void run() {
                 if (peerConnection != null && !isError) {
-                    if (queuedRemoteCandidates != null) {
-                        queuedRemoteCandidates.add(candidate);
-                    } else {
-                        peerConnection.addIceCandidate(candidate);
-                    }
+                    CallSetupTracer.getInstance().mark(CallSetupTracer.FIRST_REMOTE_CANDIDATE);
+                    negotiator.addRemoteIceCandidate(new IceCandidateInfo(
+                            candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp));
                 }
             }
         });
@@ -715,9 +1814,15 @@ public class PeerConnectionClient {
                 if (peerConnection == null || isError) {
                     return;
                 }
-                // Drain the queued remote candidates if there is any so that
-                // they are processed in the proper order.
-                drainCandidates();
+                // Drop removed candidates which are still queued, the rest
+                // stay queued until the remote description is set.
+                List<IceCandidateInfo> removals = new ArrayList<>(candidates.length);
+                for (IceCandidate candidate : candidates) {
+                    removals.add(new IceCandidateInfo(
+                            candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp));
+                }
+                negotiator.removeQueuedRemoteCandidates(removals);
+                Log.d(TAG, "Remove " + candidates.length + " remote candidates");
                 peerConnection.removeIceCandidates(candidates);
             }
         });
@@ -732,27 +1837,35 @@ public class PeerConnectionClient {
                 }
                 String sdpDescription = sdp.description;
                 if (preferIsac) {
-                    sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
+                    sdpDescription = SdpMunger.preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
                 }
                 if (videoCallEnabled) {
-                    sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
+                    sdpDescription = SdpMunger.preferCodec(sdpDescription,
+                            preferredVideoCodec, false);
                 }
                 if (videoCallEnabled && peerConnectionParameters.videoStartBitrate > 0) {
-                    sdpDescription = setStartBitrate(VIDEO_CODEC_VP8, true,
-                            sdpDescription, peerConnectionParameters.videoStartBitrate);
-                    sdpDescription = setStartBitrate(VIDEO_CODEC_VP9, true,
-                            sdpDescription, peerConnectionParameters.videoStartBitrate);
-                    sdpDescription = setStartBitrate(VIDEO_CODEC_H264, true,
-                            sdpDescription, peerConnectionParameters.videoStartBitrate);
+                    // Start bitrate above the cap would be clamped by the encoder anyway.
+                    int videoStartBitrate = peerConnectionParameters.videoStartBitrate;
+                    if (peerConnectionParameters.videoMaxBitrate > 0) {
+                        videoStartBitrate = Math.min(videoStartBitrate,
+                                peerConnectionParameters.videoMaxBitrate);
+                    }
+                    sdpDescription = SdpMunger.setStartBitrate(VIDEO_CODEC_VP8, true,
+                            sdpDescription, videoStartBitrate);
+                    sdpDescription = SdpMunger.setStartBitrate(VIDEO_CODEC_VP9, true,
+                            sdpDescription, videoStartBitrate);
+                    sdpDescription = SdpMunger.setStartBitrate(VIDEO_CODEC_H264, true,
+                            sdpDescription, videoStartBitrate);
                 }
                 if (peerConnectionParameters.audioStartBitrate > 0) {
-                    sdpDescription = setStartBitrate(AUDIO_CODEC_OPUS, false,
+                    sdpDescription = SdpMunger.setStartBitrate(AUDIO_CODEC_OPUS, false,
                             sdpDescription, peerConnectionParameters.audioStartBitrate);
                 }
+                sdpDescription = applyBandwidthPolicy(sdpDescription);
+                sdpDescription = applyOpusProfile(sdpDescription);
                 Log.d(TAG, "Set remote SDP.");
-                SessionDescription sdpRemote = new SessionDescription(
-                        sdp.type, sdpDescription);
-                peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+                negotiator.setRemoteDescription(new SessionDescriptionInfo(
+                        SessionDescriptionInfo.Type.valueOf(sdp.type.name()), sdpDescription));
             }
         });
     }
@@ -763,9 +1876,11 @@ public class PeerConnectionClient {
             public void run() {
                 if (videoCapturer != null && !videoCapturerStopped) {
                     Log.d(TAG, "Stop video source.");
-                    try {
-                        videoCapturer.stopCapture();
-                    } catch (InterruptedException e) {
+                    if (!videoPausedForBandwidth) {
+                        try {
+                            videoCapturer.stopCapture();
+                        } catch (InterruptedException e) {
+                        }
                     }
                     videoCapturerStopped = true;
                 }
@@ -777,9 +1892,12 @@ public class PeerConnectionClient {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (videoCapturer != null && videoCapturerStopped) {
+                // A parked capturer between calls is stopped too, leave it.
+                if (peerConnection != null && videoCapturer != null && videoCapturerStopped) {
                     Log.d(TAG, "Restart video source.");
-                    videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
+                    if (!videoPausedForBandwidth) {
+                        videoCapturer.startCapture(captureWidth, captureHeight, captureFps);
+                    }
                     videoCapturerStopped = false;
                 }
             }
@@ -788,6 +1906,7 @@ public class PeerConnectionClient {
 
     private void reportError(final String errorMessage) {
         Log.e(TAG, "Peerconnection error: " + errorMessage);
+        FlightRecorder.record(FlightRecorder.ERROR, FlightRecorder.ERROR_PEER_CONNECTION);
         executor.execute(new Runnable() {
             @Override
             public void run() {
@@ -800,156 +1919,171 @@ public class PeerConnectionClient {
     }
 
     private AudioTrack createAudioTrack() {
-        audioSource = factory.createAudioSource(audioConstraints);
+        if (audioSource == null) {
+            audioSource = factory.createAudioSource(audioConstraints);
+        }
         localAudioTrack = factory.createAudioTrack(AUDIO_TRACK_ID, audioSource);
         localAudioTrack.setEnabled(enableAudio);
         return localAudioTrack;
     }
 
     private VideoTrack createVideoTrack(VideoCapturer capturer) {
-        videoSource = factory.createVideoSource(capturer);
-        capturer.startCapture(videoWidth, videoHeight, videoFps);
+        if (videoSource == null) {
+            videoSource = factory.createVideoSource(capturer);
+        }
+        selectCaptureFormat(capturer);
+        capturer.startCapture(captureWidth, captureHeight, captureFps);
+        // Also resets the output format a parked capturer had in the last call.
+        applyRemoteViewSize(capturer);
 
         localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
         localVideoTrack.setEnabled(renderVideo);
-        localVideoTrack.addRenderer(new VideoRenderer(localRender));
+        localPreviewRenderer = new DecimatingVideoRenderer(localRender);
+        localPreviewRenderer.setMaxFps(localPreviewMaxFps);
+        localPreview = null;
+        if (localPreviewEnabled) {
+            localPreview = new VideoRenderer(localPreviewRenderer);
+            localVideoTrack.addRenderer(localPreview);
+        }
+        if (localRecorder != null) {
+            // Track was recreated, keep recording to the same file.
+            localRecorderRenderer = new VideoRenderer(localRecorder);
+            localVideoTrack.addRenderer(localRecorderRenderer);
+        }
         return localVideoTrack;
     }
 
-    private static String setStartBitrate(String codec, boolean isVideoCodec,
-                                          String sdpDescription, int bitrateKbps) {
-        String[] lines = sdpDescription.split("\r\n");
-        int rtpmapLineIndex = -1;
-        boolean sdpFormatUpdated = false;
-        String codecRtpMap = null;
-        // Search for codec rtpmap in format
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
-                rtpmapLineIndex = i;
-                break;
-            }
-        }
-        if (codecRtpMap == null) {
-            Log.w(TAG, "No rtpmap for " + codec + " codec");
-            return sdpDescription;
-        }
-        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap
-                + " at " + lines[rtpmapLineIndex]);
-
-        // Check if a=fmtp string already exist in remote SDP for this codec and
-        // update it with new bitrate parameter.
-        regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-        codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                Log.d(TAG, "Found " + codec + " " + lines[i]);
-                if (isVideoCodec) {
-                    lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE
-                            + "=" + bitrateKbps;
-                } else {
-                    lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE
-                            + "=" + (bitrateKbps * 1000);
-                }
-                Log.d(TAG, "Update remote SDP line: " + lines[i]);
-                sdpFormatUpdated = true;
-                break;
-            }
+    // Captures at the closest native camera format instead of letting the
+    // camera pick a larger one that has to be scaled down on every frame.
+    private void selectCaptureFormat(VideoCapturer capturer) {
+        captureWidth = videoWidth;
+        captureHeight = videoHeight;
+        captureFps = videoFps;
+        CaptureFormat format = CaptureFormatSelector.select(
+                videoCapturerKey, capturer, videoWidth, videoHeight, videoFps);
+        if (format != null) {
+            captureWidth = format.width;
+            captureHeight = format.height;
+            captureFps = Math.max(1, Math.min(videoFps, format.framerate.max / 1000));
         }
+        Log.d(TAG, "Capturing format: " + captureWidth + "x" + captureHeight + "@" + captureFps);
+    }
 
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (int i = 0; i < lines.length; i++) {
-            newSdpDescription.append(lines[i]).append("\r\n");
-            // Append new a=fmtp line if no such line exist for a codec.
-            if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-                String bitrateSet;
-                if (isVideoCodec) {
-                    bitrateSet = "a=fmtp:" + codecRtpMap + " "
-                            + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-                } else {
-                    bitrateSet = "a=fmtp:" + codecRtpMap + " "
-                            + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
+    /**
+     * Sets the size and max fps the remote peer renders local video at.
+     * Sent video is scaled down to it and its bitrate capped to match.
+     */
+    public void setRemoteViewSize(final int width, final int height, final int maxFps) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (peerConnection == null || isError || videoCapturer == null) {
+                    return;
                 }
-                Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-                newSdpDescription.append(bitrateSet).append("\r\n");
+                remoteViewWidth = width;
+                remoteViewHeight = height;
+                remoteViewFps = maxFps;
+                applyRemoteViewSize(videoCapturer);
             }
+        });
+    }
 
+    // Scales the capture format down to the remote view, see RemoteViewSize.
+    private void applyRemoteViewSize(VideoCapturer capturer) {
+        int[] size = RemoteViewSize.getOutputSize(
+                captureWidth, captureHeight, remoteViewWidth, remoteViewHeight);
+        int width = size[0];
+        int height = size[1];
+        int fps = captureFps;
+        if (remoteViewFps > 0) {
+            fps = Math.min(fps, remoteViewFps);
+        }
+        Log.d(TAG, "Output format for remote view " + remoteViewWidth + "x"
+                + remoteViewHeight + "@" + remoteViewFps + ": " + width + "x" + height + "@" + fps);
+        capturer.onOutputFormatRequest(width, height, fps);
+
+        Integer maxBitrateBps = null;
+        if (width < captureWidth || fps < captureFps) {
+            maxBitrateBps = Math.max(REMOTE_VIEW_MIN_BITRATE_BPS,
+                    (int) (width * height * fps * REMOTE_VIEW_BITS_PER_PIXEL));
+            if (peerConnectionParameters.videoMaxBitrate > 0) {
+                maxBitrateBps = Math.min(maxBitrateBps,
+                        peerConnectionParameters.videoMaxBitrate * 1000);
+            }
         }
-        return newSdpDescription.toString();
+        setVideoSenderMaxBitrate(maxBitrateBps);
     }
 
-    private static String preferCodec(
-            String sdpDescription, String codec, boolean isAudio) {
-        String[] lines = sdpDescription.split("\r\n");
-        int mLineIndex = -1;
-        String codecRtpMap = null;
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        String mediaDescription = "m=video ";
-        if (isAudio) {
-            mediaDescription = "m=audio ";
+    // Null removes the cap, the SDP bandwidth limits still apply.
+    private void setVideoSenderMaxBitrate(Integer maxBitrateBps) {
+        if (peerConnection == null) {
+            return;
         }
-        for (int i = 0; (i < lines.length)
-                && (mLineIndex == -1 || codecRtpMap == null); i++) {
-            if (lines[i].startsWith(mediaDescription)) {
-                mLineIndex = i;
+        for (RtpSender sender : peerConnection.getSenders()) {
+            if (sender.track() == null || !sender.track().kind().equals("video")) {
                 continue;
             }
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
+            RtpParameters parameters = sender.getParameters();
+            for (RtpParameters.Encoding encoding : parameters.encodings) {
+                encoding.maxBitrateBps = maxBitrateBps;
+            }
+            if (!sender.setParameters(parameters)) {
+                Log.e(TAG, "Failed to set video sender max bitrate " + maxBitrateBps);
             }
         }
-        if (mLineIndex == -1) {
-            Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
-            return sdpDescription;
-        }
-        if (codecRtpMap == null) {
-            Log.w(TAG, "No rtpmap for " + codec);
-            return sdpDescription;
-        }
-        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at "
-                + lines[mLineIndex]);
-        String[] origMLineParts = lines[mLineIndex].split(" ");
-        if (origMLineParts.length > 3) {
-            StringBuilder newMLine = new StringBuilder();
-            int origPartIndex = 0;
-            // Format is: m=<media> <port> <proto> <fmt> ...
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(codecRtpMap);
-            for (; origPartIndex < origMLineParts.length; origPartIndex++) {
-                if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
-                    newMLine.append(" ").append(origMLineParts[origPartIndex]);
-                }
+    }
+
+    // Applies per media bandwidth caps (b=AS/b=TIAS) and video codec bitrate
+    // bounds from the call parameters. Used for both local and remote SDP, so
+    // the caps limit what we send as well as what the remote peer sends to us.
+    private String applyBandwidthPolicy(String sdpDescription) {
+        if (videoCallEnabled) {
+            if (peerConnectionParameters.videoMaxBitrate > 0) {
+                sdpDescription = SdpMunger.setMediaBandwidth(sdpDescription, true,
+                        peerConnectionParameters.videoMaxBitrate);
+            }
+            if (peerConnectionParameters.videoMinBitrate > 0
+                    || peerConnectionParameters.videoMaxBitrate > 0) {
+                sdpDescription = SdpMunger.setVideoBitrateBounds(VIDEO_CODEC_VP8, sdpDescription,
+                        peerConnectionParameters.videoMinBitrate,
+                        peerConnectionParameters.videoMaxBitrate);
+                sdpDescription = SdpMunger.setVideoBitrateBounds(VIDEO_CODEC_VP9, sdpDescription,
+                        peerConnectionParameters.videoMinBitrate,
+                        peerConnectionParameters.videoMaxBitrate);
+                sdpDescription = SdpMunger.setVideoBitrateBounds(VIDEO_CODEC_H264, sdpDescription,
+                        peerConnectionParameters.videoMinBitrate,
+                        peerConnectionParameters.videoMaxBitrate);
             }
-            lines[mLineIndex] = newMLine.toString();
-            Log.d(TAG, "Change media description: " + lines[mLineIndex]);
-        } else {
-            Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
         }
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (String line : lines) {
-            newSdpDescription.append(line).append("\r\n");
+        if (peerConnectionParameters.audioMaxBitrate > 0) {
+            sdpDescription = SdpMunger.setMediaBandwidth(sdpDescription, false,
+                    peerConnectionParameters.audioMaxBitrate);
         }
-        return newSdpDescription.toString();
+        return sdpDescription;
     }
 
-    private void drainCandidates() {
-        if (queuedRemoteCandidates != null) {
-            Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-            for (IceCandidate candidate : queuedRemoteCandidates) {
-                peerConnection.addIceCandidate(candidate);
-            }
-            queuedRemoteCandidates = null;
+    // Writes the current Opus profile to the opus a=fmtp line and a=ptime of
+    // the audio section. Like the bandwidth policy it is used for both local
+    // and remote SDP. An explicit audio start bitrate wins over the profile.
+    private String applyOpusProfile(String sdpDescription) {
+        if (opusProfile == null) {
+            return sdpDescription;
+        }
+        sdpDescription = SdpMunger.setCodecParameter(AUDIO_CODEC_OPUS, sdpDescription,
+                AUDIO_CODEC_PARAM_DTX, 1);
+        sdpDescription = SdpMunger.setCodecParameter(AUDIO_CODEC_OPUS, sdpDescription,
+                AUDIO_CODEC_PARAM_INBAND_FEC, 1);
+        sdpDescription = SdpMunger.setCodecParameter(AUDIO_CODEC_OPUS, sdpDescription,
+                AUDIO_CODEC_PARAM_STEREO, 0);
+        sdpDescription = SdpMunger.setCodecParameter(AUDIO_CODEC_OPUS, sdpDescription,
+                AUDIO_CODEC_PARAM_MIN_PTIME, opusProfile.minPtimeMs);
+        sdpDescription = SdpMunger.setCodecParameter(AUDIO_CODEC_OPUS, sdpDescription,
+                AUDIO_CODEC_PARAM_MAX_PLAYBACK_RATE, opusProfile.maxPlaybackRate);
+        if (peerConnectionParameters.audioStartBitrate <= 0) {
+            sdpDescription = SdpMunger.setCodecParameter(AUDIO_CODEC_OPUS, sdpDescription,
+                    SdpMunger.AUDIO_CODEC_PARAM_BITRATE, opusProfile.maxAverageBitrateBps);
         }
+        return SdpMunger.setAudioPtime(sdpDescription, opusProfile.ptimeMs);
     }
 
     private void switchCameraInternal() {
@@ -971,6 +2105,85 @@ public class PeerConnectionClient {
         });
     }
 
+    // Implementation detail: local video track changes of the stream and sender.
+    private final LocalTrackReplacer.Media<VideoTrack> localVideoMedia =
+            new LocalTrackReplacer.Media<VideoTrack>() {
+                @Override
+                public void addToStream(VideoTrack track) {
+                    mediaStream.addTrack(track);
+                }
+
+                @Override
+                public void removeFromStream(VideoTrack track) {
+                    mediaStream.removeTrack(track);
+                }
+
+                @Override
+                public boolean setSenderTrack(VideoTrack track) {
+                    for (RtpSender sender : peerConnection.getSenders()) {
+                        if (sender.track() != null && sender.track().kind().equals("video")) {
+                            // The track is disposed here, not by the sender.
+                            return sender.setTrack(track, false);
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                public void disable(VideoTrack track) {
+                    track.setEnabled(false);
+                }
+
+                @Override
+                public void dispose(VideoTrack track) {
+                    track.dispose();
+                }
+            };
+
+    // Implementation detail: watch camera start to detect broken texture capture.
+    private final CameraVideoCapturer.CameraEventsHandler cameraEventsHandler =
+            new CameraVideoCapturer.CameraEventsHandler() {
+                @Override
+                public void onCameraError(final String errorDescription) {
+                    Log.e(TAG, "Camera error: " + errorDescription);
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (captureToTexture && !firstFrameCaptured) {
+                                fallbackToByteBufferCapture(errorDescription);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onCameraFreezed(String errorDescription) {
+                    Log.e(TAG, "Camera freezed: " + errorDescription);
+                }
+
+                @Override
+                public void onCameraOpening(int cameraId) {
+                    Log.d(TAG, "Camera " + cameraId + " opening.");
+                }
+
+                @Override
+                public void onFirstFrameAvailable() {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.d(TAG, "First camera frame captured. Texture: " + captureToTexture);
+                            firstFrameCaptured = true;
+                            cancelCaptureStartTimeout();
+                        }
+                    });
+                }
+
+                @Override
+                public void onCameraClosed() {
+                    Log.d(TAG, "Camera closed.");
+                }
+            };
+
     // Implementation detail: observe ICE & stream changes and react accordingly.
     private class PCObserver implements PeerConnection.Observer {
         @Override
@@ -978,7 +2191,10 @@ public class PeerConnectionClient {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    Log.d(TAG, "onIceCandidate!!!");
+                    CallSetupTracer.getInstance().mark(CallSetupTracer.FIRST_LOCAL_CANDIDATE);
+                    if (candidate.sdp.contains(" tcp ")) {
+                        localTcpCandidates++;
+                    }
                     events.onIceCandidate(candidate);
                 }
             });
@@ -998,22 +2214,45 @@ public class PeerConnectionClient {
         public void onSignalingChange(
                 PeerConnection.SignalingState newState) {
             Log.d(TAG, "SignalingState: " + newState);
+            FlightRecorder.record(FlightRecorder.SIGNALING_STATE, newState.ordinal());
         }
 
         @Override
         public void onIceConnectionChange(
                 final PeerConnection.IceConnectionState newState) {
+            FlightRecorder.record(FlightRecorder.ICE_CONNECTION_STATE, newState.ordinal());
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     Log.d(TAG, "IceConnectionState: " + newState);
                     if (newState == PeerConnection.IceConnectionState.CONNECTED) {
-                        events.onIceConnected();
-                    } else if (newState == PeerConnection.IceConnectionState.DISCONNECTED) {
-                        events.onIceDisconnected();
-                    } else if (newState == PeerConnection.IceConnectionState.FAILED) {
-                        reportError("ICE connection failed.");
+                        onMediaReceiving();
+                        if (iceRecoveryStartMs >= 0) {
+                            onIceRecovered();
+                        } else if (!iceConnected) {
+                            iceConnected = true;
+                            CallSetupTracer.getInstance().mark(CallSetupTracer.ICE_CONNECTED);
+                            checkDtlsConnected(0);
+                            onTransportConnected();
+                            events.onIceConnected();
+                        }
+                    } else if (newState == PeerConnection.IceConnectionState.CHECKING) {
+                        CallSetupTracer.getInstance().mark(CallSetupTracer.ICE_CHECKING);
+                        if (!iceConnected) {
+                            scheduleTcpTransportEscalation();
+                        }
+                    } else if (newState == PeerConnection.IceConnectionState.DISCONNECTED
+                            || newState == PeerConnection.IceConnectionState.FAILED) {
+                        boolean failed = newState == PeerConnection.IceConnectionState.FAILED;
+                        if (iceConnected) {
+                            startIceRecovery(failed);
+                        } else if (failed && !tcpTransportEnabled) {
+                            enableTcpTransport("UDP transport failed");
+                        } else if (failed) {
+                            reportError("ICE connection failed.");
+                        }
                     }
+                    updateSignalingChannelUsable();
                 }
             });
         }
@@ -1022,11 +2261,22 @@ public class PeerConnectionClient {
         public void onIceGatheringChange(
                 PeerConnection.IceGatheringState newState) {
             Log.d(TAG, "IceGatheringState: " + newState);
+            FlightRecorder.record(FlightRecorder.ICE_GATHERING_STATE, newState.ordinal());
         }
 
         @Override
-        public void onIceConnectionReceivingChange(boolean receiving) {
+        public void onIceConnectionReceivingChange(final boolean receiving) {
             Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (receiving) {
+                        onMediaReceiving();
+                    } else {
+                        iceReceiving = false;
+                    }
+                }
+            });
         }
 
         @Override
@@ -1045,6 +2295,13 @@ public class PeerConnectionClient {
                         remoteVideoTrack = stream.videoTracks.get(0);
                         remoteVideoTrack.setEnabled(renderVideo);
                         remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+                        if (recordingDirectory != null && remoteRecorder == null) {
+                            startRemoteRecording();
+                        } else if (remoteRecorder != null) {
+                            // Track of a replaced peer connection.
+                            remoteRecorderRenderer = new VideoRenderer(remoteRecorder);
+                            remoteVideoTrack.addRenderer(remoteRecorderRenderer);
+                        }
                     }
                 }
             });
@@ -1062,8 +2319,16 @@ public class PeerConnectionClient {
 
         @Override
         public void onDataChannel(final DataChannel dc) {
-            reportError("AppRTC doesn't use data channels, but got: " + dc.label()
-                    + " anyway!");
+            // Only negotiated channels are used, in-band ones are refused.
+            // Disposed off the native callback, as CallDataChannel.close().
+            Log.w(TAG, "Close unexpected data channel: " + dc.label());
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dc.close();
+                    dc.dispose();
+                }
+            });
         }
 
         @Override
@@ -1073,31 +2338,102 @@ public class PeerConnectionClient {
         }
     }
 
+    private final CallDataChannel.Listener dataChannelListener = new CallDataChannel.Listener() {
+        @Override
+        public void onOpen(CallDataChannel channel) {
+        }
+
+        @Override
+        public void onClosed(CallDataChannel channel, List<String> unsentMessages) {
+            if (!unsentMessages.isEmpty()) {
+                Log.w(TAG, unsentMessages.size() + " data messages not sent.");
+            }
+        }
+
+        @Override
+        public void onMessage(CallDataChannel channel, String message) {
+            events.onDataMessage(message, channel.isReliable());
+        }
+    };
+
+    private final CallDataChannel.Listener signalingDataChannelListener =
+            new CallDataChannel.Listener() {
+                @Override
+                public void onOpen(CallDataChannel channel) {
+                    signalingDataChannelOpen = true;
+                    updateSignalingChannelUsable();
+                }
+
+                @Override
+                public void onClosed(CallDataChannel channel, List<String> unsentMessages) {
+                    signalingDataChannelOpen = false;
+                    updateSignalingChannelUsable();
+                    PeerSignalingChannel.Listener listener = signalingChannelListener;
+                    if (listener != null) {
+                        for (String message : unsentMessages) {
+                            listener.onUndelivered(message);
+                        }
+                    }
+                }
+
+                @Override
+                public void onMessage(CallDataChannel channel, String message) {
+                    PeerSignalingChannel.Listener listener = signalingChannelListener;
+                    if (listener != null) {
+                        listener.onMessage(message);
+                    }
+                }
+            };
+
+    private final PeerSignalingChannel signalingChannel = new PeerSignalingChannel() {
+        @Override
+        public void setListener(Listener listener) {
+            signalingChannelListener = listener;
+        }
+
+        @Override
+        public boolean send(final String message) {
+            if (!signalingChannelUsable) {
+                return false;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (signalingDataChannel == null || !signalingDataChannel.send(message)) {
+                        PeerSignalingChannel.Listener listener = signalingChannelListener;
+                        if (listener != null) {
+                            listener.onUndelivered(message);
+                        }
+                    }
+                }
+            });
+            return true;
+        }
+    };
+
     // Implementation detail: handle offer creation/signaling and answer setting,
     // as well as adding remote ICE candidates once the answer SDP is set.
     private class SDPObserver implements SdpObserver {
         @Override
         public void onCreateSuccess(final SessionDescription origSdp) {
-            if (localSdp != null) {
-                reportError("Multiple SDP create.");
-                return;
-            }
             String sdpDescription = origSdp.description;
             if (preferIsac) {
-                sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
+                sdpDescription = SdpMunger.preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
             }
             if (videoCallEnabled) {
-                sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
+                sdpDescription = SdpMunger.preferCodec(sdpDescription, preferredVideoCodec, false);
             }
-            final SessionDescription sdp = new SessionDescription(
-                    origSdp.type, sdpDescription);
-            localSdp = sdp;
+            sdpDescription = applyBandwidthPolicy(sdpDescription);
+            sdpDescription = applyOpusProfile(sdpDescription);
+            final SessionDescriptionInfo sdp = new SessionDescriptionInfo(
+                    SessionDescriptionInfo.Type.valueOf(origSdp.type.name()), sdpDescription);
+            CallSetupTracer.getInstance().mark(sdp.type == SessionDescriptionInfo.Type.OFFER
+                    ? CallSetupTracer.OFFER_CREATED : CallSetupTracer.ANSWER_CREATED);
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     if (peerConnection != null && !isError) {
-                        Log.d(TAG, "Set local SDP from " + sdp.type);
-                        peerConnection.setLocalDescription(sdpObserver, sdp);
+                        negotiator.onCreateSuccess(sdp);
                     }
                 }
             });
@@ -1111,34 +2447,8 @@ public class PeerConnectionClient {
                     if (peerConnection == null || isError) {
                         return;
                     }
-                    if (isInitiator) {
-                        // For offering peer connection we first create offer and set
-                        // local SDP, then after receiving answer set remote SDP.
-                        if (peerConnection.getRemoteDescription() == null) {
-                            // We've just set our local SDP so time to send it.
-                            Log.d(TAG, "Local SDP set succesfully");
-                            events.onLocalDescription(localSdp, isInitiator);
-                        } else {
-                            // We've just set remote description, so drain remote
-                            // and send local ICE candidates.
-                            Log.d(TAG, "Remote SDP set succesfully");
-                            drainCandidates();
-                        }
-                    } else {
-                        // For answering peer connection we set remote SDP and then
-                        // create answer and set local SDP.
-                        if (peerConnection.getLocalDescription() != null) {
-                            // We've just set our local SDP so time to send it, drain
-                            // remote and send local ICE candidates.
-                            Log.d(TAG, "Local SDP set succesfully");
-                            events.onLocalDescription(localSdp, isInitiator);
-                            drainCandidates();
-                        } else {
-                            // We've just set remote SDP - do nothing for now -
-                            // answer will be created soon.
-                            Log.d(TAG, "Remote SDP set succesfully");
-                        }
-                    }
+                    SignalingState state = negotiator.onSetSuccess();
+                    logIceRecoveryStep("Signaling state " + state);
                 }
             });
         }
@@ -1153,4 +2463,64 @@ public class PeerConnectionClient {
             reportError("setSDP error: " + error);
         }
     }
+
+    // Runs the negotiator's operations on the peer connection, on the
+    // executor thread.
+    private class NegotiatorPeer implements CallNegotiator.Peer, CallNegotiator.Events {
+        @Override
+        public void createOffer(boolean iceRestart) {
+            MediaConstraints constraints = sdpMediaConstraints;
+            if (iceRestart) {
+                constraints = new MediaConstraints();
+                constraints.mandatory.addAll(sdpMediaConstraints.mandatory);
+                constraints.optional.addAll(sdpMediaConstraints.optional);
+                constraints.mandatory.add(
+                        new MediaConstraints.KeyValuePair(ICE_RESTART_CONSTRAINT, "true"));
+            }
+            peerConnection.createOffer(sdpObserver, constraints);
+        }
+
+        @Override
+        public void createAnswer() {
+            peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+        }
+
+        @Override
+        public void setLocalDescription(SessionDescriptionInfo sdp) {
+            peerConnection.setLocalDescription(sdpObserver, toSessionDescription(sdp));
+        }
+
+        @Override
+        public void setRemoteDescription(SessionDescriptionInfo sdp) {
+            peerConnection.setRemoteDescription(sdpObserver, toSessionDescription(sdp));
+        }
+
+        @Override
+        public void addIceCandidate(IceCandidateInfo candidate) {
+            peerConnection.addIceCandidate(new IceCandidate(
+                    candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp));
+        }
+
+        @Override
+        public SignalingState getSignalingState() {
+            return SignalingState.valueOf(peerConnection.signalingState().name());
+        }
+
+        @Override
+        public void onLocalDescription(SessionDescriptionInfo sdp, boolean initiator) {
+            CallSetupTracer.getInstance().mark(sdp.type == SessionDescriptionInfo.Type.OFFER
+                    ? CallSetupTracer.OFFER_SET : CallSetupTracer.ANSWER_SET);
+            events.onLocalDescription(toSessionDescription(sdp), initiator);
+        }
+
+        @Override
+        public void onNegotiationError(String description) {
+            reportError(description);
+        }
+
+        private SessionDescription toSessionDescription(SessionDescriptionInfo sdp) {
+            return new SessionDescription(
+                    SessionDescription.Type.valueOf(sdp.type.name()), sdp.sdp);
+        }
+    }
 }
@@ -0,0 +1,29 @@
+package cn.neoclub.app.neo_rtc;
+
+/**
+ * Signaling transport straight to the connected peer.
+ * <p/>
+ * <p>Once a call is up, mid-call signaling messages are sent over it instead
+ * of the signaling server. It is usable only while the peer connection is
+ * connected, send() returns false otherwise and the caller falls back to
+ * the server. Messages accepted but lost when the channel closes are
+ * handed back through Listener.onUndelivered().
+ */
+public interface PeerSignalingChannel {
+    /**
+     * Peer signaling channel events, called on a WebRTC thread.
+     */
+    interface Listener {
+        void onMessage(String message);
+
+        void onUndelivered(String message);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Sends |message| to the peer. Returns false if the channel is not
+     * usable, the message is not sent then.
+     */
+    boolean send(String message);
+}
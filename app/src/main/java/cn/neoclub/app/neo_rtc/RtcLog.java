@@ -0,0 +1,260 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.Logging;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.neoclub.rtc.core.CoreLog;
+
+/**
+ * Level gated logging for the call hot paths.
+ * <p/>
+ * <p>Messages are String.format() patterns with up to three arguments,
+ * formatted only if the tag's level lets them through, so a disabled call
+ * costs a map lookup and no string building. Fixed arity overloads avoid
+ * the varargs array. Primitive arguments are still boxed by the caller,
+ * wrap those in isLoggable() on per-frame or per-packet paths.
+ * <p>
+ * Every tag uses the default level unless set with setLevel(), both can be
+ * changed at runtime. Debug builds log from DEBUG, release builds from
+ * WARN. Native WebRTC logging follows the level of NATIVE_TAG, applied by
+ * applyNativeSeverity() while a peer connection factory is alive. Sampler
+ * thins out high frequency events. installCoreLogger() routes rtc-core
+ * logging through the same levels.
+ */
+public final class RtcLog {
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Log.ASSERT + 1;
+    // Tag whose level controls native WebRTC logging.
+    public static final String NATIVE_TAG = "WebRTCNative";
+
+    private static volatile int defaultLevel = BuildConfig.DEBUG ? DEBUG : WARN;
+    // Replaced on every change, so level checks don't lock.
+    private static volatile Map<String, Integer> tagLevels = Collections.emptyMap();
+
+    private RtcLog() {
+    }
+
+    public static void setDefaultLevel(int level) {
+        defaultLevel = level;
+    }
+
+    /**
+     * Sets the level of |tag|, a negative level makes it use the default.
+     */
+    public static synchronized void setLevel(String tag, int level) {
+        Map<String, Integer> levels = new HashMap<>(tagLevels);
+        if (level < 0) {
+            levels.remove(tag);
+        } else {
+            levels.put(tag, level);
+        }
+        tagLevels = levels;
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        Integer tagLevel = tagLevels.get(tag);
+        return level >= (tagLevel != null ? tagLevel : defaultLevel);
+    }
+
+    /**
+     * Returns the native logging severity matching the level of NATIVE_TAG.
+     */
+    public static Logging.Severity getNativeSeverity() {
+        Integer tagLevel = tagLevels.get(NATIVE_TAG);
+        int level = tagLevel != null ? tagLevel : defaultLevel;
+        if (level <= VERBOSE) {
+            return Logging.Severity.LS_VERBOSE;
+        } else if (level <= INFO) {
+            return Logging.Severity.LS_INFO;
+        } else if (level <= WARN) {
+            return Logging.Severity.LS_WARNING;
+        } else if (level <= ERROR) {
+            return Logging.Severity.LS_ERROR;
+        }
+        return Logging.Severity.LS_NONE;
+    }
+
+    /**
+     * Applies the native logging severity, and enables WebRTC tracing to
+     * logcat at INFO and below. Must be called while a peer connection
+     * factory is alive.
+     */
+    public static void applyNativeSeverity() {
+        Logging.Severity severity = getNativeSeverity();
+        if (severity.ordinal() <= Logging.Severity.LS_INFO.ordinal()) {
+            Logging.enableTracing("logcat:", EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
+        }
+        Logging.enableLogToDebugOutput(severity);
+    }
+
+    /**
+     * Makes rtc-core log to logcat, gated by the levels set here.
+     */
+    public static void installCoreLogger() {
+        CoreLog.setLogger(new CoreLog.Logger() {
+            @Override
+            public boolean isLoggable(String tag, int level) {
+                return RtcLog.isLoggable(tag, level);
+            }
+
+            @Override
+            public void log(int level, String tag, String message) {
+                Log.println(level, tag, message);
+            }
+        });
+    }
+
+    public static void v(String tag, String message) {
+        if (isLoggable(tag, VERBOSE)) {
+            Log.v(tag, message);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1) {
+        if (isLoggable(tag, VERBOSE)) {
+            Log.v(tag, format(format, arg1));
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, VERBOSE)) {
+            Log.v(tag, format(format, arg1, arg2));
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, VERBOSE)) {
+            Log.v(tag, format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (isLoggable(tag, DEBUG)) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1) {
+        if (isLoggable(tag, DEBUG)) {
+            Log.d(tag, format(format, arg1));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, DEBUG)) {
+            Log.d(tag, format(format, arg1, arg2));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, DEBUG)) {
+            Log.d(tag, format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (isLoggable(tag, INFO)) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1) {
+        if (isLoggable(tag, INFO)) {
+            Log.i(tag, format(format, arg1));
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, INFO)) {
+            Log.i(tag, format(format, arg1, arg2));
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (isLoggable(tag, WARN)) {
+            Log.w(tag, message);
+        }
+    }
+
+    public static void w(String tag, String format, Object arg1) {
+        if (isLoggable(tag, WARN)) {
+            Log.w(tag, format(format, arg1));
+        }
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, WARN)) {
+            Log.w(tag, format(format, arg1, arg2));
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (isLoggable(tag, ERROR)) {
+            Log.e(tag, message);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg1) {
+        if (isLoggable(tag, ERROR)) {
+            Log.e(tag, format(format, arg1));
+        }
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        if (isLoggable(tag, ERROR)) {
+            Log.e(tag, message, throwable);
+        }
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
+
+    /**
+     * Lets one event through per interval and counts the others, for
+     * events too frequent to log each time. Thread safe.
+     */
+    public static final class Sampler {
+        private final long intervalMs;
+        private final AtomicLong nextSampleTimeMs = new AtomicLong();
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        public Sampler(long intervalMs) {
+            this.intervalMs = intervalMs;
+        }
+
+        /**
+         * Returns true if this event should be logged.
+         */
+        public boolean sample() {
+            long nowMs = SystemClock.elapsedRealtime();
+            long nextMs = nextSampleTimeMs.get();
+            if (nowMs < nextMs || !nextSampleTimeMs.compareAndSet(nextMs, nowMs + intervalMs)) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns events skipped since the previous call.
+         */
+        public int getSkippedCount() {
+            return skipped.getAndSet(0);
+        }
+    }
+}
@@ -18,6 +18,7 @@ import android.util.TypedValue;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
@@ -39,6 +40,11 @@ public class UnhandledExceptionHandler
   }
 
   public void uncaughtException(Thread unusedThread, final Throwable e) {
+    // Dump the events which led to the crash right away, the UI thread may
+    // be the one which crashed.
+    File dump = FlightRecorder.dump(
+        new File(activity.getFilesDir(), FlightRecorder.DIRECTORY_NAME), e.toString());
+    Log.e(TAG, "Flight recorder dumped to " + dump);
     activity.runOnUiThread(new Runnable() {
         @Override
         public void run() {
@@ -0,0 +1,290 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Hardware video codec capability probe.
+ * <p/>
+ * <p>Enumerates MediaCodecList encoders and decoders for VP8, VP9 and H264,
+ * checks that encoders accept a color format WebRTC can feed (or surface
+ * input for texture encoding) and runs a short encode smoke test. The probe
+ * is expensive, so the result is persisted and reused until the OS build
+ * (Build.FINGERPRINT) changes. Call from a background thread.
+ */
+public class VideoCodecProber {
+    private static final String TAG = "VideoCodecProber";
+    public static final String VIDEO_CODEC_VP8 = "VP8";
+    public static final String VIDEO_CODEC_VP9 = "VP9";
+    public static final String VIDEO_CODEC_H264 = "H264";
+    private static final String[] VIDEO_CODECS = {
+            VIDEO_CODEC_VP8, VIDEO_CODEC_VP9, VIDEO_CODEC_H264};
+    private static final String[] VIDEO_MIME_TYPES = {
+            "video/x-vnd.on2.vp8", "video/x-vnd.on2.vp9", "video/avc"};
+    // Codecs in order of preference when picking a HW codec automatically.
+    private static final String[] PREFERRED_CODECS = {
+            VIDEO_CODEC_H264, VIDEO_CODEC_VP8, VIDEO_CODEC_VP9};
+
+    // Capability bits, stored per codec at (codec index * CODEC_BITS).
+    private static final int HW_ENCODER = 1;
+    private static final int HW_DECODER = 2;
+    private static final int TEXTURE_ENCODER = 4;
+    private static final int CODEC_BITS = 3;
+
+    // Byte buffer color formats the WebRTC encoder wrapper can feed.
+    private static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
+    private static final int[] SUPPORTED_COLOR_FORMATS = {
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
+            COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m};
+    // Software codecs that should not be reported as hardware.
+    private static final String[] SOFTWARE_CODEC_PREFIXES = {"OMX.google.", "c2.android."};
+
+    // Encode smoke test settings.
+    private static final int SMOKE_TEST_WIDTH = 320;
+    private static final int SMOKE_TEST_HEIGHT = 240;
+    private static final int SMOKE_TEST_FPS = 30;
+    private static final int SMOKE_TEST_BITRATE_BPS = 300000;
+    private static final int SMOKE_TEST_TIMEOUT_MS = 1000;
+    private static final int DEQUEUE_TIMEOUT_US = 10000;
+
+    private static Capabilities capabilities;
+
+    /**
+     * Probed codec capabilities.
+     */
+    public static class Capabilities {
+        private final int flags;
+
+        Capabilities(int flags) {
+            this.flags = flags;
+        }
+
+        public boolean hasHwEncoder(String codec) {
+            return hasFlag(codec, HW_ENCODER);
+        }
+
+        public boolean hasHwDecoder(String codec) {
+            return hasFlag(codec, HW_DECODER);
+        }
+
+        public boolean hasTextureEncoder(String codec) {
+            return hasFlag(codec, TEXTURE_ENCODER);
+        }
+
+        public boolean hasAnyHwCodec() {
+            return flags != 0;
+        }
+
+        // Returns the most preferred codec with a working HW encoder or
+        // |defaultCodec| if there is none.
+        public String getPreferredCodec(String defaultCodec) {
+            for (String codec : PREFERRED_CODECS) {
+                if (hasHwEncoder(codec)) {
+                    return codec;
+                }
+            }
+            return defaultCodec;
+        }
+
+        private boolean hasFlag(String codec, int flag) {
+            for (int i = 0; i < VIDEO_CODECS.length; i++) {
+                if (VIDEO_CODECS[i].equals(codec)) {
+                    return (flags & (flag << (i * CODEC_BITS))) != 0;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (String codec : VIDEO_CODECS) {
+                builder.append(codec)
+                        .append(" enc: ").append(hasHwEncoder(codec))
+                        .append(" tex: ").append(hasTextureEncoder(codec))
+                        .append(" dec: ").append(hasHwDecoder(codec)).append(". ");
+            }
+            return builder.toString();
+        }
+    }
+
+    private VideoCodecProber() {
+    }
+
+    /**
+     * Returns codec capabilities of this device, probing them if there is no
+     * cached result for the current OS build.
+     */
+    public static synchronized Capabilities getCapabilities(Context context) {
+        if (capabilities != null) {
+            return capabilities;
+        }
+        int flags = ContentManager.getVideoCodecCapabilities(context, Build.FINGERPRINT);
+        if (flags < 0) {
+            long startTimeMs = SystemClock.elapsedRealtime();
+            flags = probe();
+            ContentManager.setVideoCodecCapabilities(context, Build.FINGERPRINT, flags);
+            Log.d(TAG, "Probed video codecs in "
+                    + (SystemClock.elapsedRealtime() - startTimeMs) + " ms");
+        }
+        capabilities = new Capabilities(flags);
+        Log.d(TAG, "Video codec capabilities: " + capabilities);
+        return capabilities;
+    }
+
+    private static int probe() {
+        int flags = 0;
+        for (int i = 0; i < VIDEO_CODECS.length; i++) {
+            flags |= probeCodec(VIDEO_MIME_TYPES[i]) << (i * CODEC_BITS);
+        }
+        return flags;
+    }
+
+    private static int probeCodec(String mime) {
+        int flags = 0;
+        MediaCodecInfo decoderInfo = findHwCodec(mime, false);
+        if (decoderInfo != null) {
+            flags |= HW_DECODER;
+        }
+        MediaCodecInfo encoderInfo = findHwCodec(mime, true);
+        if (encoderInfo == null) {
+            return flags;
+        }
+        MediaCodecInfo.CodecCapabilities codecCapabilities;
+        try {
+            codecCapabilities = encoderInfo.getCapabilitiesForType(mime);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Can not get capabilities of " + encoderInfo.getName(), e);
+            return flags;
+        }
+        int colorFormat = 0;
+        boolean surfaceInput = false;
+        for (int supportedColorFormat : codecCapabilities.colorFormats) {
+            if (colorFormat == 0) {
+                for (int colorFormatCandidate : SUPPORTED_COLOR_FORMATS) {
+                    if (supportedColorFormat == colorFormatCandidate) {
+                        colorFormat = supportedColorFormat;
+                        break;
+                    }
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    && supportedColorFormat
+                    == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
+                surfaceInput = true;
+            }
+        }
+        if (colorFormat == 0) {
+            Log.w(TAG, encoderInfo.getName() + " has no supported color format");
+            return flags;
+        }
+        if (!smokeTestEncoder(encoderInfo.getName(), mime, colorFormat)) {
+            Log.w(TAG, encoderInfo.getName() + " failed encode smoke test");
+            return flags;
+        }
+        flags |= HW_ENCODER;
+        if (surfaceInput) {
+            flags |= TEXTURE_ENCODER;
+        }
+        return flags;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static MediaCodecInfo findHwCodec(String mime, boolean encoder) {
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info;
+            try {
+                info = MediaCodecList.getCodecInfoAt(i);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Cannot retrieve codec info", e);
+                continue;
+            }
+            if (info == null || info.isEncoder() != encoder || isSoftwareCodec(info.getName())) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    Log.d(TAG, "Found HW " + (encoder ? "encoder " : "decoder ")
+                            + info.getName() + " for " + mime);
+                    return info;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSoftwareCodec(String name) {
+        for (String prefix : SOFTWARE_CODEC_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Encodes blank frames until the first non config output buffer appears.
+    @SuppressWarnings("deprecation")
+    private static boolean smokeTestEncoder(String codecName, String mime, int colorFormat) {
+        MediaCodec encoder = null;
+        try {
+            encoder = MediaCodec.createByCodecName(codecName);
+            MediaFormat format = MediaFormat.createVideoFormat(
+                    mime, SMOKE_TEST_WIDTH, SMOKE_TEST_HEIGHT);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, SMOKE_TEST_BITRATE_BPS);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, SMOKE_TEST_FPS);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            ByteBuffer[] inputBuffers = encoder.getInputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] frame = new byte[SMOKE_TEST_WIDTH * SMOKE_TEST_HEIGHT * 3 / 2];
+            long presentationTimeUs = 0;
+            long deadlineMs = SystemClock.elapsedRealtime() + SMOKE_TEST_TIMEOUT_MS;
+            while (SystemClock.elapsedRealtime() < deadlineMs) {
+                int inputIndex = encoder.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    ByteBuffer inputBuffer = inputBuffers[inputIndex];
+                    inputBuffer.clear();
+                    int size = Math.min(frame.length, inputBuffer.capacity());
+                    inputBuffer.put(frame, 0, size);
+                    encoder.queueInputBuffer(inputIndex, 0, size, presentationTimeUs, 0);
+                    presentationTimeUs += 1000000 / SMOKE_TEST_FPS;
+                }
+                int outputIndex = encoder.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                    encoder.releaseOutputBuffer(outputIndex, false);
+                    if (!isConfig && info.size > 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Encoder " + codecName + " smoke test error", e);
+            return false;
+        } finally {
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (RuntimeException e) {
+                    // Encoder was not started or is in error state.
+                }
+                encoder.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package cn.neoclub.app.neo_rtc;
+
+import android.util.Log;
+
+import org.webrtc.StatsReport;
+
+/**
+ * Decides when local video should be paused to keep audio intelligible.
+ * <p/>
+ * <p>Fed with periodic peer connection stats. Video is paused once the
+ * available send bandwidth or the audio packet loss stay bad for
+ * PAUSE_PERIOD_MS, and resumed after the audio loss stays low for the
+ * longer resume period. Without video RTP the send bandwidth estimate
+ * doesn't move, so it is not used for resuming: resuming is the trial, and
+ * a link that still can't carry video gets paused again within
+ * TRIAL_PERIOD_MS. Each failed trial doubles the resume period up to
+ * MAX_RESUME_PERIOD_MS, which keeps video from flapping on a link close to
+ * the limit. Receive bandwidth is logged only, the remote side pauses its
+ * own video for our downlink.
+ * <p>
+ * Not thread safe, call from the peer connection executor.
+ */
+public class VideoDegradationManager {
+    private static final String TAG = "VideoDegradation";
+
+    private static final int PAUSE_BANDWIDTH_BPS = 120000;
+    private static final double PAUSE_LOSS_FRACTION = 0.1;
+    private static final long PAUSE_PERIOD_MS = 4000;
+    private static final double RESUME_LOSS_FRACTION = 0.03;
+    private static final long RESUME_PERIOD_MS = 15000;
+    private static final long MAX_RESUME_PERIOD_MS = 120000;
+    private static final long TRIAL_PERIOD_MS = 30000;
+
+    private boolean videoPaused;
+    // Time the current bad (or good when paused) streak started, -1 if none.
+    private long streakStartMs = -1;
+    private long resumePeriodMs = RESUME_PERIOD_MS;
+    // Time video was last resumed, -1 if it never was.
+    private long resumeTimeMs = -1;
+    private long lastPacketsSent = -1;
+    private long lastPacketsLost = -1;
+    private double audioLossFraction;
+
+    public boolean isVideoPaused() {
+        return videoPaused;
+    }
+
+    /**
+     * Returns audio packet loss of the last stats interval.
+     */
+    public double getAudioLossFraction() {
+        return audioLossFraction;
+    }
+
+    /**
+     * Updates the state from |reports| taken at |nowMs|. Returns true if
+     * video should change between paused and resumed.
+     */
+    public boolean onStats(StatsReport[] reports, long nowMs) {
+        long sendBandwidthBps = -1;
+        long receiveBandwidthBps = -1;
+        long packetsSent = -1;
+        long packetsLost = -1;
+        for (StatsReport report : reports) {
+            if (report.id.equals("bweforvideo")) {
+                sendBandwidthBps = getLong(report, "googAvailableSendBandwidth");
+                receiveBandwidthBps = getLong(report, "googAvailableReceiveBandwidth");
+            } else if (report.type.equals("ssrc") && report.id.contains("send")) {
+                // Audio keeps flowing while video is paused, so its loss is
+                // measured in both states.
+                String trackId = getString(report, "googTrackId");
+                if (trackId == null || !trackId.contains(PeerConnectionClient.AUDIO_TRACK_ID)) {
+                    continue;
+                }
+                packetsSent = getLong(report, "packetsSent");
+                packetsLost = getLong(report, "packetsLost");
+            }
+        }
+
+        FlightRecorder.record(FlightRecorder.BANDWIDTH, sendBandwidthBps, receiveBandwidthBps);
+        if (packetsSent >= 0) {
+            FlightRecorder.record(FlightRecorder.AUDIO_PACKETS, packetsSent, packetsLost);
+        }
+
+        double lossFraction = 0;
+        if (packetsSent >= 0 && packetsLost >= 0 && lastPacketsSent >= 0) {
+            long sent = packetsSent - lastPacketsSent;
+            long lost = packetsLost - lastPacketsLost;
+            if (sent > 0 && lost > 0) {
+                lossFraction = Math.min(1.0, (double) lost / sent);
+            }
+        }
+        lastPacketsSent = packetsSent;
+        lastPacketsLost = packetsLost;
+        audioLossFraction = lossFraction;
+
+        boolean inStreak;
+        if (videoPaused) {
+            inStreak = lossFraction <= RESUME_LOSS_FRACTION;
+        } else {
+            inStreak = lossFraction >= PAUSE_LOSS_FRACTION
+                    || (sendBandwidthBps >= 0 && sendBandwidthBps < PAUSE_BANDWIDTH_BPS);
+        }
+        if (!inStreak) {
+            streakStartMs = -1;
+            return false;
+        }
+        if (streakStartMs < 0) {
+            streakStartMs = nowMs;
+        }
+        if (nowMs - streakStartMs < (videoPaused ? resumePeriodMs : PAUSE_PERIOD_MS)) {
+            return false;
+        }
+        videoPaused = !videoPaused;
+        streakStartMs = -1;
+        if (!videoPaused) {
+            resumeTimeMs = nowMs;
+        } else if (resumeTimeMs >= 0 && nowMs - resumeTimeMs < TRIAL_PERIOD_MS) {
+            resumePeriodMs = Math.min(2 * resumePeriodMs, MAX_RESUME_PERIOD_MS);
+        } else {
+            resumePeriodMs = RESUME_PERIOD_MS;
+        }
+        Log.d(TAG, (videoPaused ? "Pause" : "Resume") + " video. Send bandwidth: "
+                + sendBandwidthBps + " bps, receive bandwidth: " + receiveBandwidthBps
+                + " bps, audio loss: " + lossFraction
+                + (videoPaused ? ", next resume after " + resumePeriodMs + " ms" : ""));
+        return true;
+    }
+
+    private static String getString(StatsReport report, String name) {
+        for (StatsReport.Value value : report.values) {
+            if (value.name.equals(name)) {
+                return value.value;
+            }
+        }
+        return null;
+    }
+
+    private static long getLong(StatsReport report, String name) {
+        String value = getString(report, name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
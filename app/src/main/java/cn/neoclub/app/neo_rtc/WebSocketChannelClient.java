@@ -2,9 +2,6 @@ package cn.neoclub.app.neo_rtc;
 
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.LinkedList;
@@ -13,6 +10,8 @@ import de.tavendo.autobahn.WebSocket;
 import de.tavendo.autobahn.WebSocketConnection;
 import de.tavendo.autobahn.WebSocketException;
 
+import cn.neoclub.rtc.core.SignalingProtocol;
+
 /**
  * WebSocket client implementation.
  * <p/>
@@ -37,6 +36,8 @@ public class WebSocketChannelClient {
     // WebSocket send queue. Messages are added to the queue when WebSocket
     // client is not registered and are consumed in register() call.
     private final LinkedList<String> wsSendQueue;
+    // Number of priority messages at the head of |wsSendQueue|.
+    private int wsSendQueuePriorityCount;
 
     /**
      * Possible WebSocket connection states.
@@ -63,13 +64,18 @@ public class WebSocketChannelClient {
         this.roomID = roomID;
         this.clientID = clientID;
         wsSendQueue = new LinkedList<String>();
-        state = WebSocketConnectionState.NEW;
+        setState(WebSocketConnectionState.NEW);
     }
 
     public WebSocketConnectionState getState() {
         return state;
     }
 
+    private void setState(WebSocketConnectionState newState) {
+        state = newState;
+        FlightRecorder.record(FlightRecorder.WEBSOCKET_STATE, newState.ordinal());
+    }
+
     public void connect(final String wsUrl) {
         checkIfCalledOnValidThread();
         if (state != WebSocketConnectionState.NEW) {
@@ -100,33 +106,40 @@ public class WebSocketChannelClient {
             return;
         }
         Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-        JSONObject json = new JSONObject();
-        try {
-            json.put("cmd", "register");
-            json.put("roomId", roomID);
-            json.put("clientId", clientID);
-            Log.d(TAG, "C->WSS: " + json.toString());
-            ws.sendTextMessage(json.toString());
-            state = WebSocketConnectionState.REGISTERED;
-            // Send any previously accumulated messages.
-            for (String sendMessage : wsSendQueue) {
-                send(sendMessage);
-            }
-            wsSendQueue.clear();
-        } catch (JSONException e) {
-            reportError("WebSocket register JSON error: " + e.getMessage());
+        String message = SignalingProtocol.encodeRegister(roomID, clientID);
+        RtcLog.d(TAG, "C->WSS: %s", message);
+        ws.sendTextMessage(message);
+        FlightRecorder.record(FlightRecorder.SIGNALING_SENT,
+                FlightRecorder.signalingCmdHash(SignalingProtocol.CMD_REGISTER),
+                message.length());
+        CallSetupTracer.getInstance().mark(CallSetupTracer.REGISTER_SENT);
+        setState(WebSocketConnectionState.REGISTERED);
+        // Send any previously accumulated messages.
+        for (String sendMessage : wsSendQueue) {
+            send(sendMessage);
         }
+        wsSendQueue.clear();
+        wsSendQueuePriorityCount = 0;
     }
 
     public void send(String message) {
+        send(message, false);
+    }
+
+    // Priority messages are queued ahead of normal ones while not registered.
+    public void send(String message, boolean priority) {
         checkIfCalledOnValidThread();
         switch (state) {
             case NEW:
             case CONNECTED:
                 // Store outgoing messages and send them after websocket client
                 // is registered.
-                Log.d(TAG, "WS ACC: " + message);
-                wsSendQueue.add(message);
+                RtcLog.d(TAG, "WS ACC: %s", message);
+                if (priority) {
+                    wsSendQueue.add(wsSendQueuePriorityCount++, message);
+                } else {
+                    wsSendQueue.add(message);
+                }
                 return;
             case ERROR:
             case CLOSED:
@@ -143,14 +156,14 @@ public class WebSocketChannelClient {
         Log.d(TAG, "Disconnect WebSocket. State: " + state);
         if (state == WebSocketConnectionState.REGISTERED) {
             // Send "bye" to WebSocket server.
-            send("{\"cmd\": \"bye\"}");
-            state = WebSocketConnectionState.CONNECTED;
+            send(SignalingProtocol.encodeBye());
+            setState(WebSocketConnectionState.CONNECTED);
         }
         // Close WebSocket in CONNECTED or ERROR states only.
         if (state == WebSocketConnectionState.CONNECTED
                 || state == WebSocketConnectionState.ERROR) {
             ws.disconnect();
-            state = WebSocketConnectionState.CLOSED;
+            setState(WebSocketConnectionState.CLOSED);
 
             // Wait for websocket close event to prevent websocket library from
             // sending any pending messages to deleted looper thread.
@@ -176,7 +189,7 @@ public class WebSocketChannelClient {
             @Override
             public void run() {
                 if (state != WebSocketConnectionState.ERROR) {
-                    state = WebSocketConnectionState.ERROR;
+                    setState(WebSocketConnectionState.ERROR);
                     events.onWebSocketError(errorMessage);
                 }
             }
@@ -199,7 +212,8 @@ public class WebSocketChannelClient {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    state = WebSocketConnectionState.CONNECTED;
+                    setState(WebSocketConnectionState.CONNECTED);
+                    CallSetupTracer.getInstance().mark(CallSetupTracer.WEBSOCKET_OPEN);
                     // Check if we have pending register request.
                     register(roomID, clientID);
                 }
@@ -218,7 +232,7 @@ public class WebSocketChannelClient {
                 @Override
                 public void run() {
                     if (state != WebSocketConnectionState.CLOSED) {
-                        state = WebSocketConnectionState.CLOSED;
+                        setState(WebSocketConnectionState.CLOSED);
                         events.onWebSocketClose();
                     }
                 }
@@ -227,7 +241,7 @@ public class WebSocketChannelClient {
 
         @Override
         public void onTextMessage(String payload) {
-            Log.d(TAG, "WSS->C: " + payload);
+            RtcLog.d(TAG, "WSS->C: %s", payload);
             if (payload != null) {
                 final String message = payload;
                 executor.execute(new Runnable() {
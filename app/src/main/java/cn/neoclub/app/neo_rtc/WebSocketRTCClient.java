@@ -1,10 +1,8 @@
 package cn.neoclub.app.neo_rtc;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
@@ -13,32 +11,45 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
+import cn.neoclub.rtc.core.IceCandidateInfo;
+import cn.neoclub.rtc.core.IceServerInfo;
+import cn.neoclub.rtc.core.ProtocolException;
+import cn.neoclub.rtc.core.RoomSignaling;
+import cn.neoclub.rtc.core.SessionDescriptionInfo;
+import cn.neoclub.rtc.core.SignalingProtocol;
+
+/**
+ * Room client over the WebSocket signaling server.
+ * <p/>
+ * <p>Members, message routing and recovery of a lost WebSocket are in the
+ * rtc-core RoomSignaling, which the simulator runs too. This class fetches
+ * the ICE servers, owns the WebSocket and the peer signaling channel, and
+ * converts between WebRTC and signaling types. Everything runs on
+ * |executor|.
+ */
 public class WebSocketRTCClient implements AppRTCClient,
         WebSocketChannelClient.WebSocketChannelEvents {
     private static final String TAG = "WSRTCClient";
+    // Candidates come in bursts, one is logged per interval.
+    private static final RtcLog.Sampler iceCandidateLogSampler = new RtcLog.Sampler(1000);
 
-    private String remote_id = "";
     public String client_id = "";
 
-    private enum ConnectionState {
-        NEW, CONNECTED, CLOSED, ERROR
-    }
-
     private final LooperExecutor executor;
     private SignalingEvents events;
     private WebSocketChannelClient wsClient;
-    private ConnectionState roomState;
+    private final RoomSignaling signaling;
     private String roomId;
 
-    private List<String> members = new ArrayList<>();
     private LinkedList<PeerConnection.IceServer> iceServers = new LinkedList<>();
+    private PeerSignalingChannel peerSignalingChannel;
 
     public WebSocketRTCClient(SignalingEvents events, LooperExecutor executor, String roomId, String client_id) {
         this.events = events;
         this.executor = executor;
         this.roomId = roomId;
         this.client_id = client_id;
-        roomState = ConnectionState.NEW;
+        signaling = new RoomSignaling(client_id, transport, scheduler, signalingEvents);
         executor.requestStart();
     }
 
@@ -69,10 +80,10 @@ public class WebSocketRTCClient implements AppRTCClient,
     private void connectToRoomInternal() {
         final String connectionUrl = getConnectionUrl();
         Log.d(TAG, "Connect to room: " + connectionUrl);
-        roomState = ConnectionState.NEW;
         wsClient = new WebSocketChannelClient(executor, this, roomId, client_id);
 
         String url = ContentManager.XIRSYS_URL;
+        CallSetupTracer.getInstance().mark(CallSetupTracer.ICE_SERVERS_REQUEST);
         AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
                 "GET", url, "", new AsyncHttpURLConnection.AsyncHttpEvents() {
             @Override
@@ -82,24 +93,19 @@ public class WebSocketRTCClient implements AppRTCClient,
 
             @Override
             public void onHttpComplete(String response) {
-                Log.e(TAG, "ICE servers  " + response);
+                RtcLog.d(TAG, "ICE servers: %s", response);
+                CallSetupTracer.getInstance().mark(CallSetupTracer.ICE_SERVERS_RECEIVED);
                 try {
-                    JSONObject roomJson = new JSONObject(response);
-                    JSONObject ice = new JSONObject(roomJson.getString("d"));
-                    JSONArray jsonArray = ice.getJSONArray("iceServers");
-                    for (int i = 0; i < jsonArray.length(); i++) {
-                        JSONObject m = new JSONObject(jsonArray.getString(i));
-                        String url = m.getString("url");
-                        String username = m.optString("username");
-                        String password = m.optString("credential");
-                        if (username.equals("")) {
-                            iceServers.add(new PeerConnection.IceServer(url));
+                    for (IceServerInfo server : SignalingProtocol.decodeIceServers(response)) {
+                        if (server.username.equals("")) {
+                            iceServers.add(new PeerConnection.IceServer(server.url));
                         } else {
-                            iceServers.add(new PeerConnection.IceServer(url, username, password));
+                            iceServers.add(new PeerConnection.IceServer(
+                                    server.url, server.username, server.password));
                         }
                     }
                     connect();
-                } catch (JSONException e) {
+                } catch (ProtocolException e) {
                     reportError("GAE POST JSON error: " + e.toString());
                 }
             }
@@ -118,8 +124,8 @@ public class WebSocketRTCClient implements AppRTCClient,
 
     // Disconnect from room and send bye messages - runs on a local looper thread.
     private void disconnectFromRoomInternal() {
-        Log.d(TAG, "Disconnect. Room state: " + roomState);
-        roomState = ConnectionState.CLOSED;
+        signaling.disconnect();
+        peerSignalingChannel = null;
         if (wsClient != null) {
             wsClient.disconnect(true);
         }
@@ -136,27 +142,7 @@ public class WebSocketRTCClient implements AppRTCClient,
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (roomState != ConnectionState.CONNECTED) {
-                    reportError("Sending offer SDP in non connected state.");
-                    return;
-                }
-
-                Log.e(TAG, "SEND OFFER SDP  " + members.size());
-                if (members.size() == 1) {
-                    String remoteId = members.get(0);
-                    Log.e("TAG", client_id);
-                    JSONObject json = new JSONObject();
-                    jsonPut(json, "sdp", sdp.description);
-                    jsonPut(json, "type", "offer");
-                    JSONObject mjson = new JSONObject();
-                    jsonPut(mjson, "cmd", "offer");
-                    jsonPut(mjson, "msg", json);
-                    jsonPut(mjson, "toId", remoteId);
-                    wsClient.send(mjson.toString());
-                    Log.e("SEND OFFER", mjson.toString());
-                } else if (members.size() > 1) {
-                    events.onChannelClose();
-                }
+                signaling.sendOffer(sdp.description);
             }
         });
     }
@@ -167,16 +153,7 @@ public class WebSocketRTCClient implements AppRTCClient,
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdp", sdp.description);
-                jsonPut(json, "type", "answer");
-                JSONObject mjson = new JSONObject();
-                jsonPut(mjson, "cmd", "answer");
-                jsonPut(mjson, "msg", json);
-                jsonPut(mjson, "toId", remote_id);
-                wsClient.send(mjson.toString());
-
-                Log.e("SEND ANSWER ", mjson.toString());
+                signaling.sendAnswer(sdp.description);
             }
         });
     }
@@ -187,17 +164,12 @@ public class WebSocketRTCClient implements AppRTCClient,
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "sdpMLineIndex", candidate.sdpMLineIndex);
-                jsonPut(json, "sdpMid", candidate.sdpMid);
-                jsonPut(json, "candidate", candidate.sdp);
-                JSONObject mjson = new JSONObject();
-                jsonPut(mjson, "cmd", "ice");
-                jsonPut(mjson, "msg", json);
-                jsonPut(mjson, "toId", remote_id);
-                wsClient.send(mjson.toString());
-
-                Log.e("SEND ICE ", mjson.toString());
+                signaling.sendLocalIceCandidate(toCandidateInfo(candidate));
+
+                if (RtcLog.isLoggable(TAG, RtcLog.DEBUG) && iceCandidateLogSampler.sample()) {
+                    RtcLog.d(TAG, "Send ICE candidate: %s, %s not logged",
+                            candidate.sdp, iceCandidateLogSampler.getSkippedCount());
+                }
             }
         });
     }
@@ -208,18 +180,73 @@ public class WebSocketRTCClient implements AppRTCClient,
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                JSONObject json = new JSONObject();
-                jsonPut(json, "type", "remove-candidates");
-                JSONArray jsonArray = new JSONArray();
+                List<IceCandidateInfo> removals = new ArrayList<>(candidates.length);
                 for (final IceCandidate candidate : candidates) {
-                    jsonArray.put(toJsonCandidate(candidate));
+                    removals.add(toCandidateInfo(candidate));
                 }
-                jsonPut(json, "candidates", jsonArray);
-                if (roomState != ConnectionState.CONNECTED) {
-                    reportError("Sending ICE candidate removals in non connected state.");
-                    return;
-                }
-                wsClient.send(json.toString());
+                signaling.sendLocalIceCandidateRemovals(removals);
+            }
+        });
+    }
+
+    // Send local video paused state to the other participant.
+    @Override
+    public void sendVideoPaused(final boolean paused) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                signaling.sendVideoPaused(paused);
+            }
+        });
+    }
+
+    @Override
+    public void sendViewSize(final int width, final int height, final int maxFps) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                signaling.sendViewSize(width, height, maxFps);
+            }
+        });
+    }
+
+    @Override
+    public void sendTcpTransportRestart() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                signaling.sendTcpTransportRestart();
+            }
+        });
+    }
+
+    @Override
+    public void setPeerSignalingChannel(final PeerSignalingChannel channel) {
+        channel.setListener(new PeerSignalingChannel.Listener() {
+            @Override
+            public void onMessage(final String message) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        signaling.onPeerMessage(message);
+                    }
+                });
+            }
+
+            @Override
+            public void onUndelivered(final String message) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        signaling.onPeerUndelivered(message);
+                    }
+                });
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                peerSignalingChannel = channel;
             }
         });
     }
@@ -234,142 +261,156 @@ public class WebSocketRTCClient implements AppRTCClient,
             Log.e(TAG, "Got WebSocket message in non registered state.");
             return;
         }
-        try {
-            Log.e(TAG, "message   " + msg);
-            JSONObject json = new JSONObject(msg);
-            String type = json.optString("cmd");
-            String errorText = json.optString("error");
-            String id = json.optString("from");
-            if (!id.equals("")) {
-                remote_id = id;
-                Log.e(TAG, "from ID  " + remote_id);
-            }
-            Log.d(TAG, type);
-            if (type.length() > 0) {
-                if (type.equals("ice")) {
-                    String message = json.getString("msg");
-                    JSONObject m = new JSONObject(message);
-                    events.onRemoteIceCandidate(toJavaCandidate(m));
-                } else if (type.equals("remove-candidates")) {
-                    JSONArray candidateArray = json.getJSONArray("candidates");
-                    IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-                    for (int i = 0; i < candidateArray.length(); ++i) {
-                        candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-                    }
-                    events.onRemoteIceCandidatesRemoved(candidates);
-                } else if (type.equals("answer")) {
-                    String message = json.getString("msg");
-                    JSONObject m = new JSONObject(message);
-                    String s = m.getString("sdp");
-                    SessionDescription sdp = new SessionDescription(
-                            SessionDescription.Type.fromCanonicalForm(type), s);
-                    events.onRemoteDescription(sdp);
-                } else if (type.equals("offer")) {
-                    String message = json.getString("msg");
-                    JSONObject m = new JSONObject(message);
-                    String s = m.getString("sdp");
-                    SessionDescription sdp = new SessionDescription(
-                            SessionDescription.Type.fromCanonicalForm(type), s);
-                    members.add(remote_id);
-                    if (members.size() == 1) {
-                        events.onRemoteDescription(sdp);
-                    }
-                } else if (type.equals("leave")) {
-                    if (remote_id.equals(members.get(0))) {
-                        events.onChannelClose();
-                    }
-                } else if (type.equals("loginack")) {
-                    Log.d(TAG, "login  " + msg);
-                    try {
-                        JSONObject object = new JSONObject(msg);
-                        String list = object.optString("members");
-                        if (!list.equals("")) {
-                            JSONArray messages = new JSONArray(list);
-                            for (int i = 0; i < messages.length(); ++i) {
-                                if (!client_id.equals(messages.get(i))) {
-                                    members.add(messages.getString(i));
-                                }
-                            }
-                        }
-                        onWebSocketRegister(members.size());
-                        Log.d(TAG, "members num  " + members.size());
-                    } catch (JSONException e) {
-                        reportError("Unexpected WebSocket message: " + e.toString());
-                    }
-                } else if (type.equals("browser")) {
-                    Log.e(TAG, "BROWSER " + msg);
-                } else {
-                    reportError("Unexpected WebSocket message: " + msg);
-                }
-            } else {
-                if (errorText != null && errorText.length() > 0) {
-                    reportError("WebSocket error message: " + errorText);
-                } else {
-                    reportError("Unexpected WebSocket message: " + msg);
-                }
-            }
-        } catch (JSONException e) {
-            reportError("WebSocket message JSON parsing error: " + e.toString());
-        }
+        signaling.onServerMessage(msg);
     }
 
     @Override
     public void onWebSocketClose() {
-        events.onChannelClose();
+        signaling.onServerClosed();
     }
 
     @Override
     public void onWebSocketError(String description) {
-        reportError("WebSocket error: " + description);
+        signaling.reportError("WebSocket error: " + description);
     }
 
-    private void onWebSocketRegister(int num) {
-        roomState = ConnectionState.CONNECTED;
-        events.onConnectedToRoom(isFirstIn(num), iceServers);
-    }
+    // --------------------------------------------------------------------
+    // RoomSignaling implementation, all called on |executor|.
+    private final RoomSignaling.Transport transport = new RoomSignaling.Transport() {
+        @Override
+        public void sendToServer(String cmd, String message, boolean urgent) {
+            FlightRecorder.record(FlightRecorder.SIGNALING_SENT,
+                    FlightRecorder.signalingCmdHash(cmd), message.length());
+            wsClient.send(message, urgent);
+        }
 
-    private boolean isFirstIn(int num) {
-        Log.e(TAG, "first in " + num);
-        return num == 0;
-    }
+        @Override
+        public boolean sendToPeer(String cmd, String message) {
+            if (peerSignalingChannel == null || !peerSignalingChannel.send(message)) {
+                return false;
+            }
+            FlightRecorder.record(FlightRecorder.PEER_SIGNALING_SENT,
+                    FlightRecorder.signalingCmdHash(cmd), message.length());
+            return true;
+        }
+
+        @Override
+        public void resetServerConnection() {
+            // New client queues messages sent meanwhile until it is registered.
+            wsClient = new WebSocketChannelClient(executor, WebSocketRTCClient.this,
+                    roomId, client_id);
+        }
+
+        @Override
+        public void connectServer() {
+            wsClient.connect(getConnectionUrl());
+        }
+    };
+
+    private final RoomSignaling.Scheduler scheduler = new RoomSignaling.Scheduler() {
+        @Override
+        public long nowMs() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public Object schedule(Runnable task, long delayMs) {
+            executor.postDelayed(task, delayMs);
+            return task;
+        }
+
+        @Override
+        public void cancel(Object handle) {
+            executor.removeCallbacks((Runnable) handle);
+        }
+    };
+
+    private final RoomSignaling.Events signalingEvents = new RoomSignaling.Events() {
+        @Override
+        public void onConnectedToRoom(boolean first) {
+            CallSetupTracer.getInstance().mark(CallSetupTracer.LOGIN_ACK);
+            events.onConnectedToRoom(first, iceServers);
+        }
+
+        @Override
+        public void onRemoteDescription(SessionDescriptionInfo sdp) {
+            events.onRemoteDescription(new SessionDescription(
+                    sdp.type == SessionDescriptionInfo.Type.OFFER
+                            ? SessionDescription.Type.OFFER : SessionDescription.Type.ANSWER,
+                    sdp.sdp));
+        }
+
+        @Override
+        public void onRemoteIceCandidate(IceCandidateInfo candidate) {
+            events.onRemoteIceCandidate(toJavaCandidate(candidate));
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(List<IceCandidateInfo> removals) {
+            IceCandidate[] candidates = new IceCandidate[removals.size()];
+            for (int i = 0; i < candidates.length; ++i) {
+                candidates[i] = toJavaCandidate(removals.get(i));
+            }
+            events.onRemoteIceCandidatesRemoved(candidates);
+        }
+
+        @Override
+        public void onRemoteVideoPaused(boolean paused) {
+            events.onRemoteVideoPaused(paused);
+        }
+
+        @Override
+        public void onRemoteViewSize(int width, int height, int maxFps) {
+            events.onRemoteViewSize(width, height, maxFps);
+        }
+
+        @Override
+        public void onDiagnosticsRequest(boolean aecDump, boolean nativeLogs, int calls) {
+            events.onDiagnosticsRequest(aecDump, nativeLogs, calls);
+        }
+
+        @Override
+        public void onRemoteTcpTransportRestart() {
+            events.onRemoteTcpTransportRestart();
+        }
+
+        @Override
+        public void onMessageReceived(String cmd, int length, boolean fromPeer) {
+            FlightRecorder.record(fromPeer ? FlightRecorder.PEER_SIGNALING_RECEIVED
+                    : FlightRecorder.SIGNALING_RECEIVED,
+                    FlightRecorder.signalingCmdHash(cmd), length);
+        }
+
+        @Override
+        public void onChannelClose() {
+            events.onChannelClose();
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            FlightRecorder.record(FlightRecorder.ERROR, FlightRecorder.ERROR_SIGNALING);
+            events.onChannelError(description);
+        }
+    };
 
     // --------------------------------------------------------------------
     // Helper functions.
     private void reportError(final String errorMessage) {
-        Log.e(TAG, errorMessage);
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                if (roomState != ConnectionState.ERROR) {
-                    roomState = ConnectionState.ERROR;
-                    events.onChannelError(errorMessage);
-                }
+                signaling.reportError(errorMessage);
             }
         });
     }
 
-    // Put a |key|->|value| mapping in |json|.
-    private static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    // Converts a Java candidate to a JSONObject.
-    private JSONObject toJsonCandidate(final IceCandidate candidate) {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdpMLineIndex", candidate.sdpMLineIndex);
-        jsonPut(json, "sdpMid", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        return json;
+    // Converts a Java candidate to its signaling form.
+    private static IceCandidateInfo toCandidateInfo(final IceCandidate candidate) {
+        return new IceCandidateInfo(candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp);
     }
 
-    // Converts a JSON candidate to a Java object.
-    IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-        return new IceCandidate(json.getString("sdpMid"),
-                json.getInt("sdpMLineIndex"),
-                json.getString("candidate"));
+    // Converts a signaling candidate to a Java object.
+    private static IceCandidate toJavaCandidate(IceCandidateInfo candidate) {
+        return new IceCandidate(candidate.sdpMid, candidate.sdpMLineIndex, candidate.sdp);
     }
 }
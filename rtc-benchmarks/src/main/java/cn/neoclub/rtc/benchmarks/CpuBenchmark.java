@@ -0,0 +1,56 @@
+package cn.neoclub.rtc.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.neoclub.rtc.core.CpuUsageCalculator;
+
+/**
+ * /proc/stat parsing and usage math of CpuMonitor, on consecutive samples
+ * of a loaded device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CpuBenchmark {
+    private static final long CPU_FREQ_CUR_SUM = 6182400;
+    private static final long CPU_FREQ_MAX_SUM = 9676800;
+
+    private String[] procStatLines;
+
+    @Setup
+    public void setUp() throws Exception {
+        procStatLines = Fixtures.readLines("proc_stat.txt").toArray(new String[0]);
+    }
+
+    @Benchmark
+    public void parseProcStat(Blackhole blackhole) {
+        for (String line : procStatLines) {
+            blackhole.consume(CpuUsageCalculator.parseProcStatLine(line));
+        }
+    }
+
+    @Benchmark
+    public double addSamples() {
+        CpuUsageCalculator calculator = new CpuUsageCalculator(5);
+        for (String line : procStatLines) {
+            calculator.addSample(CPU_FREQ_CUR_SUM, CPU_FREQ_MAX_SUM,
+                    CpuUsageCalculator.parseProcStatLine(line));
+        }
+        return calculator.getTotalCpuUsage().getAverage();
+    }
+}
@@ -0,0 +1,71 @@
+package cn.neoclub.rtc.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import cn.neoclub.rtc.core.JsonCodec;
+import cn.neoclub.rtc.core.ProtocolException;
+import cn.neoclub.rtc.core.StatsReportData;
+
+/**
+ * Loads the recorded benchmark inputs from src/main/resources/fixtures.
+ * <p/>
+ * <p>SDPs are stored one line per line and returned with the CRLF line
+ * ends of the wire format. Stats dumps are JSON arrays of
+ * {"id", "type", "values"} objects, as logged from StatsReport.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static List<String> readLines(String name) throws IOException {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IOException("Missing fixture " + name);
+        }
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    static String readSdp(String name) throws IOException {
+        StringBuilder sdp = new StringBuilder();
+        for (String line : readLines(name)) {
+            sdp.append(line).append("\r\n");
+        }
+        return sdp.toString();
+    }
+
+    static List<StatsReportData> readStats(String name) throws IOException, ProtocolException {
+        StringBuilder json = new StringBuilder();
+        for (String line : readLines(name)) {
+            json.append(line).append('\n');
+        }
+        List<StatsReportData> reports = new ArrayList<>();
+        for (Object item : (List<?>) JsonCodec.parse(json.toString())) {
+            Map<?, ?> report = (Map<?, ?>) item;
+            StatsReportData data = new StatsReportData(
+                    (String) report.get("id"), (String) report.get("type"));
+            for (Map.Entry<?, ?> value : ((Map<?, ?>) report.get("values")).entrySet()) {
+                data.values.put((String) value.getKey(), (String) value.getValue());
+            }
+            reports.add(data);
+        }
+        return reports;
+    }
+}
@@ -0,0 +1,65 @@
+package cn.neoclub.rtc.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.neoclub.rtc.core.SdpMunger;
+
+/**
+ * SDP rewriting done by PeerConnectionClient on every local and remote
+ * description, on a desktop Chrome and an Android offer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SdpBenchmark {
+    @Param({"chrome_offer.sdp", "android_offer.sdp"})
+    public String fixture;
+
+    private String sdp;
+
+    @Setup
+    public void setUp() throws Exception {
+        sdp = Fixtures.readSdp(fixture);
+    }
+
+    @Benchmark
+    public String preferVideoCodec() {
+        return SdpMunger.preferCodec(sdp, "VP9", false);
+    }
+
+    @Benchmark
+    public String preferAudioCodec() {
+        return SdpMunger.preferCodec(sdp, "ISAC", true);
+    }
+
+    @Benchmark
+    public String setStartBitrate() {
+        return SdpMunger.setStartBitrate("VP8", true, sdp, 1000);
+    }
+
+    // The remote description path of PeerConnectionClient with a video
+    // codec preference and start bitrates set.
+    @Benchmark
+    public String remoteDescription() {
+        String description = SdpMunger.preferCodec(sdp, "VP9", false);
+        description = SdpMunger.setStartBitrate("VP8", true, description, 1000);
+        description = SdpMunger.setStartBitrate("VP9", true, description, 1000);
+        description = SdpMunger.setStartBitrate("H264", true, description, 1000);
+        return SdpMunger.setStartBitrate("opus", false, description, 32);
+    }
+}
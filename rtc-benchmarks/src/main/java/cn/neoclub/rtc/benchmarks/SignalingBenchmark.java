@@ -0,0 +1,84 @@
+package cn.neoclub.rtc.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cn.neoclub.rtc.core.IceCandidateInfo;
+import cn.neoclub.rtc.core.SignalingProtocol;
+
+/**
+ * Signaling message decoding and encoding, as done by WebSocketRTCClient
+ * for every server and peer channel message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalingBenchmark {
+    private static final String REMOTE_ID = "1024";
+
+    private String offerSdp;
+    private String offerMessage;
+    // One trickled candidate burst, as received from the server.
+    private String[] candidateMessages;
+    private List<IceCandidateInfo> candidates;
+    private String removalsMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        offerSdp = Fixtures.readSdp("chrome_offer.sdp");
+        offerMessage = SignalingProtocol.encodeSessionDescription(
+                SignalingProtocol.CMD_OFFER, offerSdp, REMOTE_ID);
+        candidateMessages = Fixtures.readLines("candidates.txt").toArray(new String[0]);
+        candidates = new ArrayList<>(candidateMessages.length);
+        for (String message : candidateMessages) {
+            candidates.add(SignalingProtocol.decode(message).getCandidate());
+        }
+        removalsMessage = SignalingProtocol.encodeIceCandidateRemovals(candidates, REMOTE_ID);
+    }
+
+    @Benchmark
+    public String decodeOffer() throws Exception {
+        return SignalingProtocol.decode(offerMessage).getSdp();
+    }
+
+    @Benchmark
+    public void decodeIceCandidates(Blackhole blackhole) throws Exception {
+        for (String message : candidateMessages) {
+            blackhole.consume(SignalingProtocol.decode(message).getCandidate());
+        }
+    }
+
+    @Benchmark
+    public List<IceCandidateInfo> decodeCandidateRemovals() throws Exception {
+        return SignalingProtocol.decode(removalsMessage).getCandidates();
+    }
+
+    @Benchmark
+    public String encodeOffer() {
+        return SignalingProtocol.encodeSessionDescription(
+                SignalingProtocol.CMD_OFFER, offerSdp, REMOTE_ID);
+    }
+
+    @Benchmark
+    public void encodeIceCandidates(Blackhole blackhole) {
+        for (IceCandidateInfo candidate : candidates) {
+            blackhole.consume(SignalingProtocol.encodeIceCandidate(candidate, REMOTE_ID));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cn.neoclub.rtc.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cn.neoclub.rtc.core.HudStats;
+import cn.neoclub.rtc.core.StatsReportData;
+
+/**
+ * HUD stats flattening, run by HudFragment once per stats callback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsBenchmark {
+    private static final String VIDEO_TRACK_ID = "ARDAMSv0";
+
+    private List<StatsReportData> reports;
+
+    @Setup
+    public void setUp() throws Exception {
+        reports = Fixtures.readStats("stats.json");
+    }
+
+    @Benchmark
+    public HudStats parseHudStats() {
+        return HudStats.parse(reports, VIDEO_TRACK_ID);
+    }
+}
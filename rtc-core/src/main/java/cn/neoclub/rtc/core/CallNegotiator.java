@@ -0,0 +1,187 @@
+package cn.neoclub.rtc.core;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Offer/answer negotiation of one peer connection.
+ * <p/>
+ * <p>Tracks which side offered, holds the local description until it is
+ * set, and queues remote ICE candidates until both descriptions are set,
+ * since a peer connection rejects candidates before that. The peer
+ * connection is reached through Peer so the negotiation runs the same on a
+ * device and in the simulator. Not thread safe, all calls including the
+ * Peer callbacks must come from one thread.
+ */
+public class CallNegotiator {
+    private static final String TAG = "CallNegotiator";
+
+    /**
+     * Peer connection operations, completions are reported back through
+     * onCreateSuccess() and onSetSuccess(), failures are handled by the
+     * caller.
+     */
+    public interface Peer {
+        void createOffer(boolean iceRestart);
+
+        void createAnswer();
+
+        void setLocalDescription(SessionDescriptionInfo sdp);
+
+        void setRemoteDescription(SessionDescriptionInfo sdp);
+
+        void addIceCandidate(IceCandidateInfo candidate);
+
+        SignalingState getSignalingState();
+    }
+
+    /**
+     * Negotiation results.
+     */
+    public interface Events {
+        /**
+         * The local description is set and has to be sent to the remote
+         * peer, as an offer if |initiator|.
+         */
+        void onLocalDescription(SessionDescriptionInfo sdp, boolean initiator);
+
+        void onNegotiationError(String description);
+    }
+
+    private final Peer peer;
+    private final Events events;
+    private boolean initiator;
+    private boolean started;
+    // Either offer or answer, null while none is being set.
+    private SessionDescriptionInfo localSdp;
+    // Null once remote candidates can be added to the peer connection.
+    private List<IceCandidateInfo> queuedRemoteCandidates = new LinkedList<>();
+
+    public CallNegotiator(Peer peer, Events events) {
+        this.peer = peer;
+        this.events = events;
+    }
+
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    /**
+     * Returns true once an offer or answer was requested, local tracks are
+     * part of the negotiation from then on.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public void createOffer() {
+        initiator = true;
+        started = true;
+        localSdp = null;
+        peer.createOffer(false);
+    }
+
+    /**
+     * Offers an ICE restart. Remote candidates of the restarted session are
+     * only usable once the answer is set, so they are queued until then.
+     */
+    public void createIceRestartOffer() {
+        if (queuedRemoteCandidates == null) {
+            queuedRemoteCandidates = new LinkedList<>();
+        }
+        localSdp = null;
+        peer.createOffer(true);
+    }
+
+    public void createAnswer() {
+        initiator = false;
+        started = true;
+        localSdp = null;
+        peer.createAnswer();
+    }
+
+    public void setRemoteDescription(SessionDescriptionInfo sdp) {
+        peer.setRemoteDescription(sdp);
+    }
+
+    public void addRemoteIceCandidate(IceCandidateInfo candidate) {
+        if (queuedRemoteCandidates != null) {
+            queuedRemoteCandidates.add(candidate);
+        } else {
+            peer.addIceCandidate(candidate);
+        }
+    }
+
+    /**
+     * Drops removed candidates which are still queued, the caller removes
+     * the others from the peer connection.
+     */
+    public void removeQueuedRemoteCandidates(List<IceCandidateInfo> candidates) {
+        if (queuedRemoteCandidates == null) {
+            return;
+        }
+        for (IceCandidateInfo candidate : candidates) {
+            for (Iterator<IceCandidateInfo> it = queuedRemoteCandidates.iterator();
+                 it.hasNext(); ) {
+                if (it.next().sdp.equals(candidate.sdp)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with the created offer or answer, after any SDP changes.
+     */
+    public void onCreateSuccess(SessionDescriptionInfo sdp) {
+        if (localSdp != null) {
+            events.onNegotiationError("Multiple SDP create.");
+            return;
+        }
+        localSdp = sdp;
+        CoreLog.d(TAG, "Set local SDP from %s", sdp.type);
+        peer.setLocalDescription(sdp);
+    }
+
+    /**
+     * Called when a local or remote description is set. Returns the
+     * signaling state, which tells which one it was, also when the call is
+     * renegotiated.
+     */
+    public SignalingState onSetSuccess() {
+        SignalingState state = peer.getSignalingState();
+        if (state == SignalingState.HAVE_LOCAL_OFFER) {
+            // We've just set our local offer so time to send it.
+            CoreLog.d(TAG, "Local SDP set succesfully");
+            events.onLocalDescription(localSdp, initiator);
+        } else if (state == SignalingState.HAVE_REMOTE_OFFER) {
+            // We've just set remote offer - do nothing for now -
+            // answer will be created soon.
+            CoreLog.d(TAG, "Remote SDP set succesfully");
+        } else if (state == SignalingState.STABLE) {
+            if (initiator) {
+                // We've just set remote answer, so drain remote
+                // and send local ICE candidates.
+                CoreLog.d(TAG, "Remote SDP set succesfully");
+            } else {
+                // We've just set our local answer so time to send it,
+                // drain remote and send local ICE candidates.
+                CoreLog.d(TAG, "Local SDP set succesfully");
+                events.onLocalDescription(localSdp, initiator);
+            }
+            drainCandidates();
+        }
+        return state;
+    }
+
+    private void drainCandidates() {
+        if (queuedRemoteCandidates != null) {
+            CoreLog.d(TAG, "Add %s remote candidates", queuedRemoteCandidates.size());
+            for (IceCandidateInfo candidate : queuedRemoteCandidates) {
+                peer.addIceCandidate(candidate);
+            }
+            queuedRemoteCandidates = null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package cn.neoclub.rtc.core;
+
+import java.util.Locale;
+
+/**
+ * Logging for core classes, forwarded to a Logger set by the platform.
+ * <p/>
+ * <p>Nothing is logged until setLogger() is called. Messages are
+ * String.format() patterns, formatted only if the logger takes the level.
+ * Levels are the android.util.Log ones.
+ */
+public final class CoreLog {
+    public static final int DEBUG = 3;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Log output of the platform.
+     */
+    public interface Logger {
+        boolean isLoggable(String tag, int level);
+
+        void log(int level, String tag, String message);
+    }
+
+    private static volatile Logger logger;
+
+    private CoreLog() {
+    }
+
+    public static void setLogger(Logger logger) {
+        CoreLog.logger = logger;
+    }
+
+    public static void d(String tag, String message) {
+        Logger currentLogger = logger;
+        if (currentLogger != null && currentLogger.isLoggable(tag, DEBUG)) {
+            currentLogger.log(DEBUG, tag, message);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1) {
+        log(DEBUG, tag, format, arg1, null, null);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        log(DEBUG, tag, format, arg1, arg2, null);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        log(DEBUG, tag, format, arg1, arg2, arg3);
+    }
+
+    public static void w(String tag, String format, Object arg1) {
+        log(WARN, tag, format, arg1, null, null);
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        log(WARN, tag, format, arg1, arg2, null);
+    }
+
+    public static void e(String tag, String format, Object arg1) {
+        log(ERROR, tag, format, arg1, null, null);
+    }
+
+    private static void log(int level, String tag, String format,
+                            Object arg1, Object arg2, Object arg3) {
+        Logger currentLogger = logger;
+        if (currentLogger != null && currentLogger.isLoggable(tag, level)) {
+            currentLogger.log(level, tag,
+                    String.format(Locale.US, format, arg1, arg2, arg3));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * CPU usage from /proc/stat and cpufreq samples.
+ * <p/>
+ * <p>The platform reads the files and passes the summed current and maximum
+ * core frequencies with the parsed first /proc/stat line to addSample().
+ * Usage is the share of busy jiffies since the previous sample, the total
+ * usage is scaled by the frequency relative to the maximum. All values are
+ * fractions, toPercent() converts them. Not thread safe.
+ */
+public class CpuUsageCalculator {
+    private static final String TAG = "CpuUsageCalculator";
+
+    // User CPU usage at current frequency.
+    private final MovingAverage userCpuUsage;
+    // System CPU usage at current frequency.
+    private final MovingAverage systemCpuUsage;
+    // Total CPU usage relative to maximum frequency.
+    private final MovingAverage totalCpuUsage;
+    // CPU frequency in percentage from maximum.
+    private final MovingAverage frequencyScale;
+    private ProcStat lastProcStat = new ProcStat(0, 0, 0);
+
+    /**
+     * Cumulative jiffies of all CPUs.
+     */
+    public static class ProcStat {
+        public final long userTime;
+        public final long systemTime;
+        public final long idleTime;
+
+        public ProcStat(long userTime, long systemTime, long idleTime) {
+            this.userTime = userTime;
+            this.systemTime = systemTime;
+            this.idleTime = idleTime;
+        }
+    }
+
+    public CpuUsageCalculator(int movingAverageSamples) {
+        userCpuUsage = new MovingAverage(movingAverageSamples);
+        systemCpuUsage = new MovingAverage(movingAverageSamples);
+        totalCpuUsage = new MovingAverage(movingAverageSamples);
+        frequencyScale = new MovingAverage(movingAverageSamples);
+    }
+
+    /**
+     * Parses the cumulative first line of /proc/stat, something like
+     * "cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0"
+     * with user, nice, system, idle, iowait, irq and softirq jiffies.
+     * Returns null if the line is too short.
+     */
+    public static ProcStat parseProcStatLine(String line) {
+        if (line == null) {
+            return null;
+        }
+        String[] fields = line.trim().split("\\s+");
+        int length = fields.length;
+        if (length < 5) {
+            return null;
+        }
+        long userTime = parseLong(fields[1]);  // user
+        userTime += parseLong(fields[2]);  // nice
+        long systemTime = parseLong(fields[3]); // system
+        long idleTime = parseLong(fields[4]); // idle
+        if (length >= 8) {
+            userTime += parseLong(fields[5]);  // iowait
+            systemTime += parseLong(fields[6]); // irq
+            systemTime += parseLong(fields[7]); // softirq
+        }
+        return new ProcStat(userTime, systemTime, idleTime);
+    }
+
+    /**
+     * Adds a sample, returns false if it holds no usable data and was
+     * dropped.
+     */
+    public boolean addSample(long cpuFreqCurSum, long cpuFreqMaxSum, ProcStat procStat) {
+        if (cpuFreqCurSum == 0 || cpuFreqMaxSum == 0 || procStat == null) {
+            return false;
+        }
+        // Since the cycle counts are for the period between the last sample
+        // and this one, average the frequency between now and the beginning
+        // of the period. This is significantly incorrect only if the
+        // frequency peaked or dropped in between.
+        double currentFrequencyScale = cpuFreqCurSum / (double) cpuFreqMaxSum;
+        if (frequencyScale.getCurrent() > 0) {
+            currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
+        }
+
+        long diffUserTime = procStat.userTime - lastProcStat.userTime;
+        long diffSystemTime = procStat.systemTime - lastProcStat.systemTime;
+        long diffIdleTime = procStat.idleTime - lastProcStat.idleTime;
+        long allTime = diffUserTime + diffSystemTime + diffIdleTime;
+        if (currentFrequencyScale == 0 || allTime == 0) {
+            return false;
+        }
+
+        frequencyScale.addValue(currentFrequencyScale);
+        double currentUserCpuUsage = diffUserTime / (double) allTime;
+        userCpuUsage.addValue(currentUserCpuUsage);
+        double currentSystemCpuUsage = diffSystemTime / (double) allTime;
+        systemCpuUsage.addValue(currentSystemCpuUsage);
+        totalCpuUsage.addValue(
+                (currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale);
+
+        // Save new measurements for next round's deltas.
+        lastProcStat = procStat;
+        return true;
+    }
+
+    /**
+     * Clears the averages, the next sample still measures from the last
+     * one.
+     */
+    public void reset() {
+        userCpuUsage.reset();
+        systemCpuUsage.reset();
+        totalCpuUsage.reset();
+        frequencyScale.reset();
+    }
+
+    public MovingAverage getUserCpuUsage() {
+        return userCpuUsage;
+    }
+
+    public MovingAverage getSystemCpuUsage() {
+        return systemCpuUsage;
+    }
+
+    public MovingAverage getTotalCpuUsage() {
+        return totalCpuUsage;
+    }
+
+    public MovingAverage getFrequencyScale() {
+        return frequencyScale;
+    }
+
+    public static int toPercent(double d) {
+        return (int) (d * 100 + 0.5);
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            CoreLog.e(TAG, "Bad /proc/stat field %s", value);
+            return 0;
+        }
+    }
+}
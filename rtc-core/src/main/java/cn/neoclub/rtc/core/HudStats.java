@@ -0,0 +1,90 @@
+package cn.neoclub.rtc.core;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stats shown by the HUD, picked out of one getStats() result.
+ * <p/>
+ * <p>The text blocks list the report id and then one name=value line per
+ * value, with the "goog" prefix stripped. Numbers are kept as the reported
+ * strings and are null if the report was missing.
+ */
+public class HudStats {
+    public final String bweStat;
+    public final String connectionStat;
+    public final String videoSendStat;
+    public final String videoRecvStat;
+    public final String fps;
+    public final String targetBitrate;
+    public final String actualBitrate;
+
+    private HudStats(String bweStat, String connectionStat, String videoSendStat,
+                     String videoRecvStat, String fps, String targetBitrate,
+                     String actualBitrate) {
+        this.bweStat = bweStat;
+        this.connectionStat = connectionStat;
+        this.videoSendStat = videoSendStat;
+        this.videoRecvStat = videoRecvStat;
+        this.fps = fps;
+        this.targetBitrate = targetBitrate;
+        this.actualBitrate = actualBitrate;
+    }
+
+    /**
+     * Parses |reports|, the sent video is the ssrc report of the track
+     * whose id contains |videoTrackId|.
+     */
+    public static HudStats parse(List<StatsReportData> reports, String videoTrackId) {
+        StringBuilder bweStat = new StringBuilder();
+        StringBuilder connectionStat = new StringBuilder();
+        StringBuilder videoSendStat = new StringBuilder();
+        StringBuilder videoRecvStat = new StringBuilder();
+        String fps = null;
+        String targetBitrate = null;
+        String actualBitrate = null;
+
+        for (StatsReportData report : reports) {
+            if (report.type.equals("ssrc") && report.id.contains("ssrc")
+                    && report.id.contains("send")) {
+                // Send video statistics.
+                String trackId = report.get("googTrackId");
+                if (trackId != null && trackId.contains(videoTrackId)) {
+                    fps = report.get("googFrameRateSent");
+                    append(videoSendStat, report, false);
+                }
+            } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
+                    && report.id.contains("recv")) {
+                // Receive video statistics, only video reports have a frame width.
+                if (report.get("googFrameWidthReceived") != null) {
+                    append(videoRecvStat, report, false);
+                }
+            } else if (report.id.equals("bweforvideo")) {
+                // BWE statistics.
+                targetBitrate = report.get("googTargetEncBitrate");
+                actualBitrate = report.get("googActualEncBitrate");
+                append(bweStat, report, true);
+            } else if (report.type.equals("googCandidatePair")) {
+                // Connection statistics.
+                if ("true".equals(report.get("googActiveConnection"))) {
+                    append(connectionStat, report, false);
+                }
+            }
+        }
+        return new HudStats(bweStat.toString(), connectionStat.toString(),
+                videoSendStat.toString(), videoRecvStat.toString(),
+                fps, targetBitrate, actualBitrate);
+    }
+
+    private static void append(StringBuilder stat, StatsReportData report,
+                               boolean stripAvailable) {
+        stat.append(report.id).append("\n");
+        for (Map.Entry<String, String> value : report.values.entrySet()) {
+            String name = value.getKey().replace("goog", "");
+            if (stripAvailable) {
+                name = name.replace("Available", "");
+            }
+            stat.append(name).append("=").append(value.getValue()).append("\n");
+        }
+    }
+}
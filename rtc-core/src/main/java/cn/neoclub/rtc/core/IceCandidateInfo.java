@@ -0,0 +1,16 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * ICE candidate as sent in signaling messages.
+ */
+public class IceCandidateInfo {
+    public final String sdpMid;
+    public final int sdpMLineIndex;
+    public final String sdp;
+
+    public IceCandidateInfo(String sdpMid, int sdpMLineIndex, String sdp) {
+        this.sdpMid = sdpMid;
+        this.sdpMLineIndex = sdpMLineIndex;
+        this.sdp = sdp;
+    }
+}
@@ -0,0 +1,17 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * STUN or TURN server from the ICE server response.
+ */
+public class IceServerInfo {
+    public final String url;
+    // Empty for servers without credentials.
+    public final String username;
+    public final String password;
+
+    public IceServerInfo(String url, String username, String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+}
@@ -0,0 +1,110 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * Replaces a local track of a peer connection during a call.
+ * <p/>
+ * <p>Until the first offer or answer is requested the new track just takes
+ * the old one's place in the local media stream. After that a stream change
+ * needs a new offer, which only the initiator makes, so the sender is
+ * switched to the new track instead and the old one stays in the stream,
+ * disabled. It is swapped out when the stream is detached from the peer
+ * connection, so a replacing peer connection negotiates the new track.
+ * <p>
+ * Tracks in the stream are disposed with it, release() disposes a track
+ * only the sender has. Not thread safe, call from one thread.
+ */
+public class LocalTrackReplacer<T> {
+    private static final String TAG = "LocalTrackReplacer";
+
+    /**
+     * Track operations of the local media stream and its peer connection.
+     */
+    public interface Media<T> {
+        void addToStream(T track);
+
+        void removeFromStream(T track);
+
+        /**
+         * Makes the sender of the negotiated track send |track|, returns
+         * false if it can't.
+         */
+        boolean setSenderTrack(T track);
+
+        void disable(T track);
+
+        void dispose(T track);
+    }
+
+    private final Media<T> media;
+    private T track;
+    // Negotiated track left in the stream, null if the stream has |track|.
+    private T streamTrack;
+
+    public LocalTrackReplacer(Media<T> media) {
+        this.media = media;
+    }
+
+    public void add(T track) {
+        this.track = track;
+        streamTrack = null;
+        media.addToStream(track);
+    }
+
+    public T getTrack() {
+        return track;
+    }
+
+    /**
+     * Returns true if the stream or the sender has the new track now,
+     * |negotiated| tells if the old one was offered or answered already.
+     */
+    public boolean replace(T newTrack, boolean negotiated) {
+        T oldTrack = track;
+        track = newTrack;
+        if (negotiated) {
+            boolean replaced = media.setSenderTrack(newTrack);
+            if (streamTrack == null) {
+                streamTrack = oldTrack;
+                media.disable(oldTrack);
+            } else {
+                media.dispose(oldTrack);
+            }
+            CoreLog.d(TAG, "Replaced sender track: %s", replaced);
+            return replaced;
+        }
+        if (streamTrack != null) {
+            media.dispose(oldTrack);
+            oldTrack = streamTrack;
+            streamTrack = null;
+        }
+        media.removeFromStream(oldTrack);
+        media.dispose(oldTrack);
+        media.addToStream(newTrack);
+        return true;
+    }
+
+    /**
+     * Called while the stream is attached to no peer connection, the next
+     * one negotiates the current track.
+     */
+    public void onStreamDetached() {
+        if (streamTrack == null) {
+            return;
+        }
+        media.removeFromStream(streamTrack);
+        media.dispose(streamTrack);
+        streamTrack = null;
+        media.addToStream(track);
+    }
+
+    /**
+     * Called after the stream is disposed.
+     */
+    public void release() {
+        if (streamTrack != null) {
+            media.dispose(track);
+        }
+        track = null;
+        streamTrack = null;
+    }
+}
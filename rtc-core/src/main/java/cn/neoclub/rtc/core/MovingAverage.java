@@ -0,0 +1,48 @@
+package cn.neoclub.rtc.core;
+
+import java.util.Arrays;
+
+/**
+ * Average of the last |size| values, values not added yet count as 0.
+ */
+public class MovingAverage {
+    private final int size;
+    private final double[] circBuffer;
+    private double sum;
+    private double currentValue;
+    private int circBufferIndex;
+
+    public MovingAverage(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException(
+                    "Size value in MovingAverage ctor should be positive.");
+        }
+        this.size = size;
+        circBuffer = new double[size];
+    }
+
+    public void reset() {
+        Arrays.fill(circBuffer, 0);
+        circBufferIndex = 0;
+        sum = 0;
+        currentValue = 0;
+    }
+
+    public void addValue(double value) {
+        sum -= circBuffer[circBufferIndex];
+        circBuffer[circBufferIndex++] = value;
+        currentValue = value;
+        sum += value;
+        if (circBufferIndex >= size) {
+            circBufferIndex = 0;
+        }
+    }
+
+    public double getCurrent() {
+        return currentValue;
+    }
+
+    public double getAverage() {
+        return sum / (double) size;
+    }
+}
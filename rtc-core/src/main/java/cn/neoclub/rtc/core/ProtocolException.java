@@ -0,0 +1,12 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * Thrown for malformed JSON or signaling messages.
+ */
+public class ProtocolException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
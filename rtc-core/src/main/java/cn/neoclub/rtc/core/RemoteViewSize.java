@@ -0,0 +1,53 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * Size math of receiver driven video scaling.
+ * <p/>
+ * <p>The receiver reports the size remote video is rendered at, the sender
+ * scales its capture format down to cover it. Sizes are {width, height}.
+ * A full screen view of a phone is usually larger than the capture format,
+ * so scaling only happens for smaller renderings: aspect fit letterboxes,
+ * small windows or thumbnails.
+ */
+public final class RemoteViewSize {
+    private RemoteViewSize() {
+    }
+
+    /**
+     * Returns the size a frame is drawn at in a view. Aspect fill covers the
+     * whole view, aspect fit draws the frame letterboxed inside it. The view
+     * size is returned while the frame size is unknown.
+     */
+    public static int[] getRenderedSize(int viewWidth, int viewHeight, int frameWidth,
+                                        int frameHeight, boolean aspectFill) {
+        if (aspectFill || frameWidth <= 0 || frameHeight <= 0) {
+            return new int[] {viewWidth, viewHeight};
+        }
+        double scale = Math.min((double) viewWidth / frameWidth,
+                (double) viewHeight / frameHeight);
+        return new int[] {(int) Math.round(frameWidth * scale),
+                (int) Math.round(frameHeight * scale)};
+    }
+
+    /**
+     * Returns the capture size scaled down, never up, so it covers a view
+     * of the remote peer with aspect fill. View and camera orientation may
+     * differ, so long and short sides are compared. Scaled sizes are even.
+     */
+    public static int[] getOutputSize(int captureWidth, int captureHeight, int viewWidth,
+                                      int viewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return new int[] {captureWidth, captureHeight};
+        }
+        double scale = Math.max(
+                (double) Math.max(viewWidth, viewHeight)
+                        / Math.max(captureWidth, captureHeight),
+                (double) Math.min(viewWidth, viewHeight)
+                        / Math.min(captureWidth, captureHeight));
+        if (scale >= 1) {
+            return new int[] {captureWidth, captureHeight};
+        }
+        return new int[] {(int) Math.round(captureWidth * scale) & ~1,
+                (int) Math.round(captureHeight * scale) & ~1};
+    }
+}
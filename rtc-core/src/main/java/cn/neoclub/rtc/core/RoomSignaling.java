@@ -0,0 +1,430 @@
+package cn.neoclub.rtc.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signaling of one room member: the room members, who the remote peer is,
+ * where each message goes and how a lost signaling connection is survived.
+ * <p/>
+ * <p>Messages from the signaling server and from the peer signaling
+ * channel are handled alike. Mid-call messages go over the peer channel
+ * while it is usable, descriptions always go through the server. A server
+ * connection lost mid-call is replaced and registered again for up to
+ * RECOVERY_TIMEOUT_MS, a remote peer which left without hanging up is
+ * given the same time to come back. Connections, timers and results are
+ * reached through interfaces so the signaling runs the same on a device
+ * and in the simulator. Not thread safe, all calls including the
+ * scheduled tasks must come from one thread.
+ */
+public class RoomSignaling {
+    private static final String TAG = "RoomSignaling";
+    public static final int RECONNECT_DELAY_MS = 1000;
+    public static final int RECOVERY_TIMEOUT_MS = 30000;
+    // Diagnostics are captured for this many calls at most, as many as the
+    // capture keeps.
+    public static final int MAX_DIAGNOSTICS_CALLS = 5;
+
+    /**
+     * Connections to the signaling server and to the remote peer.
+     */
+    public interface Transport {
+        /**
+         * Sends to the signaling server. Messages are queued while the
+         * connection is not registered, |urgent| ones ahead of the others.
+         */
+        void sendToServer(String cmd, String message, boolean urgent);
+
+        /**
+         * Sends over the peer signaling channel, returns false if it is not
+         * usable.
+         */
+        boolean sendToPeer(String cmd, String message);
+
+        /**
+         * Replaces the lost server connection with a new one, which queues
+         * messages until connectServer().
+         */
+        void resetServerConnection();
+
+        /**
+         * Connects the new server connection and registers it again.
+         */
+        void connectServer();
+    }
+
+    /**
+     * Delayed tasks on the signaling thread.
+     */
+    public interface Scheduler {
+        long nowMs();
+
+        /**
+         * Runs |task| after |delayMs|, returns a handle for cancel().
+         */
+        Object schedule(Runnable task, long delayMs);
+
+        void cancel(Object handle);
+    }
+
+    /**
+     * Room and remote peer events.
+     */
+    public interface Events {
+        void onConnectedToRoom(boolean first);
+
+        void onRemoteDescription(SessionDescriptionInfo sdp);
+
+        void onRemoteIceCandidate(IceCandidateInfo candidate);
+
+        void onRemoteIceCandidatesRemoved(List<IceCandidateInfo> candidates);
+
+        void onRemoteVideoPaused(boolean paused);
+
+        void onRemoteViewSize(int width, int height, int maxFps);
+
+        void onDiagnosticsRequest(boolean aecDump, boolean nativeLogs, int calls);
+
+        void onRemoteTcpTransportRestart();
+
+        /**
+         * Called for each message before it is handled, for tracing.
+         */
+        void onMessageReceived(String cmd, int length, boolean fromPeer);
+
+        void onChannelClose();
+
+        void onChannelError(String description);
+    }
+
+    private enum State {
+        NEW, CONNECTED, CLOSED, ERROR
+    }
+
+    private final String clientId;
+    private final Transport transport;
+    private final Scheduler scheduler;
+    private final Events events;
+    private State state = State.NEW;
+    private final List<String> members = new ArrayList<>();
+    private String remoteId = "";
+    // Set once the offer is sent, to the first member.
+    private boolean initiator;
+    private long signalingLostTimeMs = -1;
+    private Object reconnectTask;
+    private Object remoteLeftTask;
+
+    public RoomSignaling(String clientId, Transport transport, Scheduler scheduler,
+                         Events events) {
+        this.clientId = clientId;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.events = events;
+    }
+
+    public boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    public void sendOffer(String sdp) {
+        if (state != State.CONNECTED) {
+            reportError("Sending offer SDP in non connected state.");
+            return;
+        }
+        CoreLog.d(TAG, "Send offer SDP, members: %s", members.size());
+        if (members.size() == 1) {
+            initiator = true;
+            String message = SignalingProtocol.encodeSessionDescription(
+                    SignalingProtocol.CMD_OFFER, sdp, members.get(0));
+            transport.sendToServer(SignalingProtocol.CMD_OFFER, message, false);
+            CoreLog.d(TAG, "C->WSS offer: %s", message);
+        } else if (members.size() > 1) {
+            events.onChannelClose();
+        }
+    }
+
+    public void sendAnswer(String sdp) {
+        String message = SignalingProtocol.encodeSessionDescription(
+                SignalingProtocol.CMD_ANSWER, sdp, remoteId);
+        transport.sendToServer(SignalingProtocol.CMD_ANSWER, message, false);
+        CoreLog.d(TAG, "C->WSS answer: %s", message);
+    }
+
+    public void sendLocalIceCandidate(IceCandidateInfo candidate) {
+        // Candidates go ahead of other messages queued while the server
+        // connection is replaced, new paths are needed first.
+        sendToPeer(SignalingProtocol.CMD_ICE,
+                SignalingProtocol.encodeIceCandidate(candidate, getCandidateTarget()), true);
+    }
+
+    public void sendLocalIceCandidateRemovals(List<IceCandidateInfo> candidates) {
+        if (state != State.CONNECTED) {
+            reportError("Sending ICE candidate removals in non connected state.");
+            return;
+        }
+        sendToPeer(SignalingProtocol.CMD_REMOVE_CANDIDATES,
+                SignalingProtocol.encodeIceCandidateRemovals(candidates, getCandidateTarget()),
+                true);
+    }
+
+    public void sendVideoPaused(boolean paused) {
+        if (state != State.CONNECTED) {
+            CoreLog.w(TAG, "Sending video state in %s state.", state);
+            return;
+        }
+        sendToPeer(SignalingProtocol.CMD_VIDEO,
+                SignalingProtocol.encodeVideoPaused(paused, remoteId), false);
+    }
+
+    public void sendViewSize(int width, int height, int maxFps) {
+        if (state != State.CONNECTED) {
+            CoreLog.w(TAG, "Sending view size in %s state.", state);
+            return;
+        }
+        sendToPeer(SignalingProtocol.CMD_VIEW,
+                SignalingProtocol.encodeViewSize(width, height, maxFps, remoteId), false);
+    }
+
+    /**
+     * Goes to the server like the offer it precedes, the peer channel
+     * closes with the peer connection it belongs to.
+     */
+    public void sendTcpTransportRestart() {
+        if (state != State.CONNECTED || members.isEmpty()) {
+            CoreLog.w(TAG, "Sending TCP transport restart in %s state.", state);
+            return;
+        }
+        transport.sendToServer(SignalingProtocol.CMD_TRANSPORT,
+                SignalingProtocol.encodeTcpTransportRestart(members.get(0)), false);
+    }
+
+    /**
+     * Sends a hang up to the remote peer and stops handling messages.
+     */
+    public void disconnect() {
+        CoreLog.d(TAG, "Disconnect. Room state: %s", state);
+        cancelTasks();
+        if (state == State.CONNECTED && !members.isEmpty()) {
+            // Tell the peer this is a hang up and not a lost connection.
+            transport.sendToServer(SignalingProtocol.CMD_HANGUP,
+                    SignalingProtocol.encodeHangup(members.get(0)), false);
+        }
+        state = State.CLOSED;
+    }
+
+    public void onServerMessage(String text) {
+        onMessage(text, false);
+    }
+
+    public void onPeerMessage(String text) {
+        if (state == State.CONNECTED) {
+            onMessage(text, true);
+        }
+    }
+
+    /**
+     * Resends a message the peer channel closed before delivering it.
+     */
+    public void onPeerUndelivered(String text) {
+        if (state != State.CONNECTED) {
+            return;
+        }
+        CoreLog.d(TAG, "Resend over server: %s", text);
+        try {
+            transport.sendToServer(SignalingProtocol.decode(text).getCmd(), text, true);
+        } catch (ProtocolException e) {
+            CoreLog.e(TAG, "Can not resend peer message: %s", e.getMessage());
+        }
+    }
+
+    public void onServerClosed() {
+        if (state != State.CONNECTED) {
+            events.onChannelClose();
+            return;
+        }
+        long nowMs = scheduler.nowMs();
+        if (signalingLostTimeMs < 0) {
+            signalingLostTimeMs = nowMs;
+        } else if (nowMs - signalingLostTimeMs > RECOVERY_TIMEOUT_MS) {
+            CoreLog.e(TAG, "Signaling not recovered in %s ms.", RECOVERY_TIMEOUT_MS);
+            events.onChannelClose();
+            return;
+        }
+        CoreLog.d(TAG, "Server connection lost in call, reconnect.");
+        transport.resetServerConnection();
+        cancel(reconnectTask);
+        reconnectTask = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnectTask = null;
+                if (state == State.CONNECTED) {
+                    transport.connectServer();
+                }
+            }
+        }, RECONNECT_DELAY_MS);
+    }
+
+    public void reportError(String errorMessage) {
+        CoreLog.e(TAG, "%s", errorMessage);
+        if (state != State.ERROR) {
+            state = State.ERROR;
+            cancelTasks();
+            events.onChannelError(errorMessage);
+        }
+    }
+
+    private void onMessage(String text, boolean fromPeer) {
+        try {
+            CoreLog.d(TAG, "Message: %s", text);
+            SignalingMessage message = SignalingProtocol.decode(text);
+            String type = message.getCmd();
+            events.onMessageReceived(type, text.length(), fromPeer);
+            String id = message.getFrom();
+            if (!id.equals("")) {
+                remoteId = id;
+                if (isFirstMember(remoteId) && !type.equals(SignalingProtocol.CMD_LEAVE)) {
+                    // Remote peer is back after it left.
+                    cancel(remoteLeftTask);
+                    remoteLeftTask = null;
+                }
+            }
+            if (type.length() == 0) {
+                String errorText = message.getError();
+                if (errorText != null && errorText.length() > 0) {
+                    reportError("WebSocket error message: " + errorText);
+                } else {
+                    reportError("Unexpected WebSocket message: " + text);
+                }
+                return;
+            }
+            if (type.equals(SignalingProtocol.CMD_ICE)) {
+                events.onRemoteIceCandidate(message.getCandidate());
+            } else if (type.equals(SignalingProtocol.CMD_REMOVE_CANDIDATES)) {
+                events.onRemoteIceCandidatesRemoved(message.getCandidates());
+            } else if (type.equals(SignalingProtocol.CMD_ANSWER)) {
+                events.onRemoteDescription(new SessionDescriptionInfo(
+                        SessionDescriptionInfo.Type.ANSWER, message.getSdp()));
+            } else if (type.equals(SignalingProtocol.CMD_OFFER)) {
+                // Offers are also sent mid-call to renegotiate.
+                if (!members.contains(remoteId)) {
+                    members.add(remoteId);
+                }
+                if (isFirstMember(remoteId)) {
+                    events.onRemoteDescription(new SessionDescriptionInfo(
+                            SessionDescriptionInfo.Type.OFFER, message.getSdp()));
+                }
+            } else if (type.equals(SignalingProtocol.CMD_VIDEO)) {
+                events.onRemoteVideoPaused(message.getBoolean("paused"));
+            } else if (type.equals(SignalingProtocol.CMD_DIAGNOSTICS)) {
+                // Capture is requested by the server for a user, never by
+                // the remote peer, which may not turn on logging here.
+                if (fromPeer || !id.equals("")) {
+                    CoreLog.w(TAG, "Ignore diagnostics request from %s.",
+                            fromPeer ? "peer channel" : id);
+                    return;
+                }
+                int calls = Math.max(0, Math.min(message.optInt("calls"),
+                        MAX_DIAGNOSTICS_CALLS));
+                events.onDiagnosticsRequest(message.optBoolean("aecDump"),
+                        message.optBoolean("nativeLogs"), calls);
+            } else if (type.equals(SignalingProtocol.CMD_VIEW)) {
+                events.onRemoteViewSize(message.getInt("width"), message.getInt("height"),
+                        message.getInt("fps"));
+            } else if (type.equals(SignalingProtocol.CMD_TRANSPORT)) {
+                if (message.optBoolean("tcp")) {
+                    events.onRemoteTcpTransportRestart();
+                }
+            } else if (type.equals(SignalingProtocol.CMD_LEAVE)) {
+                if (isFirstMember(remoteId)) {
+                    CoreLog.d(TAG, "Remote peer left, wait for it to come back.");
+                    cancel(remoteLeftTask);
+                    remoteLeftTask = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            remoteLeftTask = null;
+                            CoreLog.d(TAG, "Remote peer didn't come back.");
+                            events.onChannelClose();
+                        }
+                    }, RECOVERY_TIMEOUT_MS);
+                }
+            } else if (type.equals(SignalingProtocol.CMD_HANGUP)) {
+                if (isFirstMember(remoteId)) {
+                    events.onChannelClose();
+                }
+            } else if (type.equals(SignalingProtocol.CMD_LOGIN_ACK)) {
+                for (String member : message.getMembers()) {
+                    if (!clientId.equals(member) && !members.contains(member)) {
+                        members.add(member);
+                    }
+                }
+                CoreLog.d(TAG, "Members: %s", members.size());
+                onRegistered();
+            } else if (type.equals(SignalingProtocol.CMD_BROWSER)) {
+                CoreLog.d(TAG, "Browser: %s", text);
+            } else {
+                reportError("Unexpected WebSocket message: " + text);
+            }
+        } catch (ProtocolException e) {
+            reportError("WebSocket message JSON parsing error: " + e.getMessage());
+        }
+    }
+
+    private void onRegistered() {
+        if (state == State.CONNECTED) {
+            // Registered again after the server connection was lost mid-call.
+            CoreLog.d(TAG, "Signaling recovered in %s ms.",
+                    scheduler.nowMs() - signalingLostTimeMs);
+            signalingLostTimeMs = -1;
+            return;
+        }
+        if (state != State.NEW) {
+            return;
+        }
+        state = State.CONNECTED;
+        CoreLog.d(TAG, "First in: %s", members.isEmpty());
+        events.onConnectedToRoom(members.isEmpty());
+    }
+
+    private boolean isFirstMember(String id) {
+        return !members.isEmpty() && id.equals(members.get(0));
+    }
+
+    // Sends a mid-call message straight to the peer if the peer connection
+    // is up, through the signaling server otherwise. Peer messages keep the
+    // server message format, so both paths are handled alike.
+    private void sendToPeer(String cmd, String message, boolean urgent) {
+        if (!transport.sendToPeer(cmd, message)) {
+            transport.sendToServer(cmd, message, urgent);
+        }
+    }
+
+    // The initiator's candidates follow its offer before the remote peer has
+    // sent anything, so they go where the offer went, not to |remoteId|.
+    private String getCandidateTarget() {
+        if (initiator && !members.isEmpty()) {
+            return members.get(0);
+        }
+        return remoteId;
+    }
+
+    private void cancelTasks() {
+        cancel(reconnectTask);
+        reconnectTask = null;
+        cancel(remoteLeftTask);
+        remoteLeftTask = null;
+    }
+
+    private void cancel(Object task) {
+        if (task != null) {
+            scheduler.cancel(task);
+        }
+    }
+}
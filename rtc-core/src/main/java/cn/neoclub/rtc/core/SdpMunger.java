@@ -0,0 +1,230 @@
+package cn.neoclub.rtc.core;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SDP rewriting for codec preference, bitrates and audio framing.
+ * <p/>
+ * <p>Every method takes an SDP and returns a new one, an SDP without the
+ * codec or media section it looks for is returned unchanged.
+ */
+public final class SdpMunger {
+    private static final String TAG = "SdpMunger";
+    public static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+    public static final String VIDEO_CODEC_PARAM_MIN_BITRATE = "x-google-min-bitrate";
+    public static final String VIDEO_CODEC_PARAM_MAX_BITRATE = "x-google-max-bitrate";
+    public static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+
+    private SdpMunger() {
+    }
+
+    public static String setStartBitrate(String codec, boolean isVideoCodec,
+                                          String sdpDescription, int bitrateKbps) {
+        if (isVideoCodec) {
+            return setCodecParameter(codec, sdpDescription,
+                    VIDEO_CODEC_PARAM_START_BITRATE, bitrateKbps);
+        } else {
+            return setCodecParameter(codec, sdpDescription,
+                    AUDIO_CODEC_PARAM_BITRATE, bitrateKbps * 1000);
+        }
+    }
+
+    public static String setVideoBitrateBounds(String codec, String sdpDescription,
+                                                int minBitrateKbps, int maxBitrateKbps) {
+        if (minBitrateKbps > 0) {
+            sdpDescription = setCodecParameter(codec, sdpDescription,
+                    VIDEO_CODEC_PARAM_MIN_BITRATE, minBitrateKbps);
+        }
+        if (maxBitrateKbps > 0) {
+            sdpDescription = setCodecParameter(codec, sdpDescription,
+                    VIDEO_CODEC_PARAM_MAX_BITRATE, maxBitrateKbps);
+        }
+        return sdpDescription;
+    }
+
+    // Sets |name|=|value| in the a=fmtp line of |codec|. Existing value of the
+    // parameter is replaced; a new a=fmtp line is added if codec has none.
+    public static String setCodecParameter(String codec, String sdpDescription,
+                                            String name, int value) {
+        String[] lines = sdpDescription.split("\r\n");
+        int rtpmapLineIndex = -1;
+        boolean sdpFormatUpdated = false;
+        String codecRtpMap = null;
+        // Search for codec rtpmap in format
+        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
+        Pattern codecPattern = Pattern.compile(regex);
+        for (int i = 0; i < lines.length; i++) {
+            Matcher codecMatcher = codecPattern.matcher(lines[i]);
+            if (codecMatcher.matches()) {
+                codecRtpMap = codecMatcher.group(1);
+                rtpmapLineIndex = i;
+                break;
+            }
+        }
+        if (codecRtpMap == null) {
+            CoreLog.w(TAG, "No rtpmap for %s codec", codec);
+            return sdpDescription;
+        }
+        CoreLog.d(TAG, "Found %s rtpmap %s at %s", codec, codecRtpMap, lines[rtpmapLineIndex]);
+
+        // Check if a=fmtp string already exist in remote SDP for this codec and
+        // update it with new parameter.
+        String parameter = name + "=" + value;
+        regex = "^a=fmtp:" + codecRtpMap + " [\\w-]+=[\\w-]+.*[\r]?$";
+        codecPattern = Pattern.compile(regex);
+        Pattern parameterPattern = Pattern.compile("(?<=[ ;])" + name + "=[^;]*");
+        for (int i = 0; i < lines.length; i++) {
+            Matcher codecMatcher = codecPattern.matcher(lines[i]);
+            if (codecMatcher.matches()) {
+                CoreLog.d(TAG, "Found %s %s", codec, lines[i]);
+                Matcher parameterMatcher = parameterPattern.matcher(lines[i]);
+                if (parameterMatcher.find()) {
+                    lines[i] = parameterMatcher.replaceFirst(parameter);
+                } else {
+                    lines[i] += "; " + parameter;
+                }
+                CoreLog.d(TAG, "Update remote SDP line: %s", lines[i]);
+                sdpFormatUpdated = true;
+                break;
+            }
+        }
+
+        StringBuilder newSdpDescription = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            newSdpDescription.append(lines[i]).append("\r\n");
+            // Append new a=fmtp line if no such line exist for a codec.
+            if (!sdpFormatUpdated && i == rtpmapLineIndex) {
+                String parameterSet = "a=fmtp:" + codecRtpMap + " " + parameter;
+                CoreLog.d(TAG, "Add remote SDP line: %s", parameterSet);
+                newSdpDescription.append(parameterSet).append("\r\n");
+            }
+
+        }
+        return newSdpDescription.toString();
+    }
+
+    // Replaces b=AS (kbps) and b=TIAS (bps) lines of every audio or video
+    // m-section with |bandwidthKbps|. Bandwidth lines go after the optional
+    // i= and c= lines of the section.
+    public static String setMediaBandwidth(
+            String sdpDescription, boolean isVideo, int bandwidthKbps) {
+        String[] lines = sdpDescription.split("\r\n");
+        String mediaDescription = isVideo ? "m=video " : "m=audio ";
+        String bandwidthLines = "b=AS:" + bandwidthKbps + "\r\n"
+                + "b=TIAS:" + (bandwidthKbps * 1000) + "\r\n";
+        StringBuilder newSdpDescription = new StringBuilder();
+        boolean inMediaSection = false;
+        boolean bandwidthPending = false;
+        for (String line : lines) {
+            if (line.startsWith("m=")) {
+                if (bandwidthPending) {
+                    newSdpDescription.append(bandwidthLines);
+                }
+                inMediaSection = line.startsWith(mediaDescription);
+                bandwidthPending = inMediaSection;
+                newSdpDescription.append(line).append("\r\n");
+                continue;
+            }
+            if (inMediaSection && (line.startsWith("b=AS:") || line.startsWith("b=TIAS:"))) {
+                // Dropped, replaced by the new bandwidth lines.
+                continue;
+            }
+            if (bandwidthPending && !line.startsWith("i=") && !line.startsWith("c=")) {
+                newSdpDescription.append(bandwidthLines);
+                bandwidthPending = false;
+            }
+            newSdpDescription.append(line).append("\r\n");
+        }
+        if (bandwidthPending) {
+            newSdpDescription.append(bandwidthLines);
+        }
+        CoreLog.d(TAG, "Set %sbandwidth to %s kbps", mediaDescription, bandwidthKbps);
+        return newSdpDescription.toString();
+    }
+
+    // Replaces the a=ptime line of the audio section, adding it at the end of
+    // the section if there is none.
+    public static String setAudioPtime(String sdpDescription, int ptimeMs) {
+        String[] lines = sdpDescription.split("\r\n");
+        String ptimeLine = "a=ptime:" + ptimeMs + "\r\n";
+        StringBuilder newSdpDescription = new StringBuilder();
+        boolean inAudioSection = false;
+        for (String line : lines) {
+            if (line.startsWith("m=")) {
+                if (inAudioSection) {
+                    newSdpDescription.append(ptimeLine);
+                }
+                inAudioSection = line.startsWith("m=audio ");
+            } else if (inAudioSection && line.startsWith("a=ptime:")) {
+                // Dropped, replaced by the new ptime line.
+                continue;
+            }
+            newSdpDescription.append(line).append("\r\n");
+        }
+        if (inAudioSection) {
+            newSdpDescription.append(ptimeLine);
+        }
+        CoreLog.d(TAG, "Set audio ptime to %s ms", ptimeMs);
+        return newSdpDescription.toString();
+    }
+
+    public static String preferCodec(
+            String sdpDescription, String codec, boolean isAudio) {
+        String[] lines = sdpDescription.split("\r\n");
+        int mLineIndex = -1;
+        String codecRtpMap = null;
+        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
+        Pattern codecPattern = Pattern.compile(regex);
+        String mediaDescription = "m=video ";
+        if (isAudio) {
+            mediaDescription = "m=audio ";
+        }
+        for (int i = 0; (i < lines.length)
+                && (mLineIndex == -1 || codecRtpMap == null); i++) {
+            if (lines[i].startsWith(mediaDescription)) {
+                mLineIndex = i;
+                continue;
+            }
+            Matcher codecMatcher = codecPattern.matcher(lines[i]);
+            if (codecMatcher.matches()) {
+                codecRtpMap = codecMatcher.group(1);
+            }
+        }
+        if (mLineIndex == -1) {
+            CoreLog.w(TAG, "No %sline, so can't prefer %s", mediaDescription, codec);
+            return sdpDescription;
+        }
+        if (codecRtpMap == null) {
+            CoreLog.w(TAG, "No rtpmap for %s", codec);
+            return sdpDescription;
+        }
+        CoreLog.d(TAG, "Found %s rtpmap %s, prefer at %s", codec, codecRtpMap, lines[mLineIndex]);
+        String[] origMLineParts = lines[mLineIndex].split(" ");
+        if (origMLineParts.length > 3) {
+            StringBuilder newMLine = new StringBuilder();
+            int origPartIndex = 0;
+            // Format is: m=<media> <port> <proto> <fmt> ...
+            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+            newMLine.append(codecRtpMap);
+            for (; origPartIndex < origMLineParts.length; origPartIndex++) {
+                if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
+                    newMLine.append(" ").append(origMLineParts[origPartIndex]);
+                }
+            }
+            lines[mLineIndex] = newMLine.toString();
+            CoreLog.d(TAG, "Change media description: %s", lines[mLineIndex]);
+        } else {
+            CoreLog.e(TAG, "Wrong SDP media description format: %s", lines[mLineIndex]);
+        }
+        StringBuilder newSdpDescription = new StringBuilder();
+        for (String line : lines) {
+            newSdpDescription.append(line).append("\r\n");
+        }
+        return newSdpDescription.toString();
+    }
+}
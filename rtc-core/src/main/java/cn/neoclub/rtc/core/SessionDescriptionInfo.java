@@ -0,0 +1,21 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * Platform independent copy of an SDP offer or answer.
+ */
+public class SessionDescriptionInfo {
+    /**
+     * Description type, named as in SessionDescription.Type.
+     */
+    public enum Type {
+        OFFER, PRANSWER, ANSWER
+    }
+
+    public final Type type;
+    public final String sdp;
+
+    public SessionDescriptionInfo(Type type, String sdp) {
+        this.type = type;
+        this.sdp = sdp;
+    }
+}
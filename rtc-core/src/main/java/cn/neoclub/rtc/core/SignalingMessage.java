@@ -0,0 +1,158 @@
+package cn.neoclub.rtc.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded signaling message, see SignalingProtocol.
+ * <p/>
+ * <p>Getters of the "msg" payload throw ProtocolException if a required
+ * field is missing or has the wrong type, opt getters return a default.
+ */
+public class SignalingMessage {
+    private final Map<String, Object> root;
+    private Map<String, Object> body;
+
+    SignalingMessage(Map<String, Object> root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the message type, empty if there is none.
+     */
+    public String getCmd() {
+        return optString(root, "cmd");
+    }
+
+    /**
+     * Returns the sender id set by the server, empty for peer messages.
+     */
+    public String getFrom() {
+        return optString(root, "from");
+    }
+
+    public String getError() {
+        return optString(root, "error");
+    }
+
+    /**
+     * Returns the other room members listed by a loginack message.
+     */
+    public List<String> getMembers() throws ProtocolException {
+        Object members = root.get("members");
+        if (members instanceof String) {
+            if (((String) members).isEmpty()) {
+                return Collections.emptyList();
+            }
+            members = JsonCodec.parse((String) members);
+        }
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        if (!(members instanceof List)) {
+            throw new ProtocolException("Bad members: " + members);
+        }
+        List<String> ids = new ArrayList<>();
+        for (Object id : (List<?>) members) {
+            ids.add(String.valueOf(id));
+        }
+        return ids;
+    }
+
+    public String getSdp() throws ProtocolException {
+        Object sdp = getBody().get("sdp");
+        if (!(sdp instanceof String)) {
+            throw new ProtocolException("No sdp in " + getCmd());
+        }
+        return (String) sdp;
+    }
+
+    public IceCandidateInfo getCandidate() throws ProtocolException {
+        return toCandidate(getBody());
+    }
+
+    public List<IceCandidateInfo> getCandidates() throws ProtocolException {
+        Object candidates = getBody().get("candidates");
+        if (!(candidates instanceof List)) {
+            throw new ProtocolException("No candidates in " + getCmd());
+        }
+        List<IceCandidateInfo> result = new ArrayList<>();
+        for (Object candidate : (List<?>) candidates) {
+            if (!(candidate instanceof Map)) {
+                throw new ProtocolException("Bad candidate: " + candidate);
+            }
+            result.add(toCandidate((Map<?, ?>) candidate));
+        }
+        return result;
+    }
+
+    public boolean getBoolean(String name) throws ProtocolException {
+        Object value = getBody().get(name);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if ("true".equals(value) || "false".equals(value)) {
+            return Boolean.parseBoolean((String) value);
+        }
+        throw new ProtocolException("No boolean " + name + " in " + getCmd());
+    }
+
+    public boolean optBoolean(String name) throws ProtocolException {
+        return getBody().containsKey(name) && getBoolean(name);
+    }
+
+    public int getInt(String name) throws ProtocolException {
+        return toInt(getBody().get(name), name);
+    }
+
+    public int optInt(String name) throws ProtocolException {
+        return getBody().containsKey(name) ? getInt(name) : 0;
+    }
+
+    // The payload is an object, or a string holding one for older servers.
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getBody() throws ProtocolException {
+        if (body == null) {
+            Object msg = root.get("msg");
+            if (msg instanceof String) {
+                body = JsonCodec.parseObject((String) msg);
+            } else if (msg instanceof Map) {
+                body = (Map<String, Object>) msg;
+            } else {
+                throw new ProtocolException("No msg in " + getCmd());
+            }
+        }
+        return body;
+    }
+
+    private IceCandidateInfo toCandidate(Map<?, ?> json) throws ProtocolException {
+        Object sdpMid = json.get("sdpMid");
+        Object sdp = json.get("candidate");
+        if (!(sdpMid instanceof String) || !(sdp instanceof String)) {
+            throw new ProtocolException("Bad candidate: " + json);
+        }
+        return new IceCandidateInfo((String) sdpMid,
+                toInt(json.get("sdpMLineIndex"), "sdpMLineIndex"), (String) sdp);
+    }
+
+    private int toInt(Object value, String name) throws ProtocolException {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+        }
+        throw new ProtocolException("No int " + name + " in " + getCmd());
+    }
+
+    static String optString(Map<?, ?> json, String name) {
+        Object value = json.get(name);
+        return value == null ? "" : String.valueOf(value);
+    }
+}
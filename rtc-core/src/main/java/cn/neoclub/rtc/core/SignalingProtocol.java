@@ -0,0 +1,159 @@
+package cn.neoclub.rtc.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes signaling server messages.
+ * <p/>
+ * <p>Messages are JSON objects with the type in "cmd", the payload in "msg"
+ * and the receiver in "toId". The server adds the sender in "from". The
+ * same messages are sent over the peer signaling channel once a call is
+ * connected.
+ */
+public final class SignalingProtocol {
+    public static final String CMD_REGISTER = "register";
+    public static final String CMD_LOGIN_ACK = "loginack";
+    public static final String CMD_OFFER = "offer";
+    public static final String CMD_ANSWER = "answer";
+    public static final String CMD_ICE = "ice";
+    public static final String CMD_REMOVE_CANDIDATES = "remove-candidates";
+    public static final String CMD_VIDEO = "video";
+    public static final String CMD_VIEW = "view";
+    public static final String CMD_TRANSPORT = "transport";
+    public static final String CMD_DIAGNOSTICS = "diagnostics";
+    public static final String CMD_LEAVE = "leave";
+    public static final String CMD_HANGUP = "hangup";
+    public static final String CMD_BYE = "bye";
+    public static final String CMD_BROWSER = "browser";
+
+    private SignalingProtocol() {
+    }
+
+    public static String encodeRegister(String roomId, String clientId) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("cmd", CMD_REGISTER);
+        json.put("roomId", roomId);
+        json.put("clientId", clientId);
+        return JsonCodec.write(json);
+    }
+
+    public static String encodeBye() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("cmd", CMD_BYE);
+        return JsonCodec.write(json);
+    }
+
+    /**
+     * Encodes an offer or answer, |type| is CMD_OFFER or CMD_ANSWER.
+     */
+    public static String encodeSessionDescription(String type, String sdp, String toId) {
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("sdp", sdp);
+        msg.put("type", type);
+        return encode(type, msg, toId);
+    }
+
+    public static String encodeIceCandidate(IceCandidateInfo candidate, String toId) {
+        return encode(CMD_ICE, toJson(candidate), toId);
+    }
+
+    public static String encodeIceCandidateRemovals(List<IceCandidateInfo> candidates,
+                                                    String toId) {
+        List<Object> array = new ArrayList<>(candidates.size());
+        for (IceCandidateInfo candidate : candidates) {
+            array.add(toJson(candidate));
+        }
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("candidates", array);
+        return encode(CMD_REMOVE_CANDIDATES, msg, toId);
+    }
+
+    public static String encodeVideoPaused(boolean paused, String toId) {
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("paused", paused);
+        return encode(CMD_VIDEO, msg, toId);
+    }
+
+    public static String encodeViewSize(int width, int height, int maxFps, String toId) {
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("width", width);
+        msg.put("height", height);
+        msg.put("fps", maxFps);
+        return encode(CMD_VIEW, msg, toId);
+    }
+
+    /**
+     * Asks the answering side to replace its peer connection with one
+     * gathering TCP candidates, a new offer follows.
+     */
+    public static String encodeTcpTransportRestart(String toId) {
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("tcp", true);
+        return encode(CMD_TRANSPORT, msg, toId);
+    }
+
+    public static String encodeHangup(String toId) {
+        return encode(CMD_HANGUP, null, toId);
+    }
+
+    public static SignalingMessage decode(String text) throws ProtocolException {
+        return new SignalingMessage(JsonCodec.parseObject(text));
+    }
+
+    /**
+     * Parses the ICE server response, {"d": {"iceServers": [...]}}. Nested
+     * objects may also come as strings holding them.
+     */
+    public static List<IceServerInfo> decodeIceServers(String response)
+            throws ProtocolException {
+        Map<String, Object> root = JsonCodec.parseObject(response);
+        Map<?, ?> d = toObject(root.get("d"), "d");
+        Object servers = d.get("iceServers");
+        if (!(servers instanceof List)) {
+            throw new ProtocolException("No iceServers in " + response);
+        }
+        List<IceServerInfo> iceServers = new ArrayList<>();
+        for (Object item : (List<?>) servers) {
+            Map<?, ?> server = toObject(item, "ICE server");
+            Object url = server.get("url");
+            if (!(url instanceof String)) {
+                throw new ProtocolException("No url in ICE server " + server);
+            }
+            iceServers.add(new IceServerInfo((String) url,
+                    SignalingMessage.optString(server, "username"),
+                    SignalingMessage.optString(server, "credential")));
+        }
+        return iceServers;
+    }
+
+    private static String encode(String cmd, Map<String, Object> msg, String toId) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("cmd", cmd);
+        if (msg != null) {
+            json.put("msg", msg);
+        }
+        json.put("toId", toId);
+        return JsonCodec.write(json);
+    }
+
+    private static Map<String, Object> toJson(IceCandidateInfo candidate) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("sdpMLineIndex", candidate.sdpMLineIndex);
+        json.put("sdpMid", candidate.sdpMid);
+        json.put("candidate", candidate.sdp);
+        return json;
+    }
+
+    private static Map<?, ?> toObject(Object value, String name) throws ProtocolException {
+        if (value instanceof String) {
+            return JsonCodec.parseObject((String) value);
+        }
+        if (!(value instanceof Map)) {
+            throw new ProtocolException("Bad " + name + ": " + value);
+        }
+        return (Map<?, ?>) value;
+    }
+}
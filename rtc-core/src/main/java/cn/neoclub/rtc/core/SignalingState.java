@@ -0,0 +1,9 @@
+package cn.neoclub.rtc.core;
+
+/**
+ * Offer/answer state of a peer connection, named as in
+ * PeerConnection.SignalingState.
+ */
+public enum SignalingState {
+    STABLE, HAVE_LOCAL_OFFER, HAVE_LOCAL_PRANSWER, HAVE_REMOTE_OFFER, HAVE_REMOTE_PRANSWER, CLOSED
+}
@@ -0,0 +1,29 @@
+package cn.neoclub.rtc.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Platform independent copy of a WebRTC stats report, values keep the
+ * report's order.
+ */
+public class StatsReportData {
+    public final String id;
+    public final String type;
+    public final Map<String, String> values;
+
+    public StatsReportData(String id, String type) {
+        this.id = id;
+        this.type = type;
+        this.values = new LinkedHashMap<>();
+    }
+
+    public String get(String name) {
+        return values.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "[id: " + id + ", type: " + type + ", values: " + values + "]";
+    }
+}
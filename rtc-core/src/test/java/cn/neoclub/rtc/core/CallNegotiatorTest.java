@@ -0,0 +1,131 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CallNegotiatorTest {
+    private static final SessionDescriptionInfo OFFER =
+            new SessionDescriptionInfo(SessionDescriptionInfo.Type.OFFER, "offer");
+    private static final SessionDescriptionInfo ANSWER =
+            new SessionDescriptionInfo(SessionDescriptionInfo.Type.ANSWER, "answer");
+    private static final IceCandidateInfo CANDIDATE = new IceCandidateInfo("audio", 0, "c1");
+
+    private final List<String> calls = new ArrayList<>();
+    private SignalingState state = SignalingState.STABLE;
+    private SessionDescriptionInfo sentSdp;
+    private String error;
+    private CallNegotiator negotiator;
+
+    @Before
+    public void setUp() {
+        negotiator = new CallNegotiator(new CallNegotiator.Peer() {
+            @Override
+            public void createOffer(boolean iceRestart) {
+                calls.add(iceRestart ? "restartOffer" : "offer");
+            }
+
+            @Override
+            public void createAnswer() {
+                calls.add("answer");
+            }
+
+            @Override
+            public void setLocalDescription(SessionDescriptionInfo sdp) {
+                calls.add("setLocal");
+            }
+
+            @Override
+            public void setRemoteDescription(SessionDescriptionInfo sdp) {
+                calls.add("setRemote");
+            }
+
+            @Override
+            public void addIceCandidate(IceCandidateInfo candidate) {
+                calls.add("add " + candidate.sdp);
+            }
+
+            @Override
+            public SignalingState getSignalingState() {
+                return state;
+            }
+        }, new CallNegotiator.Events() {
+            @Override
+            public void onLocalDescription(SessionDescriptionInfo sdp, boolean initiator) {
+                sentSdp = sdp;
+            }
+
+            @Override
+            public void onNegotiationError(String description) {
+                error = description;
+            }
+        });
+    }
+
+    @Test
+    public void offer_sentOnceSetAndCandidatesQueuedUntilAnswer() {
+        negotiator.createOffer();
+        negotiator.addRemoteIceCandidate(CANDIDATE);
+        negotiator.onCreateSuccess(OFFER);
+        state = SignalingState.HAVE_LOCAL_OFFER;
+        assertEquals(SignalingState.HAVE_LOCAL_OFFER, negotiator.onSetSuccess());
+        assertSame(OFFER, sentSdp);
+        assertEquals(Collections.singletonList("offer"), calls.subList(0, 1));
+        assertFalse(calls.contains("add c1"));
+
+        negotiator.setRemoteDescription(ANSWER);
+        state = SignalingState.STABLE;
+        negotiator.onSetSuccess();
+        assertEquals("add c1", calls.get(calls.size() - 1));
+        negotiator.addRemoteIceCandidate(new IceCandidateInfo("audio", 0, "c2"));
+        assertEquals("add c2", calls.get(calls.size() - 1));
+        assertTrue(negotiator.isInitiator());
+        assertNull(error);
+    }
+
+    @Test
+    public void answer_sentWhenStable() {
+        negotiator.setRemoteDescription(OFFER);
+        state = SignalingState.HAVE_REMOTE_OFFER;
+        negotiator.onSetSuccess();
+        assertFalse(negotiator.isStarted());
+        negotiator.createAnswer();
+        assertTrue(negotiator.isStarted());
+        assertNull(sentSdp);
+
+        negotiator.onCreateSuccess(ANSWER);
+        state = SignalingState.STABLE;
+        negotiator.onSetSuccess();
+        assertSame(ANSWER, sentSdp);
+        assertFalse(negotiator.isInitiator());
+    }
+
+    @Test
+    public void iceRestart_requeuesCandidates() {
+        negotiator.createOffer();
+        negotiator.onCreateSuccess(OFFER);
+        negotiator.onSetSuccess();
+        negotiator.createIceRestartOffer();
+        negotiator.addRemoteIceCandidate(CANDIDATE);
+        negotiator.removeQueuedRemoteCandidates(Collections.singletonList(CANDIDATE));
+        negotiator.addRemoteIceCandidate(new IceCandidateInfo("audio", 0, "c2"));
+        assertEquals("restartOffer", calls.get(calls.size() - 1));
+
+        negotiator.onSetSuccess();
+        assertEquals("add c2", calls.get(calls.size() - 1));
+        assertFalse(calls.contains("add c1"));
+    }
+
+    @Test
+    public void secondCreate_isError() {
+        negotiator.createOffer();
+        negotiator.onCreateSuccess(OFFER);
+        negotiator.onCreateSuccess(OFFER);
+        assertEquals("Multiple SDP create.", error);
+    }
+}
@@ -0,0 +1,39 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CpuUsageCalculatorTest {
+    @Test
+    public void parseProcStatLine_sumsFields() throws Exception {
+        CpuUsageCalculator.ProcStat stat = CpuUsageCalculator.parseProcStatLine(
+                "cpu  100 10 50 1000 5 2 3 0 0 0");
+        assertEquals(115, stat.userTime);
+        assertEquals(55, stat.systemTime);
+        assertEquals(1000, stat.idleTime);
+        assertNull(CpuUsageCalculator.parseProcStatLine("cpu 1 2"));
+    }
+
+    @Test
+    public void addSample_computesUsage() throws Exception {
+        CpuUsageCalculator calculator = new CpuUsageCalculator(2);
+        assertTrue(calculator.addSample(1000, 2000,
+                new CpuUsageCalculator.ProcStat(100, 100, 800)));
+        assertTrue(calculator.addSample(1000, 2000,
+                new CpuUsageCalculator.ProcStat(150, 150, 900)));
+        assertEquals(25, CpuUsageCalculator.toPercent(calculator.getUserCpuUsage().getCurrent()));
+        assertEquals(25,
+                CpuUsageCalculator.toPercent(calculator.getTotalCpuUsage().getCurrent()));
+        assertEquals(50,
+                CpuUsageCalculator.toPercent(calculator.getFrequencyScale().getAverage()));
+    }
+
+    @Test
+    public void addSample_dropsEmptySamples() throws Exception {
+        CpuUsageCalculator calculator = new CpuUsageCalculator(2);
+        assertFalse(calculator.addSample(0, 2000, new CpuUsageCalculator.ProcStat(1, 1, 1)));
+        assertFalse(calculator.addSample(1000, 2000, null));
+        assertFalse(calculator.addSample(1000, 2000, new CpuUsageCalculator.ProcStat(0, 0, 0)));
+    }
+}
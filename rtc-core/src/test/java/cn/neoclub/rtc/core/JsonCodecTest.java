@@ -0,0 +1,35 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JsonCodecTest {
+    @Test
+    public void nonFiniteNumbers_writtenAsNull() throws Exception {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("nan", Double.NaN);
+        json.put("inf", Double.POSITIVE_INFINITY);
+        json.put("floatInf", Float.NEGATIVE_INFINITY);
+        json.put("values", Arrays.<Object>asList(1.5, Float.NaN));
+        String text = JsonCodec.write(json);
+        assertEquals("{\"nan\":null,\"inf\":null,\"floatInf\":null,\"values\":[1.5,null]}", text);
+        Map<String, Object> parsed = JsonCodec.parseObject(text);
+        assertTrue(parsed.containsKey("nan"));
+        assertNull(parsed.get("nan"));
+    }
+
+    @Test
+    public void finiteNumbers_roundTrip() throws Exception {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("long", 42L);
+        json.put("double", -0.25);
+        Map<String, Object> parsed = JsonCodec.parseObject(JsonCodec.write(json));
+        assertEquals(42L, parsed.get("long"));
+        assertEquals(-0.25, (Double) parsed.get("double"), 0);
+    }
+}
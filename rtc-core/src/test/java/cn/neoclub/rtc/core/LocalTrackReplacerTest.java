@@ -0,0 +1,114 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocalTrackReplacerTest {
+    private final List<String> stream = new ArrayList<>();
+    private final List<String> calls = new ArrayList<>();
+    private final List<String> disposed = new ArrayList<>();
+    private String senderTrack;
+    private boolean senderUsable = true;
+    private LocalTrackReplacer<String> replacer;
+
+    @Before
+    public void setUp() {
+        replacer = new LocalTrackReplacer<>(new LocalTrackReplacer.Media<String>() {
+            @Override
+            public void addToStream(String track) {
+                stream.add(track);
+                // Stream changes of an attached stream go to the sender.
+                senderTrack = track;
+            }
+
+            @Override
+            public void removeFromStream(String track) {
+                assertTrue(stream.remove(track));
+            }
+
+            @Override
+            public boolean setSenderTrack(String track) {
+                if (senderUsable) {
+                    senderTrack = track;
+                }
+                return senderUsable;
+            }
+
+            @Override
+            public void disable(String track) {
+                calls.add("disable " + track);
+            }
+
+            @Override
+            public void dispose(String track) {
+                assertFalse(disposed.contains(track));
+                disposed.add(track);
+            }
+        });
+        replacer.add("texture");
+    }
+
+    @Test
+    public void beforeNegotiation_replacesStreamTrack() {
+        assertTrue(replacer.replace("bytes", false));
+        assertEquals(Arrays.asList("bytes"), stream);
+        assertEquals(Arrays.asList("texture"), disposed);
+
+        replacer.release();
+        assertEquals(Arrays.asList("texture"), disposed);
+    }
+
+    @Test
+    public void afterNegotiation_switchesSenderAndKeepsStream() {
+        assertTrue(replacer.replace("bytes", true));
+        assertEquals("bytes", senderTrack);
+        assertEquals("bytes", replacer.getTrack());
+        assertEquals(Arrays.asList("texture"), stream);
+        assertEquals(Arrays.asList("disable texture"), calls);
+        assertTrue(disposed.isEmpty());
+
+        // Stream disposal takes the negotiated track, release the new one.
+        replacer.release();
+        assertEquals(Arrays.asList("bytes"), disposed);
+    }
+
+    @Test
+    public void afterNegotiation_detachedStreamGetsNewTrack() {
+        replacer.replace("bytes", true);
+        replacer.onStreamDetached();
+        assertEquals(Arrays.asList("bytes"), stream);
+        assertEquals(Arrays.asList("texture"), disposed);
+
+        replacer.release();
+        assertEquals(Arrays.asList("texture"), disposed);
+    }
+
+    @Test
+    public void afterNegotiation_replacedAgain() {
+        replacer.replace("bytes", true);
+        replacer.replace("front", true);
+        assertEquals("front", senderTrack);
+        assertEquals(Arrays.asList("texture"), stream);
+        assertEquals(Arrays.asList("bytes"), disposed);
+
+        replacer.replace("back", false);
+        assertEquals(Arrays.asList("back"), stream);
+        assertEquals(Arrays.asList("bytes", "front", "texture"), disposed);
+    }
+
+    @Test
+    public void afterNegotiation_rejectedBySender() {
+        senderUsable = false;
+        assertFalse(replacer.replace("bytes", true));
+        assertEquals("texture", senderTrack);
+
+        replacer.release();
+        assertEquals(Arrays.asList("bytes"), disposed);
+    }
+}
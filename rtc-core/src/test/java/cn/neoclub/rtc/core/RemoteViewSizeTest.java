@@ -0,0 +1,36 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RemoteViewSizeTest {
+    @Test
+    public void fullScreenFill_keepsCaptureSize() {
+        int[] rendered = RemoteViewSize.getRenderedSize(1080, 1920, 1280, 720, true);
+        assertArrayEquals(new int[] {1080, 1920}, rendered);
+        assertArrayEquals(new int[] {1280, 720},
+                RemoteViewSize.getOutputSize(1280, 720, rendered[0], rendered[1]));
+    }
+
+    @Test
+    public void fullScreenFit_scalesToLetterbox() {
+        int[] rendered = RemoteViewSize.getRenderedSize(1080, 1920, 1920, 1080, false);
+        assertArrayEquals(new int[] {1080, 608}, rendered);
+        assertArrayEquals(new int[] {1080, 608},
+                RemoteViewSize.getOutputSize(1920, 1080, rendered[0], rendered[1]));
+    }
+
+    @Test
+    public void thumbnail_scalesAcrossOrientations() {
+        assertArrayEquals(new int[] {480, 270},
+                RemoteViewSize.getOutputSize(1280, 720, 270, 480));
+    }
+
+    @Test
+    public void unknownSizes_keepCaptureSize() {
+        assertArrayEquals(new int[] {640, 480}, RemoteViewSize.getOutputSize(640, 480, 0, 0));
+        assertArrayEquals(new int[] {300, 200},
+                RemoteViewSize.getRenderedSize(300, 200, 0, 0, false));
+    }
+}
@@ -0,0 +1,256 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RoomSignalingTest {
+    private static final IceCandidateInfo CANDIDATE = new IceCandidateInfo("audio", 0, "c1");
+
+    private final List<String> serverMessages = new ArrayList<>();
+    private final List<String> peerMessages = new ArrayList<>();
+    private final List<String> events = new ArrayList<>();
+    private final Map<Runnable, Long> tasks = new LinkedHashMap<>();
+    private boolean peerUsable;
+    private long nowMs;
+    private RoomSignaling signaling;
+
+    @Before
+    public void setUp() {
+        signaling = new RoomSignaling("self", new RoomSignaling.Transport() {
+            @Override
+            public void sendToServer(String cmd, String message, boolean urgent) {
+                serverMessages.add(message);
+            }
+
+            @Override
+            public boolean sendToPeer(String cmd, String message) {
+                if (peerUsable) {
+                    peerMessages.add(message);
+                }
+                return peerUsable;
+            }
+
+            @Override
+            public void resetServerConnection() {
+                events.add("reset");
+            }
+
+            @Override
+            public void connectServer() {
+                events.add("connect");
+            }
+        }, new RoomSignaling.Scheduler() {
+            @Override
+            public long nowMs() {
+                return nowMs;
+            }
+
+            @Override
+            public Object schedule(Runnable task, long delayMs) {
+                tasks.put(task, nowMs + delayMs);
+                return task;
+            }
+
+            @Override
+            public void cancel(Object handle) {
+                tasks.remove(handle);
+            }
+        }, new RoomSignaling.Events() {
+            @Override
+            public void onConnectedToRoom(boolean first) {
+                events.add("connected first=" + first);
+            }
+
+            @Override
+            public void onRemoteDescription(SessionDescriptionInfo sdp) {
+                events.add(sdp.type + " " + sdp.sdp);
+            }
+
+            @Override
+            public void onRemoteIceCandidate(IceCandidateInfo candidate) {
+                events.add("ice " + candidate.sdp);
+            }
+
+            @Override
+            public void onRemoteIceCandidatesRemoved(List<IceCandidateInfo> candidates) {
+                events.add("removed " + candidates.size());
+            }
+
+            @Override
+            public void onRemoteVideoPaused(boolean paused) {
+                events.add("paused " + paused);
+            }
+
+            @Override
+            public void onRemoteViewSize(int width, int height, int maxFps) {
+                events.add("view " + width + "x" + height);
+            }
+
+            @Override
+            public void onDiagnosticsRequest(boolean aecDump, boolean nativeLogs, int calls) {
+                events.add("diagnostics " + calls);
+            }
+
+            @Override
+            public void onRemoteTcpTransportRestart() {
+                events.add("tcp");
+            }
+
+            @Override
+            public void onMessageReceived(String cmd, int length, boolean fromPeer) {
+            }
+
+            @Override
+            public void onChannelClose() {
+                events.add("close");
+            }
+
+            @Override
+            public void onChannelError(String description) {
+                events.add("error");
+            }
+        });
+    }
+
+    @Test
+    public void loginAck_reportsFirstIn() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"self\"]}");
+        assertEquals(Arrays.asList("connected first=true"), events);
+        assertTrue(signaling.isConnected());
+    }
+
+    @Test
+    public void initiatorCandidates_goToOfferedMember() throws Exception {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        signaling.sendOffer("v=0");
+        signaling.sendLocalIceCandidate(CANDIDATE);
+        signaling.sendLocalIceCandidateRemovals(Arrays.asList(CANDIDATE));
+        assertEquals(3, serverMessages.size());
+        for (String message : serverMessages) {
+            assertEquals("peer", JsonCodec.parseObject(message).get("toId"));
+        }
+    }
+
+    @Test
+    public void offerFromFirstMember_isHandledAndAnswered() throws Exception {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[]}");
+        signaling.onServerMessage("{\"cmd\":\"offer\",\"from\":\"peer\","
+                + "\"msg\":{\"sdp\":\"v=0\"}}");
+        signaling.sendAnswer("v=1");
+        assertEquals(Arrays.asList("connected first=true", "OFFER v=0"), events);
+        assertEquals("peer", JsonCodec.parseObject(serverMessages.get(0)).get("toId"));
+    }
+
+    @Test
+    public void midCallMessages_usePeerChannelWhileUsable() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        signaling.sendViewSize(640, 480, 30);
+        peerUsable = true;
+        signaling.sendVideoPaused(true);
+        signaling.sendLocalIceCandidate(CANDIDATE);
+        assertEquals(1, serverMessages.size());
+        assertEquals(2, peerMessages.size());
+
+        signaling.onPeerMessage(SignalingProtocol.encodeIceCandidateRemovals(
+                Arrays.asList(CANDIDATE), "self"));
+        signaling.onPeerUndelivered(peerMessages.get(0));
+        assertTrue(events.contains("removed 1"));
+        assertEquals(2, serverMessages.size());
+    }
+
+    @Test
+    public void lostServerConnection_isReconnected() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        signaling.onServerClosed();
+        assertEquals("reset", events.get(events.size() - 1));
+        runTasks(RoomSignaling.RECONNECT_DELAY_MS);
+        assertEquals("connect", events.get(events.size() - 1));
+
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        assertEquals(1, count("connected first=false"));
+        assertEquals(Arrays.asList("peer"), signaling.getMembers());
+        assertTrue(signaling.isConnected());
+    }
+
+    @Test
+    public void unrecoveredServerConnection_closesChannel() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        signaling.onServerClosed();
+        runTasks(RoomSignaling.RECONNECT_DELAY_MS);
+        nowMs = RoomSignaling.RECOVERY_TIMEOUT_MS + 1;
+        signaling.onServerClosed();
+        assertEquals("close", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void remoteLeft_closesChannelUnlessBack() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        signaling.onServerMessage("{\"cmd\":\"leave\",\"from\":\"peer\"}");
+        signaling.onServerMessage("{\"cmd\":\"video\",\"from\":\"peer\","
+                + "\"msg\":{\"paused\":true}}");
+        runTasks(RoomSignaling.RECOVERY_TIMEOUT_MS);
+        assertEquals(0, count("close"));
+
+        signaling.onServerMessage("{\"cmd\":\"leave\",\"from\":\"peer\"}");
+        runTasks(RoomSignaling.RECOVERY_TIMEOUT_MS);
+        assertEquals(1, count("close"));
+    }
+
+    @Test
+    public void diagnostics_onlyFromServerAndClamped() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        String request = "{\"cmd\":\"diagnostics\",\"msg\":{\"aecDump\":true,"
+                + "\"calls\":1000}}";
+        signaling.onPeerMessage(request);
+        signaling.onServerMessage(request.replace("{\"cmd\"", "{\"from\":\"peer\",\"cmd\""));
+        assertEquals(Arrays.asList("connected first=false"), events);
+
+        signaling.onServerMessage(request);
+        assertEquals(1, count("diagnostics " + RoomSignaling.MAX_DIAGNOSTICS_CALLS));
+    }
+
+    @Test
+    public void tcpTransportRestart_goesToServer() {
+        signaling.onServerMessage("{\"cmd\":\"loginack\",\"members\":[\"peer\"]}");
+        peerUsable = true;
+        signaling.sendTcpTransportRestart();
+        assertEquals(1, serverMessages.size());
+        signaling.onServerMessage(SignalingProtocol.encodeTcpTransportRestart("self"));
+        assertTrue(events.contains("tcp"));
+    }
+
+    private void runTasks(long delayMs) {
+        nowMs += delayMs;
+        List<Runnable> due = new ArrayList<>();
+        for (Iterator<Map.Entry<Runnable, Long>> it = tasks.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<Runnable, Long> task = it.next();
+            if (task.getValue() <= nowMs) {
+                due.add(task.getKey());
+                it.remove();
+            }
+        }
+        for (Runnable task : due) {
+            task.run();
+        }
+    }
+
+    private int count(String event) {
+        int count = 0;
+        for (String e : events) {
+            if (e.equals(event)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,42 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SdpMungerTest {
+    private static final String SDP = "v=0\r\n"
+            + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=rtpmap:111 opus/48000/2\r\n"
+            + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+            + "a=rtpmap:103 ISAC/16000\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 100 101\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=rtpmap:100 VP8/90000\r\n"
+            + "a=rtpmap:101 VP9/90000\r\n";
+
+    @Test
+    public void preferCodec_movesPayloadFirst() throws Exception {
+        String sdp = SdpMunger.preferCodec(SDP, "VP9", false);
+        assertTrue(sdp.contains("m=video 9 UDP/TLS/RTP/SAVPF 101 100\r\n"));
+        assertTrue(sdp.contains("m=audio 9 UDP/TLS/RTP/SAVPF 111 103\r\n"));
+    }
+
+    @Test
+    public void setCodecParameter_updatesExistingFmtp() throws Exception {
+        String sdp = SdpMunger.setCodecParameter("opus", SDP, "useinbandfec", 0);
+        assertTrue(sdp.contains("a=fmtp:111 minptime=10;useinbandfec=0\r\n"));
+    }
+
+    @Test
+    public void setCodecParameter_addsFmtp() throws Exception {
+        String sdp = SdpMunger.setStartBitrate("VP8", true, SDP, 300);
+        assertTrue(sdp.contains("a=fmtp:100 x-google-start-bitrate=300\r\n"));
+    }
+
+    @Test
+    public void unknownCodec_leavesSdp() throws Exception {
+        assertEquals(SDP, SdpMunger.preferCodec(SDP, "H264", false));
+    }
+}
@@ -0,0 +1,80 @@
+package cn.neoclub.rtc.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignalingProtocolTest {
+    @Test
+    public void iceCandidate_roundTrips() throws Exception {
+        String text = SignalingProtocol.encodeIceCandidate(
+                new IceCandidateInfo("audio", 0, "candidate:1 1 udp 2122260223 \"x\""), "peer");
+        SignalingMessage message = SignalingProtocol.decode(text);
+        assertEquals(SignalingProtocol.CMD_ICE, message.getCmd());
+        IceCandidateInfo candidate = message.getCandidate();
+        assertEquals("audio", candidate.sdpMid);
+        assertEquals(0, candidate.sdpMLineIndex);
+        assertEquals("candidate:1 1 udp 2122260223 \"x\"", candidate.sdp);
+    }
+
+    @Test
+    public void candidateRemovals_roundTrip() throws Exception {
+        List<IceCandidateInfo> removals = Arrays.asList(
+                new IceCandidateInfo("audio", 0, "a"), new IceCandidateInfo("video", 1, "b"));
+        SignalingMessage message = SignalingProtocol.decode(
+                SignalingProtocol.encodeIceCandidateRemovals(removals, "peer"));
+        List<IceCandidateInfo> candidates = message.getCandidates();
+        assertEquals(2, candidates.size());
+        assertEquals("video", candidates.get(1).sdpMid);
+        assertEquals(1, candidates.get(1).sdpMLineIndex);
+    }
+
+    @Test
+    public void tcpTransportRestart_roundTrips() throws Exception {
+        SignalingMessage message = SignalingProtocol.decode(
+                SignalingProtocol.encodeTcpTransportRestart("peer"));
+        assertEquals(SignalingProtocol.CMD_TRANSPORT, message.getCmd());
+        assertTrue(message.optBoolean("tcp"));
+    }
+
+    @Test
+    public void stringBody_isDecoded() throws Exception {
+        SignalingMessage message = SignalingProtocol.decode("{\"cmd\":\"offer\",\"from\":\"42\","
+                + "\"msg\":\"{\\\"sdp\\\":\\\"v=0\\\\r\\\\n\\\"}\"}");
+        assertEquals("42", message.getFrom());
+        assertEquals("v=0\r\n", message.getSdp());
+    }
+
+    @Test
+    public void loginAck_readsMembers() throws Exception {
+        assertEquals(Arrays.asList("1", "2"), SignalingProtocol.decode(
+                "{\"cmd\":\"loginack\",\"members\":\"[\\\"1\\\",\\\"2\\\"]\"}").getMembers());
+        assertEquals(Arrays.asList("3"), SignalingProtocol.decode(
+                "{\"cmd\":\"loginack\",\"members\":[\"3\"]}").getMembers());
+        assertTrue(SignalingProtocol.decode("{\"cmd\":\"loginack\"}").getMembers().isEmpty());
+    }
+
+    @Test
+    public void iceServers_areDecoded() throws Exception {
+        List<IceServerInfo> servers = SignalingProtocol.decodeIceServers(
+                "{\"d\":{\"iceServers\":[{\"url\":\"stun:a\"},"
+                        + "{\"url\":\"turn:b\",\"username\":\"u\",\"credential\":\"p\"}]}}");
+        assertEquals(2, servers.size());
+        assertEquals("", servers.get(0).username);
+        assertEquals("u", servers.get(1).username);
+        assertEquals("p", servers.get(1).password);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void missingBody_throws() throws Exception {
+        SignalingProtocol.decode("{\"cmd\":\"video\"}").getBoolean("paused");
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void malformedJson_throws() throws Exception {
+        SignalingProtocol.decode("{\"cmd\":");
+    }
+}
@@ -0,0 +1,134 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.Random;
+
+/**
+ * One simulated call: the callee joins the room, the caller joins a
+ * random time later and sends the offer. Either side may lose its
+ * WebSocket during setup and has to reconnect.
+ * <p/>
+ * <p>Network, native timing and executor delays are drawn from a Random
+ * seeded with |seed|, so a scenario replays exactly from its seed.
+ */
+class CallScenario {
+    // Virtual time a call has to connect after the caller joined.
+    static final long TIMEOUT_MS = 60000;
+    // A lost WebSocket closes this long after a side joined at most, and is
+    // noticed up to MAX_CLOSE_DETECT_MS later.
+    private static final int MAX_CLOSE_TIME_MS = 4000;
+    private static final int MAX_CLOSE_DETECT_MS = 2000;
+
+    /**
+     * Outcome of a scenario.
+     */
+    static class Result {
+        final long seed;
+        // Caller join to both sides ICE connected, -1 if the call is stuck.
+        final long setupTimeMs;
+        // Where both sides are if the call is stuck, null otherwise.
+        final String stuckState;
+        final int droppedMessages;
+        final int unroutableMessages;
+        final int closedLinkMessages;
+        final int droppedDescriptions;
+        final int lostCandidates;
+        final int removedCandidates;
+        final int reconnects;
+        final int peerMessages;
+
+        Result(long seed, long setupTimeMs, String stuckState, int droppedMessages,
+               int unroutableMessages, int closedLinkMessages, int droppedDescriptions,
+               int lostCandidates, int removedCandidates, int reconnects, int peerMessages) {
+            this.seed = seed;
+            this.setupTimeMs = setupTimeMs;
+            this.stuckState = stuckState;
+            this.droppedMessages = droppedMessages;
+            this.unroutableMessages = unroutableMessages;
+            this.closedLinkMessages = closedLinkMessages;
+            this.droppedDescriptions = droppedDescriptions;
+            this.lostCandidates = lostCandidates;
+            this.removedCandidates = removedCandidates;
+            this.reconnects = reconnects;
+            this.peerMessages = peerMessages;
+        }
+
+        boolean isConnected() {
+            return stuckState == null;
+        }
+    }
+
+    private CallScenario() {
+    }
+
+    static Result run(long seed, double dropProbability, boolean reorder,
+                      double closeProbability) {
+        Random random = new Random(seed);
+        VirtualClock clock = new VirtualClock();
+        FakeSignalingServer server = new FakeSignalingServer(clock, random);
+        int maxHopMs = random.nextInt(6);
+        final SimulatedEndpoint callee = new SimulatedEndpoint("callee", "1001", clock, random,
+                server, nextTiming(random), maxHopMs);
+        final SimulatedEndpoint caller = new SimulatedEndpoint("caller", "1002", clock, random,
+                server, nextTiming(random), maxHopMs);
+        callee.setRemote(caller);
+        caller.setRemote(callee);
+
+        callee.join(nextNetwork(random, dropProbability, reorder));
+        final NetworkConditions callerNetwork = nextNetwork(random, dropProbability, reorder);
+        long joinGapMs = random.nextInt(3001);
+        clock.schedule(joinGapMs, new Runnable() {
+            @Override
+            public void run() {
+                caller.join(callerNetwork);
+            }
+        });
+        maybeCloseWebSocket(clock, random, callee, 0, closeProbability);
+        maybeCloseWebSocket(clock, random, caller, joinGapMs, closeProbability);
+        clock.runUntil(joinGapMs + TIMEOUT_MS);
+
+        long setupTimeMs = -1;
+        String stuckState = null;
+        if (caller.getConnectedTimeMs() >= 0 && callee.getConnectedTimeMs() >= 0) {
+            setupTimeMs = Math.max(caller.getConnectedTimeMs(), callee.getConnectedTimeMs())
+                    - caller.getJoinTimeMs();
+        } else {
+            stuckState = caller.describeState() + " " + callee.describeState();
+        }
+        return new Result(seed, setupTimeMs, stuckState, server.getDroppedMessages(),
+                server.getUnroutableMessages(), server.getClosedLinkMessages(),
+                caller.getDroppedDescriptions() + callee.getDroppedDescriptions(),
+                caller.getLostCandidates() + callee.getLostCandidates(),
+                caller.getRemovedCandidates() + callee.getRemovedCandidates(),
+                caller.getReconnects() + callee.getReconnects(),
+                caller.getPeerMessages() + callee.getPeerMessages());
+    }
+
+    private static void maybeCloseWebSocket(VirtualClock clock, Random random,
+                                            final SimulatedEndpoint endpoint, long joinTimeMs,
+                                            double closeProbability) {
+        if (closeProbability <= 0 || random.nextDouble() >= closeProbability) {
+            return;
+        }
+        // After the join, so the close always hits an open link.
+        long closeTimeMs = joinTimeMs + 1 + random.nextInt(MAX_CLOSE_TIME_MS);
+        final long detectMs = random.nextInt(MAX_CLOSE_DETECT_MS + 1);
+        clock.scheduleAt(closeTimeMs, new Runnable() {
+            @Override
+            public void run() {
+                endpoint.closeWebSocket(detectMs);
+            }
+        });
+    }
+
+    private static FakePeerConnection.Timing nextTiming(Random random) {
+        return new FakePeerConnection.Timing(5 + random.nextInt(76), 2 + random.nextInt(39),
+                2 + random.nextInt(11), random.nextInt(4) == 0 ? 1 : 0, 5 + random.nextInt(96),
+                10 + random.nextInt(191));
+    }
+
+    private static NetworkConditions nextNetwork(Random random, double dropProbability,
+                                                 boolean reorder) {
+        return new NetworkConditions(20 + random.nextInt(281), random.nextInt(201),
+                dropProbability, reorder);
+    }
+}
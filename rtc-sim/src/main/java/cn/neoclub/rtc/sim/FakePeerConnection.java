@@ -0,0 +1,308 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import cn.neoclub.rtc.core.CallNegotiator;
+import cn.neoclub.rtc.core.IceCandidateInfo;
+import cn.neoclub.rtc.core.SessionDescriptionInfo;
+import cn.neoclub.rtc.core.SignalingState;
+
+/**
+ * Peer connection with the offer/answer rules of the native one.
+ * <p/>
+ * <p>Operations run in order on a simulated signaling thread and take a
+ * random time, results go to the Observer from that thread. Descriptions
+ * which are invalid in the current signaling state fail as natively.
+ * Candidates are gathered once the first local description is set, a
+ * candidate added before the remote description is lost, as the native
+ * addIceCandidate() rejects it. Some gathered candidates are removed again,
+ * as continual gathering does on a network change. ICE connects one round
+ * trip after both sides have set both descriptions and either has a remote
+ * candidate. Data sent once ICE is connected arrives half a round trip
+ * later, as on the signaling data channel.
+ */
+class FakePeerConnection implements CallNegotiator.Peer {
+    interface Observer {
+        void onCreateSuccess(SessionDescriptionInfo sdp);
+
+        void onCreateFailure(String error);
+
+        void onSetSuccess();
+
+        void onSetFailure(String error);
+
+        void onIceCandidate(IceCandidateInfo candidate);
+
+        void onIceCandidatesRemoved(List<IceCandidateInfo> candidates);
+
+        void onIceConnected();
+
+        void onDataMessage(String message);
+    }
+
+    /**
+     * Timing of one peer connection.
+     */
+    static class Timing {
+        final int maxCreateMs;
+        final int maxSetMs;
+        final int candidates;
+        // Candidates removed once gathering is done.
+        final int removedCandidates;
+        final int gatherIntervalMs;
+        final int rttMs;
+
+        Timing(int maxCreateMs, int maxSetMs, int candidates, int removedCandidates,
+               int gatherIntervalMs, int rttMs) {
+            this.maxCreateMs = maxCreateMs;
+            this.maxSetMs = maxSetMs;
+            this.candidates = candidates;
+            this.removedCandidates = removedCandidates;
+            this.gatherIntervalMs = gatherIntervalMs;
+            this.rttMs = rttMs;
+        }
+    }
+
+    private final VirtualClock clock;
+    private final Random random;
+    private final String id;
+    private final Timing timing;
+    private final Observer observer;
+    private FakePeerConnection remote;
+    private SignalingState signalingState = SignalingState.STABLE;
+    private long lastOperationTimeMs;
+    private int descriptionCount;
+    private boolean localDescriptionSet;
+    private boolean remoteDescriptionSet;
+    private boolean gathering;
+    private boolean connecting;
+    private boolean connected;
+    private final Set<String> remoteCandidates = new HashSet<>();
+    private int lostCandidates;
+    private int removedRemoteCandidates;
+
+    FakePeerConnection(VirtualClock clock, Random random, String id, Timing timing,
+                       Observer observer) {
+        this.clock = clock;
+        this.random = random;
+        this.id = id;
+        this.timing = timing;
+        this.observer = observer;
+    }
+
+    void setRemote(FakePeerConnection remote) {
+        this.remote = remote;
+    }
+
+    int getLostCandidates() {
+        return lostCandidates;
+    }
+
+    int getRemoteCandidates() {
+        return remoteCandidates.size();
+    }
+
+    int getRemovedRemoteCandidates() {
+        return removedRemoteCandidates;
+    }
+
+    /**
+     * Sends |message| to the remote peer, returns false if ICE isn't
+     * connected.
+     */
+    boolean sendData(final String message) {
+        if (!connected) {
+            return false;
+        }
+        clock.schedule(timing.rttMs / 2, new Runnable() {
+            @Override
+            public void run() {
+                remote.observer.onDataMessage(message);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public SignalingState getSignalingState() {
+        return signalingState;
+    }
+
+    @Override
+    public void createOffer(final boolean iceRestart) {
+        runOperation(timing.maxCreateMs, new Runnable() {
+            @Override
+            public void run() {
+                if (signalingState != SignalingState.STABLE
+                        && signalingState != SignalingState.HAVE_LOCAL_OFFER) {
+                    observer.onCreateFailure("CreateOffer called in state " + signalingState);
+                    return;
+                }
+                observer.onCreateSuccess(newDescription(
+                        SessionDescriptionInfo.Type.OFFER, iceRestart));
+            }
+        });
+    }
+
+    @Override
+    public void createAnswer() {
+        runOperation(timing.maxCreateMs, new Runnable() {
+            @Override
+            public void run() {
+                if (signalingState != SignalingState.HAVE_REMOTE_OFFER) {
+                    observer.onCreateFailure("CreateAnswer called in state " + signalingState);
+                    return;
+                }
+                observer.onCreateSuccess(newDescription(SessionDescriptionInfo.Type.ANSWER, false));
+            }
+        });
+    }
+
+    @Override
+    public void setLocalDescription(final SessionDescriptionInfo sdp) {
+        runOperation(timing.maxSetMs, new Runnable() {
+            @Override
+            public void run() {
+                SignalingState newState = nextState(sdp.type, true);
+                if (newState == null) {
+                    observer.onSetFailure("Local " + sdp.type + " in state " + signalingState);
+                    return;
+                }
+                signalingState = newState;
+                localDescriptionSet = true;
+                observer.onSetSuccess();
+                startGathering();
+                maybeConnect();
+            }
+        });
+    }
+
+    @Override
+    public void setRemoteDescription(final SessionDescriptionInfo sdp) {
+        runOperation(timing.maxSetMs, new Runnable() {
+            @Override
+            public void run() {
+                SignalingState newState = nextState(sdp.type, false);
+                if (newState == null) {
+                    observer.onSetFailure("Remote " + sdp.type + " in state " + signalingState);
+                    return;
+                }
+                signalingState = newState;
+                remoteDescriptionSet = true;
+                observer.onSetSuccess();
+                maybeConnect();
+            }
+        });
+    }
+
+    @Override
+    public void addIceCandidate(IceCandidateInfo candidate) {
+        runOperation(0, new Runnable() {
+            @Override
+            public void run() {
+                if (!remoteDescriptionSet) {
+                    lostCandidates++;
+                    return;
+                }
+                remoteCandidates.add(candidate.sdp);
+                maybeConnect();
+            }
+        });
+    }
+
+    void removeIceCandidates(final List<IceCandidateInfo> candidates) {
+        runOperation(0, new Runnable() {
+            @Override
+            public void run() {
+                for (IceCandidateInfo candidate : candidates) {
+                    if (remoteCandidates.remove(candidate.sdp)) {
+                        removedRemoteCandidates++;
+                    }
+                }
+            }
+        });
+    }
+
+    private void runOperation(int maxDurationMs, Runnable operation) {
+        long durationMs = maxDurationMs > 0 ? 1 + random.nextInt(maxDurationMs) : 0;
+        lastOperationTimeMs = Math.max(clock.nowMs(), lastOperationTimeMs) + durationMs;
+        clock.scheduleAt(lastOperationTimeMs, operation);
+    }
+
+    private SessionDescriptionInfo newDescription(SessionDescriptionInfo.Type type,
+                                                  boolean iceRestart) {
+        return new SessionDescriptionInfo(type, "v=0\r\no=- " + id + " " + (++descriptionCount)
+                + " IN IP4 127.0.0.1\r\n" + (iceRestart ? "a=ice-options:restart\r\n" : ""));
+    }
+
+    // Returns the state after setting a description of |type|, null if it
+    // can't be set in the current state.
+    private SignalingState nextState(SessionDescriptionInfo.Type type, boolean local) {
+        if (type == SessionDescriptionInfo.Type.OFFER) {
+            SignalingState offerState = local
+                    ? SignalingState.HAVE_LOCAL_OFFER : SignalingState.HAVE_REMOTE_OFFER;
+            return signalingState == SignalingState.STABLE || signalingState == offerState
+                    ? offerState : null;
+        }
+        SignalingState offerState = local
+                ? SignalingState.HAVE_REMOTE_OFFER : SignalingState.HAVE_LOCAL_OFFER;
+        return signalingState == offerState ? SignalingState.STABLE : null;
+    }
+
+    private void startGathering() {
+        if (gathering) {
+            return;
+        }
+        gathering = true;
+        final List<IceCandidateInfo> removals = new ArrayList<>();
+        for (int i = 0; i < timing.candidates; i++) {
+            final IceCandidateInfo candidate = new IceCandidateInfo("audio", 0,
+                    "candidate:" + i + " 1 udp " + (2122260223 - i) + " " + id + " typ host");
+            if (i < timing.removedCandidates) {
+                removals.add(candidate);
+            }
+            clock.schedule((i + 1) * (long) timing.gatherIntervalMs, new Runnable() {
+                @Override
+                public void run() {
+                    observer.onIceCandidate(candidate);
+                }
+            });
+        }
+        if (!removals.isEmpty()) {
+            clock.schedule((timing.candidates + 1) * (long) timing.gatherIntervalMs,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            observer.onIceCandidatesRemoved(removals);
+                        }
+                    });
+        }
+    }
+
+    private boolean isReadyToConnect() {
+        return localDescriptionSet && remoteDescriptionSet
+                && signalingState == SignalingState.STABLE;
+    }
+
+    private void maybeConnect() {
+        if (connecting || remote == null || !isReadyToConnect() || !remote.isReadyToConnect()
+                || remoteCandidates.size() + remote.remoteCandidates.size() == 0) {
+            return;
+        }
+        connecting = true;
+        remote.connecting = true;
+        clock.schedule(timing.rttMs, new Runnable() {
+            @Override
+            public void run() {
+                connected = true;
+                remote.connected = true;
+                observer.onIceConnected();
+                remote.observer.onIceConnected();
+            }
+        });
+    }
+}
@@ -0,0 +1,160 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import cn.neoclub.rtc.core.JsonCodec;
+import cn.neoclub.rtc.core.ProtocolException;
+import cn.neoclub.rtc.core.SignalingProtocol;
+
+/**
+ * Signaling server with the routing of the real one: a register is
+ * answered with a loginack listing the other members, other messages are
+ * forwarded to "toId" with the sender added as "from". Messages to unknown
+ * ids are discarded. Each client link has its own network conditions, in
+ * both directions. A closed link loses the messages on it, until the
+ * client connects and registers again.
+ */
+class FakeSignalingServer {
+    interface Client {
+        void onMessage(String message);
+    }
+
+    private final VirtualClock clock;
+    private final Random random;
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    private final List<String> members = new ArrayList<>();
+    private int droppedMessages;
+    private int unroutableMessages;
+    private int closedLinkMessages;
+
+    private static class Link {
+        final Client client;
+        final NetworkConditions network;
+        boolean open = true;
+        long lastUplinkTimeMs;
+        long lastDownlinkTimeMs;
+
+        Link(Client client, NetworkConditions network) {
+            this.client = client;
+            this.network = network;
+        }
+    }
+
+    FakeSignalingServer(VirtualClock clock, Random random) {
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * Opens a link for |clientId|, replacing a closed one.
+     */
+    void connect(String clientId, Client client, NetworkConditions network) {
+        links.put(clientId, new Link(client, network));
+    }
+
+    /**
+     * Closes the link of |clientId|, as a lost WebSocket. The client only
+     * notices when it gets a close event.
+     */
+    void close(String clientId) {
+        links.get(clientId).open = false;
+    }
+
+    /**
+     * Sends |message| from |clientId| to the server.
+     */
+    void send(final String clientId, final String message) {
+        final Link link = links.get(clientId);
+        if (!link.open) {
+            closedLinkMessages++;
+            return;
+        }
+        if (link.network.nextDropped(random)) {
+            droppedMessages++;
+            return;
+        }
+        link.lastUplinkTimeMs = nextDeliveryTime(link, link.lastUplinkTimeMs);
+        clock.scheduleAt(link.lastUplinkTimeMs, new Runnable() {
+            @Override
+            public void run() {
+                if (!link.open) {
+                    closedLinkMessages++;
+                    return;
+                }
+                onServerMessage(clientId, message);
+            }
+        });
+    }
+
+    int getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    int getUnroutableMessages() {
+        return unroutableMessages;
+    }
+
+    int getClosedLinkMessages() {
+        return closedLinkMessages;
+    }
+
+    private void onServerMessage(String clientId, String message) {
+        Map<String, Object> json;
+        try {
+            json = JsonCodec.parseObject(message);
+        } catch (ProtocolException e) {
+            throw new IllegalStateException("Client sent bad JSON: " + message, e);
+        }
+        String cmd = String.valueOf(json.get("cmd"));
+        if (SignalingProtocol.CMD_REGISTER.equals(cmd)) {
+            Map<String, Object> loginAck = new LinkedHashMap<>();
+            loginAck.put("cmd", SignalingProtocol.CMD_LOGIN_ACK);
+            List<Object> others = new ArrayList<Object>(members);
+            others.remove(clientId);
+            loginAck.put("members", others);
+            if (!members.contains(clientId)) {
+                members.add(clientId);
+            }
+            deliver(clientId, JsonCodec.write(loginAck));
+        } else if (!SignalingProtocol.CMD_BYE.equals(cmd)) {
+            json.put("from", clientId);
+            deliver(String.valueOf(json.get("toId")), JsonCodec.write(json));
+        }
+    }
+
+    private void deliver(String clientId, final String message) {
+        final Link link = links.get(clientId);
+        if (link == null || !members.contains(clientId)) {
+            unroutableMessages++;
+            return;
+        }
+        if (!link.open) {
+            closedLinkMessages++;
+            return;
+        }
+        if (link.network.nextDropped(random)) {
+            droppedMessages++;
+            return;
+        }
+        link.lastDownlinkTimeMs = nextDeliveryTime(link, link.lastDownlinkTimeMs);
+        clock.scheduleAt(link.lastDownlinkTimeMs, new Runnable() {
+            @Override
+            public void run() {
+                if (!link.open) {
+                    closedLinkMessages++;
+                    return;
+                }
+                link.client.onMessage(message);
+            }
+        });
+    }
+
+    private long nextDeliveryTime(Link link, long lastDeliveryTimeMs) {
+        long timeMs = clock.nowMs() + link.network.nextDelayMs(random);
+        return link.network.reorder ? timeMs : Math.max(timeMs, lastDeliveryTimeMs);
+    }
+}
@@ -0,0 +1,37 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.Random;
+
+/**
+ * One way signaling delay and loss between a client and the server.
+ * <p/>
+ * <p>Messages take the latency plus up to the jitter. A WebSocket delivers
+ * in order, so messages only overtake each other if |reorder| is set.
+ */
+class NetworkConditions {
+    final int latencyMs;
+    final int jitterMs;
+    final double dropProbability;
+    final boolean reorder;
+
+    NetworkConditions(int latencyMs, int jitterMs, double dropProbability, boolean reorder) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.dropProbability = dropProbability;
+        this.reorder = reorder;
+    }
+
+    long nextDelayMs(Random random) {
+        return latencyMs + (jitterMs > 0 ? random.nextInt(jitterMs + 1) : 0);
+    }
+
+    boolean nextDropped(Random random) {
+        return dropProbability > 0 && random.nextDouble() < dropProbability;
+    }
+
+    @Override
+    public String toString() {
+        return latencyMs + "+" + jitterMs + " ms, drop " + dropProbability
+                + (reorder ? ", reorder" : "");
+    }
+}
@@ -0,0 +1,27 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.Random;
+
+/**
+ * Single thread executor on the virtual clock, such as the UI thread or the
+ * peer connection executor. Tasks run in order, each after a random thread
+ * hop delay of up to |maxHopMs|.
+ */
+class SimExecutor {
+    private final VirtualClock clock;
+    private final Random random;
+    private final int maxHopMs;
+    private long lastTaskTimeMs;
+
+    SimExecutor(VirtualClock clock, Random random, int maxHopMs) {
+        this.clock = clock;
+        this.random = random;
+        this.maxHopMs = maxHopMs;
+    }
+
+    void execute(Runnable runnable) {
+        long hopMs = maxHopMs > 0 ? random.nextInt(maxHopMs + 1) : 0;
+        lastTaskTimeMs = Math.max(clock.nowMs() + hopMs, lastTaskTimeMs);
+        clock.scheduleAt(lastTaskTimeMs, runnable);
+    }
+}
@@ -0,0 +1,535 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import cn.neoclub.rtc.core.CallNegotiator;
+import cn.neoclub.rtc.core.IceCandidateInfo;
+import cn.neoclub.rtc.core.RoomSignaling;
+import cn.neoclub.rtc.core.SessionDescriptionInfo;
+import cn.neoclub.rtc.core.SignalingProtocol;
+
+/**
+ * One call participant, wired as the app wires CallActivity,
+ * WebSocketRTCClient and PeerConnectionClient.
+ * <p/>
+ * <p>Routing, room membership and recovery of a lost server connection are
+ * the app's own RoomSignaling, run on the signaling executor. Its results
+ * are passed to the UI executor and from there to the peer connection
+ * executor, where the CallNegotiator runs. Peer connection callbacks take
+ * the way back. The guards of the app are kept, so a message arriving
+ * before the peer connection exists is dropped as it is on a device. The
+ * server connection queues messages while it is replaced, as
+ * WebSocketChannelClient does, and mid-call messages go over the peer
+ * connection once ICE is connected.
+ */
+class SimulatedEndpoint implements FakeSignalingServer.Client, FakePeerConnection.Observer,
+        CallNegotiator.Events {
+    private static final String ROOM_ID = "sim";
+
+    private final String name;
+    private final String clientId;
+    private final VirtualClock clock;
+    private final Random random;
+    private final FakeSignalingServer server;
+    private final FakePeerConnection.Timing timing;
+    private final SimExecutor signalingExecutor;
+    private final SimExecutor uiExecutor;
+    private final SimExecutor pcExecutor;
+    private SimulatedEndpoint remote;
+
+    // WebSocketRTCClient state.
+    private final RoomSignaling signaling;
+    private NetworkConditions network;
+    // Messages sent while the server connection is replaced.
+    private final List<String> serverQueue = new ArrayList<>();
+    private int serverQueueUrgentCount;
+    private boolean serverConnected;
+    private int reconnects;
+    private int peerMessages;
+    // CallActivity state.
+    private boolean registered;
+    private boolean channelClosed;
+    // PeerConnectionClient state.
+    private FakePeerConnection peerConnection;
+    private CallNegotiator negotiator;
+    private String error;
+
+    private long joinTimeMs = -1;
+    private long connectedTimeMs = -1;
+    private int droppedDescriptions;
+
+    SimulatedEndpoint(String name, String clientId, VirtualClock clock, Random random,
+                      FakeSignalingServer server, FakePeerConnection.Timing timing,
+                      int maxHopMs) {
+        this.name = name;
+        this.clientId = clientId;
+        this.clock = clock;
+        this.random = random;
+        this.server = server;
+        this.timing = timing;
+        signalingExecutor = new SimExecutor(clock, random, maxHopMs);
+        uiExecutor = new SimExecutor(clock, random, maxHopMs);
+        pcExecutor = new SimExecutor(clock, random, maxHopMs);
+        signaling = new RoomSignaling(clientId, transport, scheduler, signalingEvents);
+    }
+
+    void setRemote(SimulatedEndpoint remote) {
+        this.remote = remote;
+    }
+
+    void join(NetworkConditions network) {
+        this.network = network;
+        server.connect(clientId, this, network);
+        signalingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                joinTimeMs = clock.nowMs();
+                serverConnected = true;
+                server.send(clientId, SignalingProtocol.encodeRegister(ROOM_ID, clientId));
+            }
+        });
+    }
+
+    /**
+     * Loses the server connection now, the WebSocket close event follows
+     * after |detectMs|.
+     */
+    void closeWebSocket(long detectMs) {
+        server.close(clientId);
+        clock.schedule(detectMs, new Runnable() {
+            @Override
+            public void run() {
+                signalingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        signaling.onServerClosed();
+                    }
+                });
+            }
+        });
+    }
+
+    long getJoinTimeMs() {
+        return joinTimeMs;
+    }
+
+    long getConnectedTimeMs() {
+        return connectedTimeMs;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    int getLostCandidates() {
+        return peerConnection == null ? 0 : peerConnection.getLostCandidates();
+    }
+
+    int getRemovedCandidates() {
+        return peerConnection == null ? 0 : peerConnection.getRemovedRemoteCandidates();
+    }
+
+    int getDroppedDescriptions() {
+        return droppedDescriptions;
+    }
+
+    int getReconnects() {
+        return reconnects;
+    }
+
+    int getPeerMessages() {
+        return peerMessages;
+    }
+
+    /**
+     * Describes where the endpoint is, for grouping stuck calls.
+     */
+    String describeState() {
+        StringBuilder state = new StringBuilder(name).append(':');
+        if (joinTimeMs < 0) {
+            return state.append("NOT_JOINED").toString();
+        }
+        if (peerConnection == null) {
+            state.append(registered ? "NO_PEER_CONNECTION" : "NOT_REGISTERED");
+        } else {
+            state.append(peerConnection.getSignalingState());
+            if (peerConnection.getRemoteCandidates() == 0) {
+                state.append("/no-candidates");
+            }
+        }
+        if (channelClosed) {
+            state.append("/closed");
+        }
+        if (error != null) {
+            state.append("/error");
+        }
+        return state.toString();
+    }
+
+    // --------------------------------------------------------------------
+    // WebSocketRTCClient.
+    @Override
+    public void onMessage(final String message) {
+        signalingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                signaling.onServerMessage(message);
+            }
+        });
+    }
+
+    private final RoomSignaling.Transport transport = new RoomSignaling.Transport() {
+        @Override
+        public void sendToServer(String cmd, String message, boolean urgent) {
+            if (serverConnected) {
+                server.send(clientId, message);
+            } else if (urgent) {
+                serverQueue.add(serverQueueUrgentCount++, message);
+            } else {
+                serverQueue.add(message);
+            }
+        }
+
+        @Override
+        public boolean sendToPeer(String cmd, String message) {
+            return peerConnection != null && peerConnection.sendData(message);
+        }
+
+        @Override
+        public void resetServerConnection() {
+            serverConnected = false;
+        }
+
+        @Override
+        public void connectServer() {
+            reconnects++;
+            server.connect(clientId, SimulatedEndpoint.this, network);
+            server.send(clientId, SignalingProtocol.encodeRegister(ROOM_ID, clientId));
+            serverConnected = true;
+            for (String message : serverQueue) {
+                server.send(clientId, message);
+            }
+            serverQueue.clear();
+            serverQueueUrgentCount = 0;
+        }
+    };
+
+    private final RoomSignaling.Scheduler scheduler = new RoomSignaling.Scheduler() {
+        @Override
+        public long nowMs() {
+            return clock.nowMs();
+        }
+
+        @Override
+        public Object schedule(Runnable task, long delayMs) {
+            return clock.schedule(delayMs, task);
+        }
+
+        @Override
+        public void cancel(Object handle) {
+            clock.cancel(handle);
+        }
+    };
+
+    private final RoomSignaling.Events signalingEvents = new RoomSignaling.Events() {
+        @Override
+        public void onConnectedToRoom(final boolean first) {
+            uiExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SimulatedEndpoint.this.onConnectedToRoom(first);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoteDescription(SessionDescriptionInfo sdp) {
+            SimulatedEndpoint.this.onRemoteDescription(sdp);
+        }
+
+        @Override
+        public void onRemoteIceCandidate(IceCandidateInfo candidate) {
+            SimulatedEndpoint.this.onRemoteIceCandidate(candidate);
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(List<IceCandidateInfo> candidates) {
+            SimulatedEndpoint.this.onRemoteIceCandidatesRemoved(candidates);
+        }
+
+        @Override
+        public void onRemoteVideoPaused(boolean paused) {
+        }
+
+        @Override
+        public void onRemoteViewSize(int width, int height, int maxFps) {
+        }
+
+        @Override
+        public void onDiagnosticsRequest(boolean aecDump, boolean nativeLogs, int calls) {
+        }
+
+        @Override
+        public void onRemoteTcpTransportRestart() {
+        }
+
+        @Override
+        public void onMessageReceived(String cmd, int length, boolean fromPeer) {
+            if (fromPeer) {
+                peerMessages++;
+            }
+        }
+
+        @Override
+        public void onChannelClose() {
+            uiExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    channelClosed = true;
+                }
+            });
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            reportError(description);
+        }
+    };
+
+    // --------------------------------------------------------------------
+    // CallActivity, everything here runs on the UI executor.
+    private void onConnectedToRoom(boolean isFirstIn) {
+        registered = true;
+        pcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                createPeerConnection();
+            }
+        });
+        if (!isFirstIn) {
+            pcExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (negotiator != null && error == null) {
+                        negotiator.createOffer();
+                    }
+                }
+            });
+        }
+    }
+
+    private void onRemoteDescription(final SessionDescriptionInfo sdp) {
+        uiExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pcExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (negotiator == null || error != null) {
+                            droppedDescriptions++;
+                            return;
+                        }
+                        negotiator.setRemoteDescription(sdp);
+                    }
+                });
+                if (sdp.type == SessionDescriptionInfo.Type.OFFER) {
+                    pcExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (negotiator != null && error == null) {
+                                negotiator.createAnswer();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void onRemoteIceCandidate(final IceCandidateInfo candidate) {
+        uiExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pcExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (negotiator != null && error == null) {
+                            negotiator.addRemoteIceCandidate(candidate);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onRemoteIceCandidatesRemoved(final List<IceCandidateInfo> candidates) {
+        uiExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pcExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (negotiator != null && error == null) {
+                            negotiator.removeQueuedRemoteCandidates(candidates);
+                            peerConnection.removeIceCandidates(candidates);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // --------------------------------------------------------------------
+    // PeerConnectionClient, everything here runs on the peer connection
+    // executor.
+    private void createPeerConnection() {
+        peerConnection = new FakePeerConnection(clock, random, name, timing, this);
+        negotiator = new CallNegotiator(peerConnection, this);
+        if (remote.peerConnection != null) {
+            peerConnection.setRemote(remote.peerConnection);
+            remote.peerConnection.setRemote(peerConnection);
+        }
+    }
+
+    @Override
+    public void onLocalDescription(final SessionDescriptionInfo sdp, final boolean initiator) {
+        uiExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                signalingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (initiator) {
+                            signaling.sendOffer(sdp.sdp);
+                        } else {
+                            signaling.sendAnswer(sdp.sdp);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onNegotiationError(String description) {
+        reportError(description);
+    }
+
+    // FakePeerConnection.Observer, called on the simulated native thread.
+    @Override
+    public void onCreateSuccess(final SessionDescriptionInfo sdp) {
+        pcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (negotiator != null && error == null) {
+                    negotiator.onCreateSuccess(sdp);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onCreateFailure(String error) {
+        reportError("createSDP error: " + error);
+    }
+
+    @Override
+    public void onSetSuccess() {
+        pcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (negotiator != null && error == null) {
+                    negotiator.onSetSuccess();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSetFailure(String error) {
+        reportError("setSDP error: " + error);
+    }
+
+    @Override
+    public void onIceCandidate(final IceCandidateInfo candidate) {
+        pcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                uiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        signalingExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                signaling.sendLocalIceCandidate(candidate);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onIceCandidatesRemoved(final List<IceCandidateInfo> candidates) {
+        pcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                uiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        signalingExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                signaling.sendLocalIceCandidateRemovals(candidates);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    // The first remote frame follows ICE, CallActivity then reports the
+    // size it is shown at.
+    @Override
+    public void onIceConnected() {
+        pcExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                uiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connectedTimeMs < 0) {
+                            connectedTimeMs = clock.nowMs();
+                        }
+                        signalingExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                signaling.sendViewSize(640, 480, 30);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onDataMessage(final String message) {
+        signalingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                signaling.onPeerMessage(message);
+            }
+        });
+    }
+
+    private void reportError(String description) {
+        if (error == null) {
+            error = description;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates scenario results into setup time percentiles and stuck
+ * state counts.
+ */
+public class SimulationReport {
+    private long[] setupTimesMs = new long[64];
+    private int connected;
+    private int scenarios;
+    private final Map<String, Integer> stuckStates = new TreeMap<>();
+    // First seed per stuck state, to replay it.
+    private final Map<String, Long> stuckSeeds = new TreeMap<>();
+    private long droppedMessages;
+    private long unroutableMessages;
+    private long closedLinkMessages;
+    private long droppedDescriptions;
+    private long lostCandidates;
+    private long removedCandidates;
+    private long reconnects;
+    private long peerMessages;
+    private boolean sorted;
+
+    void add(CallScenario.Result result) {
+        scenarios++;
+        droppedMessages += result.droppedMessages;
+        unroutableMessages += result.unroutableMessages;
+        closedLinkMessages += result.closedLinkMessages;
+        droppedDescriptions += result.droppedDescriptions;
+        lostCandidates += result.lostCandidates;
+        removedCandidates += result.removedCandidates;
+        reconnects += result.reconnects;
+        peerMessages += result.peerMessages;
+        if (result.isConnected()) {
+            if (connected == setupTimesMs.length) {
+                setupTimesMs = Arrays.copyOf(setupTimesMs, connected * 2);
+            }
+            setupTimesMs[connected++] = result.setupTimeMs;
+            sorted = false;
+            return;
+        }
+        Integer count = stuckStates.get(result.stuckState);
+        stuckStates.put(result.stuckState, count == null ? 1 : count + 1);
+        if (count == null) {
+            stuckSeeds.put(result.stuckState, result.seed);
+        }
+    }
+
+    public int getScenarioCount() {
+        return scenarios;
+    }
+
+    public int getStuckCount() {
+        return scenarios - connected;
+    }
+
+    /**
+     * Returns stuck scenario counts by the state both sides were left in.
+     */
+    public Map<String, Integer> getStuckStates() {
+        return stuckStates;
+    }
+
+    /**
+     * Returns the seed of the first scenario stuck in |state|.
+     */
+    public long getStuckSeed(String state) {
+        return stuckSeeds.get(state);
+    }
+
+    public long getUnroutableMessages() {
+        return unroutableMessages;
+    }
+
+    public long getLostCandidates() {
+        return lostCandidates;
+    }
+
+    public long getRemovedCandidates() {
+        return removedCandidates;
+    }
+
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    public long getPeerMessages() {
+        return peerMessages;
+    }
+
+    /**
+     * Returns the setup time at |percentile| of the connected scenarios,
+     * -1 if none connected.
+     */
+    public long getSetupTimePercentileMs(double percentile) {
+        if (connected == 0) {
+            return -1;
+        }
+        if (!sorted) {
+            Arrays.sort(setupTimesMs, 0, connected);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100 * connected) - 1;
+        return setupTimesMs[Math.max(0, Math.min(connected - 1, index))];
+    }
+
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "Scenarios: %d, connected: %d, stuck: %d\n",
+                scenarios, connected, getStuckCount()));
+        out.append(String.format(Locale.US,
+                "Setup time ms: p50 %d, p90 %d, p99 %d, max %d\n",
+                getSetupTimePercentileMs(50), getSetupTimePercentileMs(90),
+                getSetupTimePercentileMs(99), getSetupTimePercentileMs(100)));
+        out.append(String.format(Locale.US,
+                "Signaling messages dropped: %d, unroutable: %d, lost with WebSocket: %d\n",
+                droppedMessages, unroutableMessages, closedLinkMessages));
+        out.append(String.format(Locale.US,
+                "WebSocket reconnects: %d, peer channel messages: %d\n",
+                reconnects, peerMessages));
+        out.append(String.format(Locale.US,
+                "Remote descriptions dropped: %d, remote candidates lost: %d, removed: %d\n",
+                droppedDescriptions, lostCandidates, removedCandidates));
+        for (Map.Entry<String, Integer> entry : stuckStates.entrySet()) {
+            out.append(String.format(Locale.US, "Stuck %6d  %s (seed %d)\n", entry.getValue(),
+                    entry.getKey(), stuckSeeds.get(entry.getKey())));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package cn.neoclub.rtc.sim;
+
+import java.util.PriorityQueue;
+
+/**
+ * Single threaded event loop on simulated time.
+ * <p/>
+ * <p>Tasks run in time order, tasks due at the same time in the order they
+ * were scheduled, so a run only depends on the scheduled delays.
+ */
+public class VirtualClock {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long nowMs;
+    private long sequence;
+
+    private static class Task implements Comparable<Task> {
+        final long timeMs;
+        final long sequence;
+        final Runnable runnable;
+        boolean cancelled;
+
+        Task(long timeMs, long sequence, Runnable runnable) {
+            this.timeMs = timeMs;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (timeMs != other.timeMs) {
+                return timeMs < other.timeMs ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    public long nowMs() {
+        return nowMs;
+    }
+
+    /**
+     * Runs |runnable| at |timeMs|, or now if that has passed. Returns a
+     * handle for cancel().
+     */
+    public Object scheduleAt(long timeMs, Runnable runnable) {
+        Task task = new Task(Math.max(timeMs, nowMs), sequence++, runnable);
+        tasks.add(task);
+        return task;
+    }
+
+    public Object schedule(long delayMs, Runnable runnable) {
+        return scheduleAt(nowMs + delayMs, runnable);
+    }
+
+    public void cancel(Object handle) {
+        ((Task) handle).cancelled = true;
+    }
+
+    /**
+     * Runs tasks until none are left or the next one is after |limitMs|.
+     */
+    public void runUntil(long limitMs) {
+        while (!tasks.isEmpty() && tasks.peek().timeMs <= limitMs) {
+            Task task = tasks.poll();
+            nowMs = task.timeMs;
+            if (!task.cancelled) {
+                task.runnable.run();
+            }
+        }
+    }
+}
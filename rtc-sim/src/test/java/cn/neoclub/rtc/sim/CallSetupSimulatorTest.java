@@ -0,0 +1,43 @@
+package cn.neoclub.rtc.sim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CallSetupSimulatorTest {
+    @Test
+    public void reliableSignaling_neverGetsStuck() {
+        SimulationReport report = new CallSetupSimulator().setScenarios(500).setReorder(true).run();
+        assertEquals(0, report.getStuckCount());
+        assertTrue(report.getSetupTimePercentileMs(50) > 0);
+        assertTrue(report.getPeerMessages() > 0);
+        assertTrue(report.getRemovedCandidates() > 0);
+    }
+
+    @Test
+    public void lostWebSocket_isReconnected() {
+        SimulationReport report = new CallSetupSimulator().setScenarios(200)
+                .setCloseProbability(0.5).run();
+        assertTrue(report.getReconnects() > 0);
+        assertTrue(report.getStuckCount() < report.getScenarioCount() / 2);
+    }
+
+    @Test
+    public void sameSeed_sameResult() {
+        SimulationReport first = new CallSetupSimulator().setScenarios(200).setSeed(7)
+                .setDropProbability(0.05).run();
+        SimulationReport second = new CallSetupSimulator().setScenarios(200).setSeed(7)
+                .setDropProbability(0.05).run();
+        assertEquals(first.format(), second.format());
+        assertTrue(first.getStuckCount() > 0);
+    }
+
+    @Test
+    public void stuckSeed_replays() {
+        SimulationReport report = new CallSetupSimulator().setScenarios(200).setSeed(7)
+                .setDropProbability(0.05).run();
+        String state = report.getStuckStates().keySet().iterator().next();
+        CallScenario.Result result = CallScenario.run(report.getStuckSeed(state), 0.05, false, 0);
+        assertEquals(state, result.stuckState);
+    }
+}